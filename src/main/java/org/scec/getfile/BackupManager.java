@@ -2,23 +2,59 @@ package org.scec.getfile;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
 /**
  * A class to manage backups and rollbacks. A backup creates a snapshot of the
  * current data and metadata that can be rolled back to. Each BackupManager is
  * capable of managing one backup and its corresponding rollback.
+ * Files are backed up and rolled back concurrently on a small shared pool.
+ * <p>
+ * A lazy backup only records which tracked files exist, and captures each file
+ * just before GetFile replaces, moves or deletes it. The cost of a lazy backup
+ * scales with the size of the change rather than the size of the dataset.
+ * </p>
  */
 public class BackupManager {
+	// Identifier given by the user, reported in events
+	private final String name;
 	private final String identifier;
 	private final Object lock;
 	private static final Set<String> identifiers = new HashSet<>();
+	// Number of files backed up or rolled back at once
+	private static final int FILE_THREADS = 8;
+	// Shared by all BackupManagers. Threads are daemons and time out when idle.
+	private static final ExecutorService fileExecutor = newFileExecutor();
 	private MetadataHandler meta;
+	private final EventDispatcher events;
+	// Marks a lazy backup in progress and lists tracked files absent at backup
+	private final File lazyMarker;
+	// Tracked files that existed at the time of a lazy backup, or null if not lazy
+	private Set<Path> lazyPresent;
 	
 	/**
 	 * A constructor for the BackupManager takes a String identifier, to uniquely
@@ -27,8 +63,9 @@ public class BackupManager {
 	 * then they will overwrite any existing backup.
 	 * @param meta			Corresponding metadata for snapshots
 	 * @param identifier	String to uniquely identify backups as a file suffix
+	 * @param events		Notified as backups and rollbacks start and finish
 	 */
-	BackupManager(MetadataHandler meta, String identifier) {
+	BackupManager(MetadataHandler meta, String identifier, EventDispatcher events) {
 		// Warn user that this identifier was already created this session.
 		// We don't prevent instantiation as it simply overwrites existing backups
 		// created by another BackupManager.
@@ -38,34 +75,125 @@ public class BackupManager {
 					"\" is already in use");
 		}
 		identifiers.add(identifier);
+		this.name = identifier;
+		this.events = events;
 		if (!identifier.equals("")) {
 			identifier = "-" + identifier;
 		}
 		this.identifier = ".bak".concat(identifier);
 		this.meta = meta;
 		this.lock = new Object();
+		this.lazyMarker = new File(
+				meta.getClientMetaFile().getPath().concat(this.identifier).concat(".lazy"));
+		// Continue capturing files for a lazy backup from a previous session
+		if (lazyMarker.exists()) {
+			loadLazyBackup();
+		}
 	}
 	/**
 	 * The constructor without an identifier passed assumes an empty string.
 	 * @param meta			Corresponding metadata for snapshots	
 	 */
 	BackupManager(MetadataHandler meta) {
-		this(meta, "");
+		this(meta, "", new EventDispatcher(""));
 	}
 	
 	/**
 	 * Backups up all files and metadata. Rollback invocation will return to this state.
 	 * Rollbacks do nothing if no backup exists. Backups persist across GetFile instances.
+	 * <p>
+	 * Tracked files are backed up as hard links, which takes no time or space
+	 * regardless of their size. GetFile replaces tracked files rather than
+	 * modifying them, so a linked backup keeps the previous content. Files are
+	 * copied on filesystems that don't support hard links.
+	 * </p>
 	 */
 	public void backup() {
+		events.fire(listener -> listener.backupStarted(name, false));
+		synchronized(lock) {
+			endLazyBackup();
+			meta.writeClientMetaState();
+			// Client meta is written in place, so it must be a separate copy
+			backupFile(meta.getClientMetaFile(), false);
+			List<Runnable> tasks = new ArrayList<>();
+			for (Path path : getClientPaths().values()) {
+				tasks.add(() -> backupFile(path.toFile(), true));
+			}
+			runAll(tasks);
+		}
+		events.fire(listener -> listener.backupFinished(name));
+	}
+	
+	/**
+	 * Starts a lazy backup of all files and metadata. Rollback invocation will
+	 * return to this state, exactly as after backup().
+	 * <p>
+	 * Only the client metadata is backed up right away, along with a marker
+	 * listing tracked files that don't exist. Every other tracked file is backed
+	 * up just before GetFile first replaces, moves or deletes it. Lazy backups
+	 * persist across GetFile instances, which resume capturing files when
+	 * constructed.
+	 * </p>
+	 */
+	public void lazyBackup() {
+		events.fire(listener -> listener.backupStarted(name, true));
 		synchronized(lock) {
+			endLazyBackup();
 			meta.writeClientMetaState();
-			backupFile(meta.getClientMetaFile());
+			File clientMetaFile = meta.getClientMetaFile();
+			// No backup exists until the marker is in place
+			new File(clientMetaFile.getPath().concat(identifier)).delete();
+			Set<Path> present = new HashSet<>();
+			List<String> absent = new ArrayList<>();
 			for (String file : meta.getClientFiles()) {
-				Path path = Paths.get(
-						meta.getClientMetaFile().getParent(),
-						meta.getClientMeta(file, "path"));
-				backupFile(path.toFile());
+				String relPath = meta.getClientFilePath(file);
+				if (relPath == null) {
+					continue;
+				}
+				Path path = Paths.get(clientMetaFile.getParent(), relPath);
+				// Captures from an earlier backup don't belong to this one
+				new File(path.toString().concat(identifier)).delete();
+				if (path.toFile().exists()) {
+					present.add(path.toAbsolutePath().normalize());
+				} else {
+					absent.add(relPath);
+				}
+			}
+			try {
+				FileUtils.writeStringToFile(
+						lazyMarker, new Gson().toJson(absent), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				SimpleLogger.LOG(System.err, "Refused to backup " + clientMetaFile.getName());
+				e.printStackTrace();
+				events.fire(listener -> listener.backupFinished(name));
+				return;
+			}
+			backupFile(clientMetaFile, false);
+			this.lazyPresent = present;
+			meta.registerLazyBackup(this);
+			SimpleLogger.LOG(System.out, "Started lazy backup of " + present.size() + " files");
+		}
+		events.fire(listener -> listener.backupFinished(name));
+	}
+	
+	/**
+	 * Backs up a tracked file during a lazy backup, unless it was already
+	 * backed up or didn't exist at the time of the backup.
+	 * Invoked through MetadataHandler before a tracked file changes.
+	 * @param file			Tracked file about to change
+	 */
+	void capture(Path file) {
+		synchronized(lock) {
+			if (lazyPresent == null || !lazyMarker.exists()) {
+				return;
+			}
+			// Files created since the backup are deleted by rollback instead
+			if (!lazyPresent.contains(file.toAbsolutePath().normalize())) {
+				return;
+			}
+			// Keep the contents from the time of the backup
+			if (!new File(file.toString().concat(identifier)).exists()) {
+				backupFile(file.toFile(), true);
 			}
 		}
 	}
@@ -87,89 +215,158 @@ public class BackupManager {
 	 * @return 0 if success and 1 if unable to rollback.
 	 */
 	public int rollback() {
+		events.fire(listener -> listener.rollbackStarted(name));
+		int status = restore();
+		events.fire(listener -> listener.rollbackFinished(name, status == 0));
+		return status;
+	}
+
+	/**
+	 * Implementation of rollback.
+	 * @return 0 if success and 1 if unable to rollback.
+	 */
+	private int restore() {
 		synchronized(lock) {
 			if (!backupExists()) {
 				SimpleLogger.LOG(System.err, "No backup snapshot found for rollback");
 				return 1;
 			}
+			// A lazy backup may have been started by another GetFile instance
+			if (lazyPresent == null && lazyMarker.exists()) {
+				loadLazyBackup();
+			}
 			File clientMetaFile = meta.getClientMetaFile();
-			int status = 0;
+			AtomicInteger status = new AtomicInteger(0);
 			// Delete files found in current meta that don't have a backup
-			for (String file : meta.getClientFiles()) {
-				Path path = Paths.get(
-						clientMetaFile.getParent(),
-						meta.getClientMeta(file, "path"));
-				File savLoc = path.toFile();
-				File bakLoc = new File(path.toString().concat(identifier));
-				if (savLoc.exists() && !bakLoc.exists()) {
-					SimpleLogger.LOG(System.out, "Deleting " + savLoc);
-					savLoc.delete();
-				}
+			List<Runnable> deletions = new ArrayList<>();
+			for (Path path : getClientPaths().values()) {
+				deletions.add(() -> {
+					File savLoc = path.toFile();
+					File bakLoc = new File(path.toString().concat(identifier));
+					if (savLoc.exists() && !bakLoc.exists() && !isUnchanged(path)) {
+						SimpleLogger.LOG(System.out, "Deleting " + savLoc);
+						savLoc.delete();
+						meta.getContentIndex().remove(path);
+					}
+				});
+			}
+			if (!runAll(deletions)) {
+				status.set(1);
 			}
 			// Rollback the local meta itself
 			File clientMetaBak = new File(clientMetaFile.getPath().concat(identifier));
 			if (clientMetaFile.exists() && clientMetaBak.exists()) {
 				try {
-					clientMetaFile.delete();
-					FileUtils.moveFile(clientMetaBak, clientMetaFile);
+					// Changes journaled since the backup no longer apply
+					meta.restoreClientMeta(clientMetaBak);
 					SimpleLogger.LOG(System.out, "rolled back local meta");
 				} catch (IOException e) {
 					SimpleLogger.LOG(System.err, "Failed to read local meta files");
 					e.printStackTrace();
-					status = 1;
+					status.set(1);
 				}
 			} else {
 					SimpleLogger.LOG(System.err, "Failed to rollback local meta");
-					status = 1;
+					status.set(1);
 			}
 			// Load the client meta into memory
 			meta.loadClientMeta();
 			// Iterate over the local files to potentially rollback.
-			for (String file : meta.getClientFiles()) {
-				Path path = Paths.get(
-						clientMetaFile.getParent(),
-						meta.getClientMeta(file, "path"));
-				try {
-					File savLoc = path.toFile();
-					File bakLoc = new File(path.toString().concat(identifier));
-					if (!savLoc.exists() && !bakLoc.exists()) {
-						SimpleLogger.LOG(System.err,
-								"Tracked file is missing. Skipping " + file);
-						status = 1;
-						continue;
-					}
-					if (bakLoc.exists()) {
-						// Rollback files that have a backup
-						if (savLoc.exists()) {
+			List<Runnable> restorations = new ArrayList<>();
+			for (Map.Entry<String, Path> entry : getClientPaths().entrySet()) {
+				String file = entry.getKey();
+				Path path = entry.getValue();
+				restorations.add(() -> {
+					// Restored files are hashed again the next time they're checked
+					meta.getContentIndex().remove(path);
+					try {
+						File savLoc = path.toFile();
+						File bakLoc = new File(path.toString().concat(identifier));
+						if (!savLoc.exists() && !bakLoc.exists()) {
+							SimpleLogger.LOG(System.err,
+									"Tracked file is missing. Skipping " + file);
+							status.set(1);
+							return;
+						}
+						if (bakLoc.exists()) {
+							// Rollback files that have a backup
+							if (savLoc.exists()) {
+								FileUtils.delete(savLoc);
+							}
+							FileUtils.moveFile(bakLoc, savLoc);
+							SimpleLogger.LOG(System.out, "rolled back " + file);
+						} else if (isUnchanged(path)) {
+							// Lazy backups don't capture files that never changed
+							return;
+						} else if (savLoc.exists()) {
+							// Delete tracked files that don't have a backup
 							FileUtils.delete(savLoc);
+							SimpleLogger.LOG(System.out, "deleted " + file);
 						}
-						FileUtils.moveFile(bakLoc, savLoc);
-						SimpleLogger.LOG(System.out, "rolled back " + file);
-					} else if (savLoc.exists()) {
-						// Delete tracked files that don't have a backup
-						FileUtils.delete(savLoc);
-						SimpleLogger.LOG(System.out, "deleted " + file);
+					} catch (IOException e) {
+						SimpleLogger.LOG(System.err, "Failed to rollback " + file);
+						status.set(1);
+						e.printStackTrace();
 					}
-				} catch (IOException e) {
-					SimpleLogger.LOG(System.err, "Failed to rollback " + file);
-					status = 1;
-					e.printStackTrace();
-				}
+				});
 			}
+			if (!runAll(restorations)) {
+				status.set(1);
+			}
+			endLazyBackup();
+			// Prune directories once every file is in place
 			DeleteFile.deleteEmptyDirs(Paths.get(clientMetaFile.getParent()));
-			return status;
+			return status.get();
+		}
+	}
+	
+	/**
+	 * Resolve the location of every tracked file in the client metadata.
+	 * @return Mapping of fileKey to tracked file location
+	 */
+	private Map<String, Path> getClientPaths() {
+		String root = meta.getClientMetaFile().getParent();
+		Map<String, Path> paths = new LinkedHashMap<>();
+		for (String file : meta.getClientFiles()) {
+			String path = meta.getClientFilePath(file);
+			if (path != null) {
+				paths.put(file, Paths.get(root, path));
+			}
+		}
+		return paths;
+	}
+	
+	/**
+	 * Run file operations on the shared worker pool and wait for all of them.
+	 * @param tasks			Independent file operations that handle their own errors
+	 * @return true if every task ran to completion
+	 */
+	private static boolean runAll(List<Runnable> tasks) {
+		CompletableFuture<?>[] pending = new CompletableFuture<?>[tasks.size()];
+		for (int i = 0; i < pending.length; i++) {
+			pending[i] = CompletableFuture.runAsync(tasks.get(i), fileExecutor);
+		}
+		try {
+			CompletableFuture.allOf(pending).join();
+			return true;
+		} catch (CompletionException e) {
+			SimpleLogger.LOG(System.err, "File operation failed: " + e.getCause());
+			return false;
 		}
 	}
 	
 	/**
 	 * Backs up file if it exists
-	 * @param filePath
+	 * @param file			File to backup
+	 * @param link			Hard link to the file if possible instead of copying it
 	 */
-	private void backupFile(File file) {
+	private void backupFile(File file, boolean link) {
 		File bak = new File(file.getPath().concat(identifier));
 		if (file.exists()) {
 			try {
-				FileUtils.copyFile(file, bak);
+				if (!link || !linkFile(file, bak)) {
+					FileUtils.copyFile(file, bak);
+				}
 				SimpleLogger.LOG(System.out, "Backed up " + file.getName());
 			} catch (IOException e) {
 				SimpleLogger.LOG(System.err, "Refused to backup " + file.getName());
@@ -177,4 +374,114 @@ public class BackupManager {
 			}
 		}
 	}
+	
+	/**
+	 * Hard link a backup to a file, replacing any existing backup.
+	 * @param file			File to backup
+	 * @param bak			Backup location
+	 * @return true if linked and false if the filesystem can't link the files
+	 * @throws IOException	If an existing backup can't be replaced
+	 */
+	private static boolean linkFile(File file, File bak) throws IOException {
+		Files.deleteIfExists(bak.toPath());
+		try {
+			Files.createLink(bak.toPath(), file.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Checks if a tracked file without a backup is unchanged since a lazy
+	 * backup, as files are only captured when they change.
+	 * @param path			Tracked file without a backup
+	 * @return true if a lazy backup is in progress and the file existed at the time
+	 */
+	private boolean isUnchanged(Path path) {
+		return lazyPresent != null && lazyPresent.contains(path.toAbsolutePath().normalize());
+	}
+	
+	/**
+	 * Resume a lazy backup from its marker. Tracked files in the backed up
+	 * client metadata existed at the time of the backup unless the marker
+	 * lists them as absent.
+	 */
+	private void loadLazyBackup() {
+		File clientMetaFile = meta.getClientMetaFile();
+		File clientMetaBak = new File(clientMetaFile.getPath().concat(identifier));
+		try {
+			Set<String> absent = new HashSet<>();
+			for (JsonElement path : JsonParser.parseString(FileUtils.readFileToString(
+					lazyMarker, StandardCharsets.UTF_8)).getAsJsonArray()) {
+				absent.add(path.getAsString());
+			}
+			Set<Path> present = new HashSet<>();
+			if (clientMetaBak.exists()) {
+				JsonObject backedUpMeta = JsonParser.parseString(FileUtils.readFileToString(
+						clientMetaBak, StandardCharsets.UTF_8)).getAsJsonObject();
+				for (String file : backedUpMeta.keySet()) {
+					JsonElement path = backedUpMeta.getAsJsonObject(file).get("path");
+					if (path != null && !absent.contains(path.getAsString())) {
+						present.add(Paths.get(clientMetaFile.getParent(), path.getAsString())
+								.toAbsolutePath().normalize());
+					}
+				}
+			}
+			this.lazyPresent = present;
+			meta.registerLazyBackup(this);
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Unable to read lazy backup " + lazyMarker.getName());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Stop capturing files for a lazy backup, if one is in progress.
+	 */
+	private void endLazyBackup() {
+		lazyPresent = null;
+		meta.unregisterLazyBackup(this);
+		lazyMarker.delete();
+	}
+	
+	/**
+	 * Creates the bounded worker pool for backup and rollback file operations.
+	 * @return executor bounded to FILE_THREADS
+	 */
+	private static ExecutorService newFileExecutor() {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				FILE_THREADS, FILE_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread thread = new Thread(runnable,
+							"getfile-backup-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Find identifiers of lazy backups in progress for a client metadata file.
+	 * @param clientMetaFile	Client metadata file
+	 * @return identifiers to resume lazy backups for
+	 */
+	static List<String> getLazyIdentifiers(File clientMetaFile) {
+		List<String> lazyIdentifiers = new ArrayList<>();
+		String prefix = clientMetaFile.getName().concat(".bak");
+		String[] markers = clientMetaFile.getAbsoluteFile().getParentFile().list(
+				(dir, name) -> name.startsWith(prefix) && name.endsWith(".lazy"));
+		if (markers == null) {
+			return lazyIdentifiers;
+		}
+		for (String marker : markers) {
+			String identifier = marker.substring(
+					prefix.length(), marker.length() - ".lazy".length());
+			lazyIdentifiers.add(identifier.startsWith("-") ? identifier.substring(1) : identifier);
+		}
+		return lazyIdentifiers;
+	}
 }
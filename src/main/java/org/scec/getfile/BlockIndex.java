@@ -0,0 +1,265 @@
+package org.scec.getfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A BlockIndex lists a weak rolling checksum and a strong MD5 checksum for
+ * each fixed-size block of one version of a file, in the style of rsync and
+ * zsync. A client with an older version of the file scans it for blocks that
+ * are unchanged in the new version, so only the changed blocks are downloaded.
+ * <p>
+ * The server publishes a BlockIndex beside each version of a file, generated
+ * with the `main` method. The binary format is a magic number, the block size,
+ * the file length, then the weak and strong checksum of each block.
+ * </p>
+ */
+class BlockIndex {
+	// Default number of bytes in a block
+	static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	// "GFB1" identifies the format and its version
+	private static final int MAGIC = 0x47464231;
+	private static final int STRONG_LENGTH = 16;
+	// Size of buffer used when reading files
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	final int blockSize;
+	final long length;
+	private final int[] weak;
+	private final byte[][] strong;
+
+	/**
+	 * BlockIndex constructor
+	 * @param blockSize		Number of bytes in each block except the last
+	 * @param length		Length of the indexed file
+	 * @param weak			Rolling checksum of each block
+	 * @param strong		MD5 of each block
+	 */
+	private BlockIndex(int blockSize, long length, int[] weak, byte[][] strong) {
+		this.blockSize = blockSize;
+		this.length = length;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Number of blocks in the file, including a final partial block
+	 * @return				Count of blocks
+	 */
+	int blockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * Compute the index of a file
+	 * @param file			File to index
+	 * @param blockSize		Number of bytes in each block
+	 * @return				Index of the file
+	 * @throws IOException
+	 */
+	static BlockIndex compute(Path file, int blockSize) throws IOException {
+		long length = Files.size(file);
+		int count = (int) ((length + blockSize - 1) / blockSize);
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][];
+		byte[] block = new byte[blockSize];
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+			for (int i = 0; i < count; i++) {
+				int n = in.readNBytes(block, 0, blockSize);
+				weak[i] = weakChecksum(block, n);
+				md5.update(block, 0, n);
+				strong[i] = md5.digest();
+			}
+		}
+		return new BlockIndex(blockSize, length, weak, strong);
+	}
+
+	/**
+	 * Read an index in its binary format
+	 * @param in			Stream of a published index
+	 * @return				Index of the file
+	 * @throws IOException	If the stream isn't a valid index
+	 */
+	static BlockIndex read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a GetFile block index");
+		}
+		int blockSize = data.readInt();
+		long length = data.readLong();
+		if (blockSize <= 0 || length < 0) {
+			throw new IOException("Invalid block index");
+		}
+		int count = (int) ((length + blockSize - 1) / blockSize);
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][STRONG_LENGTH];
+		for (int i = 0; i < count; i++) {
+			weak[i] = data.readInt();
+			data.readFully(strong[i]);
+		}
+		return new BlockIndex(blockSize, length, weak, strong);
+	}
+
+	/**
+	 * Write this index in its binary format
+	 * @param out			Where to write the index
+	 * @throws IOException
+	 */
+	void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(blockSize);
+		data.writeLong(length);
+		for (int i = 0; i < weak.length; i++) {
+			data.writeInt(weak[i]);
+			data.write(strong[i]);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Find blocks of the indexed file in another file, typically an older
+	 * version of it. The other file is read once, sliding a block-sized
+	 * window one byte at a time and only computing the strong checksum when
+	 * the rolling checksum matches a block. A final partial block is never
+	 * matched and is always downloaded.
+	 * @param local			File to search for blocks
+	 * @return				Offset in the local file of each block, or -1 if not found
+	 * @throws IOException
+	 */
+	long[] findBlocks(Path local) throws IOException {
+		long[] sources = new long[blockCount()];
+		Arrays.fill(sources, -1);
+		int fullBlocks = (int) (length / blockSize);
+		if (fullBlocks == 0) {
+			return sources;
+		}
+		Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+		for (int i = 0; i < fullBlocks; i++) {
+			blocksByWeak.computeIfAbsent(weak[i], k -> new ArrayList<>()).add(i);
+		}
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		// Circular window over the local file, starting at `start`
+		byte[] window = new byte[blockSize];
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(local), BUFFER_SIZE)) {
+			if (in.readNBytes(window, 0, blockSize) < blockSize) {
+				return sources;
+			}
+			int start = 0;
+			long offset = 0;
+			int a = sumA(window);
+			int b = sumB(window);
+			while (true) {
+				boolean matched = false;
+				List<Integer> candidates = blocksByWeak.get((a & 0xffff) | (b << 16));
+				if (candidates != null) {
+					md5.update(window, start, blockSize - start);
+					md5.update(window, 0, start);
+					byte[] digest = md5.digest();
+					for (int block : candidates) {
+						if (sources[block] < 0 && Arrays.equals(strong[block], digest)) {
+							// Identical blocks in the new file all come from here
+							sources[block] = offset;
+							matched = true;
+						}
+					}
+				}
+				if (matched) {
+					// Blocks don't overlap, so continue after the matched block
+					if (in.readNBytes(window, 0, blockSize) < blockSize) {
+						break;
+					}
+					start = 0;
+					offset += blockSize;
+					a = sumA(window);
+					b = sumB(window);
+					continue;
+				}
+				int next = in.read();
+				if (next < 0) {
+					break;
+				}
+				// Roll the window forward by one byte
+				int out = window[start] & 0xff;
+				window[start] = (byte) next;
+				start = (start + 1) % blockSize;
+				offset++;
+				a = (a - out + next) & 0xffff;
+				b = (b - blockSize * out + a) & 0xffff;
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Compute the rsync weak checksum of a block
+	 * @param block			Bytes of the block
+	 * @param n				Number of bytes in the block
+	 * @return				Weak checksum
+	 */
+	static int weakChecksum(byte[] block, int n) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < n; i++) {
+			a += block[i] & 0xff;
+			b += (n - i) * (block[i] & 0xff);
+		}
+		return (a & 0xffff) | ((b & 0xffff) << 16);
+	}
+
+	/**
+	 * First half of the weak checksum of a full window
+	 * @param window		Full window starting at index 0
+	 * @return				Sum of the bytes mod 2^16
+	 */
+	private int sumA(byte[] window) {
+		return weakChecksum(window, blockSize) & 0xffff;
+	}
+
+	/**
+	 * Second half of the weak checksum of a full window
+	 * @param window		Full window starting at index 0
+	 * @return				Position-weighted sum of the bytes mod 2^16
+	 */
+	private int sumB(byte[] window) {
+		return weakChecksum(window, blockSize) >>> 16;
+	}
+
+	/**
+	 * CLT for generating the block index of a file on the server.
+	 * Writes the index to `file.blocks`.
+	 * Usage: blockindex <file> [block size]
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Path file = Paths.get(args[0].trim());
+		int blockSize = args.length > 1
+				? Integer.parseInt(args[1].trim())
+				: DEFAULT_BLOCK_SIZE;
+		Path indexFile = Paths.get(file.toString().concat(".blocks"));
+		try (OutputStream out = Files.newOutputStream(indexFile)) {
+			compute(file, blockSize).write(out);
+			System.out.println("Wrote " + indexFile);
+		} catch (IOException e) {
+			System.err.println("Failed to index " + file + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.scec.getfile;
+
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+
+/**
+ * A Checksum is the expected digest of a file along with the algorithm
+ * used to compute it. Checksums come from the server metadata entry for a
+ * file or from a precomputed `.md5` file beside it on the server.
+ */
+class Checksum {
+	private final String algorithm;
+	private final String hex;
+
+	/**
+	 * Checksum constructor
+	 * @param algorithm		MessageDigest algorithm name, i.e. MD5
+	 * @param hex			Expected digest as a hex string
+	 */
+	private Checksum(String algorithm, String hex) {
+		this.algorithm = algorithm;
+		this.hex = hex.trim();
+	}
+
+	/**
+	 * Create an expected checksum
+	 * @param algorithm		MessageDigest algorithm name, i.e. MD5
+	 * @param hex			Expected digest as a hex string
+	 * @return				Checksum using the given algorithm
+	 */
+	static Checksum of(String algorithm, String hex) {
+		return new Checksum(algorithm, hex);
+	}
+
+	/**
+	 * Create an expected MD5 checksum
+	 * @param hex			Expected digest as a hex string
+	 * @return				MD5 checksum
+	 */
+	static Checksum md5(String hex) {
+		return new Checksum(MessageDigestAlgorithms.MD5, hex);
+	}
+
+	/**
+	 * Create an expected SHA-256 checksum
+	 * @param hex			Expected digest as a hex string
+	 * @return				SHA-256 checksum
+	 */
+	static Checksum sha256(String hex) {
+		return new Checksum(MessageDigestAlgorithms.SHA_256, hex);
+	}
+
+	/**
+	 * Create a digest to compute this checksum for a file
+	 * @return				Empty digest using the checksum algorithm
+	 */
+	MessageDigest newDigest() {
+		return DigestUtils.getDigest(algorithm);
+	}
+
+	/**
+	 * Compare a computed digest with the expected digest.
+	 * @param calculatedHex	Computed digest as a hex string
+	 * @return				true if the digests match
+	 */
+	boolean matches(String calculatedHex) {
+		return hex.equalsIgnoreCase(calculatedHex);
+	}
+
+	/**
+	 * Check that the expected digest is hex of the length the algorithm
+	 * produces. Digests come from the server, so this is checked before a
+	 * digest is used to name a file.
+	 * @return				true if the algorithm is supported and the digest is well formed
+	 */
+	boolean isWellFormed() {
+		int length;
+		try {
+			length = newDigest().getDigestLength();
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		if (length <= 0 || hex.length() != 2 * length) {
+			return false;
+		}
+		for (int i = 0; i < hex.length(); i++) {
+			if (Character.digit(hex.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the digest algorithm name
+	 * @return				MessageDigest algorithm name, i.e. MD5
+	 */
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Get the expected digest
+	 * @return				Expected digest as a hex string
+	 */
+	String getHex() {
+		return hex;
+	}
+
+	@Override
+	public String toString() {
+		return algorithm + " " + hex;
+	}
+}
@@ -0,0 +1,177 @@
+package org.scec.getfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * The ContentIndex remembers the digest of every file GetFile downloads,
+ * along with the size, modification time and inode of the file when its digest
+ * was known. A tracked file whose attributes are unchanged still has the same
+ * content, so its digest can be trusted without hashing it again.
+ * The index is stored beside the client metadata file.
+ */
+class ContentIndex {
+	private final File indexFile;
+	private final Path root;
+	// Path relative to root => attributes and digest
+	private final Map<String, Entry> entries;
+	private boolean dirty;
+
+	/**
+	 * File attributes and digest of an indexed file.
+	 */
+	private static class Entry {
+		long size;
+		long mtime;
+		String inode;
+		String algorithm;
+		String digest;
+	}
+
+	/**
+	 * Loads the content index for a client metadata file.
+	 * A missing or unreadable index is treated as empty.
+	 * @param clientMetaFile	Client metadata file the index is stored beside
+	 */
+	ContentIndex(File clientMetaFile) {
+		this.indexFile = new File(clientMetaFile.getPath().concat(".index"));
+		this.root = clientMetaFile.getAbsoluteFile().getParentFile().toPath().normalize();
+		this.entries = load(indexFile);
+	}
+
+	/**
+	 * Record the digest of a file that was just written.
+	 * @param file		File with known content
+	 * @param checksum	Digest of the file content
+	 */
+	synchronized void record(Path file, Checksum checksum) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			Entry entry = new Entry();
+			entry.size = attrs.size();
+			entry.mtime = attrs.lastModifiedTime().toMillis();
+			entry.inode = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+			entry.algorithm = checksum.getAlgorithm();
+			entry.digest = checksum.getHex();
+			entries.put(key(file), entry);
+			dirty = true;
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to index " + file);
+		}
+	}
+
+	/**
+	 * Get the digest of a file if it hasn't changed since it was indexed.
+	 * Entries for files that have since changed are forgotten.
+	 * @param file		File to look up
+	 * @return			Indexed digest, or null if unknown or the file changed
+	 */
+	synchronized Checksum lookup(Path file) {
+		String key = key(file);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			String inode = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+			if (attrs.size() == entry.size
+					&& attrs.lastModifiedTime().toMillis() == entry.mtime
+					&& (inode == null ? entry.inode == null : inode.equals(entry.inode))) {
+				return Checksum.of(entry.algorithm, entry.digest);
+			}
+		} catch (IOException e) {
+			// File is missing or unreadable
+		}
+		entries.remove(key);
+		dirty = true;
+		return null;
+	}
+
+	/**
+	 * Follow a file that was renamed. Renaming preserves the content and
+	 * attributes of a file, so its digest is still known.
+	 * @param from		Previous location of the file
+	 * @param to		New location of the file
+	 */
+	synchronized void move(Path from, Path to) {
+		Entry entry = entries.remove(key(from));
+		if (entry != null) {
+			entries.put(key(to), entry);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Forget a file that was deleted.
+	 * @param file		Deleted file
+	 */
+	synchronized void remove(Path file) {
+		if (entries.remove(key(file)) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Write the index to disk if it changed. The index is replaced atomically
+	 * so an interrupted write leaves the previous index intact.
+	 */
+	synchronized void write() {
+		if (!dirty) {
+			return;
+		}
+		try {
+			Downloader.writeAtomically(indexFile.toPath(), tmp -> {
+				try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+					new Gson().toJson(entries, writer);
+				}
+			});
+			dirty = false;
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to write " + indexFile);
+		}
+	}
+
+	/**
+	 * Get the key of a file in the index
+	 * @param file		File in the client root
+	 * @return			Path relative to the client root with `/` separators
+	 */
+	private String key(Path file) {
+		return root.relativize(file.toAbsolutePath().normalize())
+				.toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Read an index from disk
+	 * @param indexFile	Stored index
+	 * @return			Indexed entries, or an empty index if unreadable
+	 */
+	private static Map<String, Entry> load(File indexFile) {
+		if (!indexFile.exists()) {
+			return new HashMap<>();
+		}
+		Type type = new TypeToken<HashMap<String, Entry>>() {}.getType();
+		try (Reader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+			Map<String, Entry> entries = new Gson().fromJson(reader, type);
+			return entries == null ? new HashMap<>() : entries;
+		} catch (IOException | JsonParseException e) {
+			// The index is only a cache of digests, so it's safe to start over
+			SimpleLogger.LOG(System.err, "Ignoring unreadable " + indexFile);
+			return new HashMap<>();
+		}
+	}
+}
@@ -5,8 +5,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -14,6 +14,7 @@ import java.util.Set;
  */
 class DeleteFile {
 	private MetadataHandler meta;
+	private EventDispatcher events;
 	
 	/**
 	 * Constructor. DeleteFile contains static methods that do not depend
@@ -21,25 +22,36 @@ class DeleteFile {
 	 * directories. DeleteFile instances operate on metadata to selectively
 	 * delete files.
 	 * @param meta
+	 * @param events	Notified of each file deleted
 	 */
-	DeleteFile(MetadataHandler meta) {
+	DeleteFile(MetadataHandler meta, EventDispatcher events) {
 		this.meta = meta;
+		this.events = events;
 	}
 	
 	/**
 	 * Deletes all client files missing from server and update meta accordingly.
+	 * Only files that changed can be missing, so only those are checked.
+	 * @param changedFiles	Keynames that differ between client and server
 	 */
-	void deleteMissingFiles() {
-		Set<String> missingFiles = new HashSet<String>(meta.getClientFiles());
-		missingFiles.removeAll(meta.getServerFiles());
+	void deleteMissingFiles(Collection<String> changedFiles) {
+		Set<String> serverFiles = meta.getServerFiles();
 		String root = meta.getClientMetaFile().getParent();
-		for (String file : missingFiles) {
+		for (String file : changedFiles) {
+			if (serverFiles.contains(file)) {
+				continue;
+			}
 			SimpleLogger.LOG(System.out, "Delete " + file);
 			// Delete files on client that aren't on server
-			String path = meta.getClientMeta(file, "path");
-			File loc = new File(root, path);
-			if (loc.exists()) {
-				loc.delete();
+			String path = meta.getClientFilePath(file);
+			if (path != null) {
+				File loc = new File(root, path);
+				if (loc.exists()) {
+					meta.beforeChange(loc.toPath());
+					loc.delete();
+					events.fire(listener -> listener.fileDeleted(file, loc));
+				}
+				meta.getContentIndex().remove(loc.toPath());
 			}
 			// Delete such entries from the client metadata
 			meta.deleteClientEntry(file);
@@ -1,18 +1,41 @@
 package org.scec.getfile;
 
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
 
 /**
  * This utility class contains all the logic to simply download a file from a server
@@ -20,73 +43,824 @@ import org.apache.commons.io.IOUtils;
  * Unlike GetFile, there is no versioning, metadata handling, or backup logic.
  */
 class Downloader {
+	// Status returned by downloadFileIfModified when the cached copy is current
+	static final int NOT_MODIFIED = 2;
+	// Size of buffer used to copy segments into place
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Large files are split into at most this many concurrently downloaded segments
+	private static volatile int maxSegments = 4;
+	// Smallest segment worth its own connection
+	private static volatile long minSegmentBytes = 64L * 1024 * 1024;
+	// Fetches the remaining segments of a file while the caller fetches the first
+	private static final ExecutorService segmentExecutor = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable,
+							"getfile-segment-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	/**
 	 * Retry download until it succeeds or `retries` attempts exceeded.
 	 * If retries is not specified, defaults to 1 attempt.
+	 * Attempts interrupted by a network failure resume where the last left off.
 	 * @param uri					URI of file to download
 	 * @param saveLocation			Where the downloaded file should be stored
 	 * @param retries				Count of retry attempts
 	 * @return						0 if success and 1 if reached n executions
 	 */
 	static int downloadFile(URI uri, Path saveLocation, int retries) {
+		return downloadFile(uri, saveLocation, retries, null, null);
+	}
+
+	/**
+	 * Retry download until it succeeds or `retries` attempts exceeded,
+	 * validating against a known checksum.
+	 * @param uri					URI of file to download
+	 * @param saveLocation			Where the downloaded file should be stored
+	 * @param retries				Count of retry attempts
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @return						0 if success and 1 if reached n executions
+	 */
+	static int downloadFile(URI uri, Path saveLocation, int retries,
+			Checksum expected, ContentIndex index) {
+		return downloadFile(uri, saveLocation, retries, expected, index, null);
+	}
+
+	/**
+	 * Retry download until it succeeds or `retries` attempts exceeded,
+	 * validating against a known checksum and reporting bytes as they arrive.
+	 * @param uri					URI of file to download
+	 * @param saveLocation			Where the downloaded file should be stored
+	 * @param retries				Count of retry attempts
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @param progress				Receives bytes of the file as they're written, or null
+	 * @return						0 if success and 1 if reached n executions
+	 */
+	static int downloadFile(URI uri, Path saveLocation, int retries,
+			Checksum expected, ContentIndex index, LongConsumer progress) {
 		int status = 1;
 		for (int i = 0; i < retries && status != 0; i++) {
-			status = downloadFile(uri, saveLocation);
+			status = downloadFile(uri, saveLocation, expected, index, progress);
 		}
 		return status;
 	}
 
 	/**
-	 * Downloads a file with MD5 validation
+	 * Downloads a file with MD5 validation against the `.md5` file on server.
 	 * @param uri					URI of file to download
 	 * @param saveLocation			Where the downloaded file should be stored
 	 * @return						0 if success and 1 if any failure
 	 */
 	static int downloadFile(URI uri, Path saveLocation) {
-		File savLoc = saveLocation.toFile();
-		File dwnLoc = new File(saveLocation.toString().concat(".part"));
+		return downloadFile(uri, saveLocation, null, null, null);
+	}
+
+	/**
+	 * Downloads a file with checksum validation.
+	 * @param uri					URI of file to download
+	 * @param saveLocation			Where the downloaded file should be stored
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @return						0 if success and 1 if any failure
+	 */
+	static int downloadFile(URI uri, Path saveLocation, Checksum expected,
+			ContentIndex index) {
+		return downloadFile(uri, saveLocation, expected, index, null);
+	}
+
+	/**
+	 * Downloads a file with checksum validation.
+	 * When the expected checksum isn't known from server metadata, the MD5
+	 * is read from the `.md5` file beside the file on the server.
+	 * The checksum is computed as bytes stream off the network into a `.part`
+	 * file, which is then atomically renamed to the save location. Each byte
+	 * is written to disk exactly once.
+	 * <p>
+	 * If the transfer fails, the `.part` file is kept alongside the ETag or
+	 * Last-Modified value of the resource it holds. The next attempt resumes
+	 * with a Range request, or starts over if the resource has since changed.
+	 * Servers may compress the transfer with gzip, which is decompressed as it
+	 * streams. Compressed transfers aren't resumable and always start over.
+	 * </p>
+	 * <p>
+	 * Progress is counted in bytes of the file as they're written, including
+	 * the bytes of a resumed `.part` file. Bytes reported by a failed attempt
+	 * are taken back with a negative count.
+	 * </p>
+	 * @param uri					URI of file to download
+	 * @param saveLocation			Where the downloaded file should be stored
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @param progress				Receives bytes of the file as they're written, or null
+	 * @return						0 if success and 1 if any failure
+	 */
+	static int downloadFile(URI uri, Path saveLocation, Checksum expected,
+			ContentIndex index, LongConsumer progress) {
+		Path partLoc = Paths.get(saveLocation.toString().concat(".part"));
+		Path validatorLoc = Paths.get(partLoc.toString().concat(".validator"));
+		Progress counter = new Progress(progress);
 		try {
-			FileUtils.copyURLToFile(uri.toURL(), dwnLoc,
-					/*connectionTimeoutMillis=*/5000, /*readTimeoutMillis=*/5000);
-			 // Calculate the MD5 checksum of the downloaded file
-			String calculatedMd5 =
-					DigestUtils.md5Hex(Files.newInputStream(dwnLoc.toPath()));
-			if (calculatedMd5.equalsIgnoreCase(getExpectedMd5(uri))) {
-				FileUtils.copyFile(dwnLoc, savLoc);
-				if (dwnLoc.exists()) {
-					dwnLoc.delete();
+			// Don't bother downloading a file we're unable to validate
+			Checksum checksum = expected;
+			if (checksum == null) {
+				String expectedMd5 = getExpectedMd5(uri);
+				if (expectedMd5.isEmpty()) {
+					SimpleLogger.LOG(System.err, "Failed to download " + uri);
+					return 1;
+				}
+				checksum = Checksum.md5(expectedMd5);
+			}
+			if (partLoc.getParent() != null) {
+				Files.createDirectories(partLoc.getParent());
+			}
+			// Calculate the checksum while the download is written to disk
+			MessageDigest digest = checksum.newDigest();
+			transfer(uri, partLoc, validatorLoc, digest, counter);
+			String calculated = Hex.encodeHexString(digest.digest());
+			if (checksum.matches(calculated)) {
+				commit(partLoc, saveLocation);
+				Files.deleteIfExists(validatorLoc);
+				if (index != null) {
+					// The digest of the committed file is known without reading it again
+					index.record(saveLocation, Checksum.of(checksum.getAlgorithm(), calculated));
 				}
 				SimpleLogger.LOG(System.out, "downloaded " + uri);
 				return 0;
 			}
-			if (dwnLoc.exists()) {
-				dwnLoc.delete();
+			discardPart(partLoc, validatorLoc);
+			counter.undo();
+			SimpleLogger.LOG(System.err,
+					checksum.getAlgorithm() + " validation failed for " + uri);
+			SimpleLogger.LOG(System.err, "Expected " + checksum.getHex());
+			SimpleLogger.LOG(System.err, "Calculated: " + calculated);
+			return 1;
+		} catch (IOException e) {
+			counter.undo();
+			SimpleLogger.LOG(System.err, "Failed to download " + uri);
+			if (Files.exists(validatorLoc)) {
+				SimpleLogger.LOG(System.err, "Keeping " + partLoc + " to resume download");
+			} else {
+				try {
+					discardPart(partLoc, validatorLoc);
+				} catch (IOException deleteException) {
+					SimpleLogger.LOG(System.err, "Failed to delete " + partLoc);
+				}
 			}
-			SimpleLogger.LOG(System.err, "MD5 validation failed for " + uri);
-            SimpleLogger.LOG(System.err, "Expected " + getExpectedMd5(uri));
-            SimpleLogger.LOG(System.err, "Calculated: " + calculatedMd5);
+			System.err.println(e);
 			return 1;
+		}
+	}
+
+	/**
+	 * Updates a file by downloading only the blocks that changed since the
+	 * local copy. The block index of the new version locates unchanged blocks
+	 * anywhere in the local copy, which are copied into a `.part` file while
+	 * each run of missing blocks is fetched with a single Range request. The
+	 * assembled file is validated like a full download before it replaces the
+	 * local copy. If nothing can be reused or any step fails, the caller
+	 * should fall back to a full download.
+	 * @param uri					URI of file to download
+	 * @param blocksURI				URI of the block index of the file
+	 * @param saveLocation			Existing older copy, replaced by the new file
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @param progress				Receives bytes of the file as they're written, or null.
+	 * 								Reused blocks count as they're copied.
+	 * @return						0 if success and 1 if any failure
+	 */
+	static int downloadDelta(URI uri, URI blocksURI, Path saveLocation,
+			Checksum expected, ContentIndex index, LongConsumer progress) {
+		Path partLoc = Paths.get(saveLocation.toString().concat(".part"));
+		Path validatorLoc = Paths.get(partLoc.toString().concat(".validator"));
+		Progress counter = new Progress(progress);
+		try {
+			if (!Files.isRegularFile(saveLocation)) {
+				return 1;
+			}
+			Checksum checksum = expected;
+			if (checksum == null) {
+				String expectedMd5 = getExpectedMd5(uri);
+				if (expectedMd5.isEmpty()) {
+					return 1;
+				}
+				checksum = Checksum.md5(expectedMd5);
+			}
+			BlockIndex blocks;
+			try (InputStream in = HttpTransport.shared().get(blocksURI)) {
+				blocks = BlockIndex.read(in);
+			}
+			long[] sources = blocks.findBlocks(saveLocation);
+			int reused = 0;
+			for (long source : sources) {
+				if (source >= 0) {
+					reused++;
+				}
+			}
+			if (reused == 0) {
+				SimpleLogger.LOG(System.out, "No blocks of " + saveLocation + " can be reused");
+				return 1;
+			}
+			// A resumable full download of another version is no use here
+			discardPart(partLoc, validatorLoc);
+			try (RandomAccessFile part = new RandomAccessFile(partLoc.toFile(), "rw");
+					FileChannel local = FileChannel.open(saveLocation, StandardOpenOption.READ)) {
+				part.setLength(blocks.length);
+				FileChannel channel = part.getChannel();
+				long missingStart = -1;
+				for (int i = 0; i < sources.length; i++) {
+					long start = (long) i * blocks.blockSize;
+					if (sources[i] < 0) {
+						if (missingStart < 0) {
+							missingStart = start;
+						}
+						continue;
+					}
+					if (missingStart >= 0) {
+						fetchSegment(uri, null, channel, missingStart, start - 1, counter);
+						missingStart = -1;
+					}
+					channel.position(start);
+					long copied = 0;
+					while (copied < blocks.blockSize) {
+						long n = local.transferTo(sources[i] + copied,
+								blocks.blockSize - copied, channel);
+						if (n <= 0) {
+							throw new EOFException(saveLocation + " changed during update");
+						}
+						copied += n;
+						counter.accept(n);
+					}
+				}
+				if (missingStart >= 0) {
+					fetchSegment(uri, null, channel, missingStart, blocks.length - 1, counter);
+				}
+			}
+			MessageDigest digest = checksum.newDigest();
+			try (InputStream in = Files.newInputStream(partLoc)) {
+				DigestUtils.updateDigest(digest, in);
+			}
+			String calculated = Hex.encodeHexString(digest.digest());
+			if (!checksum.matches(calculated)) {
+				discardPart(partLoc, validatorLoc);
+				counter.undo();
+				SimpleLogger.LOG(System.err,
+						checksum.getAlgorithm() + " validation failed for delta of " + uri);
+				return 1;
+			}
+			commit(partLoc, saveLocation);
+			if (index != null) {
+				index.record(saveLocation, Checksum.of(checksum.getAlgorithm(), calculated));
+			}
+			SimpleLogger.LOG(System.out, "downloaded " + uri + " reusing "
+					+ reused + " of " + sources.length + " blocks");
+			return 0;
+		} catch (IOException e) {
+			counter.undo();
+			SimpleLogger.LOG(System.err, "Failed delta download of " + uri);
+			try {
+				discardPart(partLoc, validatorLoc);
+			} catch (IOException deleteException) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + partLoc);
+			}
+			System.err.println(e);
+			return 1;
+		}
+	}
+
+	/**
+	 * Downloads a file from a gzip-compressed copy of it on the server,
+	 * decompressing as it streams to disk. The checksum is of the original
+	 * uncompressed file, so the `.md5` file beside the original is used when
+	 * the expected checksum isn't known. Compressed downloads are neither
+	 * resumed nor segmented. If this fails, the caller should fall back to
+	 * downloading the original file.
+	 * @param gzipURI				URI of the compressed copy of the file
+	 * @param uri					URI of the original file
+	 * @param saveLocation			Where the decompressed file should be stored
+	 * @param expected				Expected checksum, or null to use the `.md5` on server
+	 * @param index					Content index to record the download in, or null
+	 * @param progress				Receives decompressed bytes as they're written, or null
+	 * @return						0 if success and 1 if any failure
+	 */
+	static int downloadCompressed(URI gzipURI, URI uri, Path saveLocation,
+			Checksum expected, ContentIndex index, LongConsumer progress) {
+		Path partLoc = Paths.get(saveLocation.toString().concat(".part"));
+		Path validatorLoc = Paths.get(partLoc.toString().concat(".validator"));
+		Progress counter = new Progress(progress);
+		try {
+			Checksum checksum = expected;
+			if (checksum == null) {
+				String expectedMd5 = getExpectedMd5(uri);
+				if (expectedMd5.isEmpty()) {
+					return 1;
+				}
+				checksum = Checksum.md5(expectedMd5);
+			}
+			if (partLoc.getParent() != null) {
+				Files.createDirectories(partLoc.getParent());
+			}
+			discardPart(partLoc, validatorLoc);
+			MessageDigest digest = checksum.newDigest();
+			try (InputStream body = HttpTransport.shared().get(gzipURI)) {
+				Files.copy(new DigestInputStream(
+						counter.count(new GZIPInputStream(body, BUFFER_SIZE)), digest), partLoc);
+			}
+			String calculated = Hex.encodeHexString(digest.digest());
+			if (!checksum.matches(calculated)) {
+				Files.deleteIfExists(partLoc);
+				counter.undo();
+				SimpleLogger.LOG(System.err,
+						checksum.getAlgorithm() + " validation failed for " + gzipURI);
+				return 1;
+			}
+			commit(partLoc, saveLocation);
+			if (index != null) {
+				index.record(saveLocation, Checksum.of(checksum.getAlgorithm(), calculated));
+			}
+			SimpleLogger.LOG(System.out, "downloaded " + gzipURI);
+			return 0;
+		} catch (IOException e) {
+			counter.undo();
+			SimpleLogger.LOG(System.err, "Failed to download " + gzipURI);
+			try {
+				Files.deleteIfExists(partLoc);
+			} catch (IOException deleteException) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + partLoc);
+			}
+			System.err.println(e);
+			return 1;
+		}
+	}
+
+	/**
+	 * Downloads a file with MD5 validation, unless it hasn't changed since the
+	 * copy described by the validators was downloaded. The server decides with a
+	 * conditional request, so an unchanged file costs one request and no
+	 * transfer. Intended for small files such as metadata, so downloads are
+	 * neither resumed nor segmented.
+	 * @param uri					URI of file to download
+	 * @param saveLocation			Where the downloaded file should be stored
+	 * @param validators			ETag and Last-Modified of the current copy, if any.
+	 * 								Replaced with those of a new download.
+	 * @return						0 if downloaded, NOT_MODIFIED if the saved copy
+	 * 								is current, and 1 if any failure
+	 */
+	static int downloadFileIfModified(URI uri, Path saveLocation,
+			Map<String, String> validators) {
+		Path partLoc = Paths.get(saveLocation.toString().concat(".part"));
+		HttpTransport transport = HttpTransport.shared();
+		try {
+			HttpRequest.Builder request = transport.newRequest(uri).GET()
+					.header("Accept-Encoding", "gzip");
+			if (validators.containsKey("ETag")) {
+				request.header("If-None-Match", validators.get("ETag"));
+			}
+			if (validators.containsKey("Last-Modified")) {
+				request.header("If-Modified-Since", validators.get("Last-Modified"));
+			}
+			HttpResponse<InputStream> response = transport.stream(request.build());
+			try (InputStream body = response.body()) {
+				if (response.statusCode() == 304) {
+					SimpleLogger.LOG(System.out, "not modified " + uri);
+					return NOT_MODIFIED;
+				}
+				if (response.statusCode() != 200) {
+					throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+				}
+				String expectedMd5 = getExpectedMd5(uri);
+				if (expectedMd5.isEmpty()) {
+					SimpleLogger.LOG(System.err, "Failed to download " + uri);
+					return 1;
+				}
+				if (partLoc.getParent() != null) {
+					Files.createDirectories(partLoc.getParent());
+				}
+				MessageDigest md5 = DigestUtils.getMd5Digest();
+				InputStream content = isGzipped(response)
+						? new GZIPInputStream(body, BUFFER_SIZE)
+						: body;
+				Files.copy(new DigestInputStream(content, md5), partLoc,
+						StandardCopyOption.REPLACE_EXISTING);
+				String calculatedMd5 = Hex.encodeHexString(md5.digest());
+				if (!calculatedMd5.equalsIgnoreCase(expectedMd5)) {
+					Files.deleteIfExists(partLoc);
+					SimpleLogger.LOG(System.err, "MD5 validation failed for " + uri);
+					SimpleLogger.LOG(System.err, "Expected " + expectedMd5);
+					SimpleLogger.LOG(System.err, "Calculated: " + calculatedMd5);
+					return 1;
+				}
+				commit(partLoc, saveLocation);
+				validators.clear();
+				response.headers().firstValue("ETag")
+						.ifPresent(etag -> validators.put("ETag", etag));
+				response.headers().firstValue("Last-Modified")
+						.ifPresent(modified -> validators.put("Last-Modified", modified));
+				SimpleLogger.LOG(System.out, "downloaded " + uri);
+				return 0;
+			}
 		} catch (IOException e) {
 			SimpleLogger.LOG(System.err, "Failed to download " + uri);
-			if (dwnLoc.exists()) {
-				dwnLoc.delete();
+			try {
+				Files.deleteIfExists(partLoc);
+			} catch (IOException deleteException) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + partLoc);
 			}
 			System.err.println(e);
 			return 1;
 		}
 	}
 
+	/**
+	 * Streams a file into its `.part` file while updating the digest.
+	 * Resumes from the end of an existing `.part` file when its validator
+	 * still matches the resource on the server.
+	 * @param uri					URI of file to download
+	 * @param partLoc				Partial download location
+	 * @param validatorLoc			ETag or Last-Modified of the partial download
+	 * @param digest				Digest updated with every byte of the file
+	 * @param counter				Counts bytes of the file as they're written
+	 * @throws IOException
+	 */
+	private static void transfer(URI uri, Path partLoc, Path validatorLoc,
+			MessageDigest digest, Progress counter) throws IOException {
+		HttpTransport transport = HttpTransport.shared();
+		long offset = Files.exists(partLoc) && Files.exists(validatorLoc)
+				? Files.size(partLoc)
+				: 0;
+		HttpRequest.Builder request = transport.newRequest(uri).GET();
+		if (offset > 0) {
+			// If-Range makes the server send the whole file if it has changed
+			request.header("Range", "bytes=" + offset + "-")
+					.header("If-Range", Files.readString(validatorLoc).trim());
+		} else {
+			// Byte ranges of a compressed response can't be resumed, so only
+			// accept compression when starting from the beginning
+			request.header("Accept-Encoding", "gzip");
+		}
+		HttpResponse<InputStream> response = transport.stream(request.build());
+		try (InputStream body = response.body()) {
+			int status = response.statusCode();
+			boolean resumed = status == 206 && response.headers()
+					.firstValue("Content-Range").orElse("")
+					.startsWith("bytes " + offset + "-");
+			if (!resumed && status != 200) {
+				// Start over on the next attempt
+				discardPart(partLoc, validatorLoc);
+				throw new IOException("HTTP " + status + " for " + uri);
+			}
+			if (resumed) {
+				SimpleLogger.LOG(System.out, "Resuming " + uri + " at byte " + offset);
+				try (InputStream existing = Files.newInputStream(partLoc)) {
+					DigestUtils.updateDigest(digest, existing);
+				}
+				counter.accept(offset);
+			} else if (isGzipped(response)) {
+				// Decompress as it streams so the digest sees the original bytes.
+				// Without a validator, a failed transfer starts over.
+				discardPart(partLoc, validatorLoc);
+				Files.copy(new DigestInputStream(
+						counter.count(new GZIPInputStream(body, BUFFER_SIZE)), digest),
+						partLoc, StandardCopyOption.REPLACE_EXISTING);
+				return;
+			} else {
+				discardPart(partLoc, validatorLoc);
+				int segments = getSegmentCount(response);
+				if (segments > 1) {
+					segmentedTransfer(uri, response, body, partLoc, segments, digest, counter);
+					return;
+				}
+				// Remember which version of the resource the .part file holds
+				String validator = getValidator(response);
+				if (validator != null) {
+					Files.writeString(validatorLoc, validator);
+				}
+			}
+			try (OutputStream out = Files.newOutputStream(partLoc,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					resumed ? StandardOpenOption.APPEND
+							: StandardOpenOption.TRUNCATE_EXISTING)) {
+				new DigestInputStream(counter.count(body), digest).transferTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Downloads a large file as concurrent byte ranges into a preallocated
+	 * `.part` file. The response already open for the whole file supplies the
+	 * first segment. Segmented downloads aren't resumable, so the `.part` file
+	 * is discarded if any segment fails.
+	 * @param uri					URI of file to download
+	 * @param response				Open response for the whole file
+	 * @param body					Body of the open response
+	 * @param partLoc				Partial download location
+	 * @param segments				Number of segments to split the file into
+	 * @param digest				Digest updated with every byte of the file
+	 * @param counter				Counts bytes of every segment as they're written
+	 * @throws IOException
+	 */
+	private static void segmentedTransfer(URI uri, HttpResponse<InputStream> response,
+			InputStream body, Path partLoc, int segments, MessageDigest digest,
+			Progress counter) throws IOException {
+		long length = response.headers().firstValueAsLong("Content-Length").getAsLong();
+		long segmentLength = (length + segments - 1) / segments;
+		String validator = getValidator(response);
+		SimpleLogger.LOG(System.out,
+				"Downloading " + uri + " in " + segments + " segments");
+		try (RandomAccessFile part = new RandomAccessFile(partLoc.toFile(), "rw")) {
+			part.setLength(length);
+			FileChannel channel = part.getChannel();
+			List<CompletableFuture<Void>> pending = new ArrayList<>();
+			for (int i = 1; i < segments && i * segmentLength < length; i++) {
+				long start = i * segmentLength;
+				long end = Math.min(start + segmentLength, length) - 1;
+				pending.add(CompletableFuture.runAsync(() -> {
+					try {
+						fetchSegment(uri, validator, channel, start, end, counter);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}, segmentExecutor));
+			}
+			IOException failure = null;
+			try {
+				writeRange(counter.count(body), channel, 0, segmentLength);
+			} catch (IOException e) {
+				failure = e;
+			}
+			// Wait for every segment before closing the file they write to
+			for (CompletableFuture<Void> segment : pending) {
+				try {
+					segment.join();
+				} catch (CompletionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException
+								? (IOException) e.getCause()
+								: new IOException(e.getCause());
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		// Segments arrive out of order, so verify them together once complete
+		try (InputStream in = Files.newInputStream(partLoc)) {
+			DigestUtils.updateDigest(digest, in);
+		}
+	}
+
+	/**
+	 * Downloads one byte range of a file into place.
+	 * @param uri					URI of file to download
+	 * @param validator				ETag or Last-Modified of the first segment
+	 * @param channel				Preallocated partial download
+	 * @param start					First byte of the range
+	 * @param end					Last byte of the range, inclusive
+	 * @param counter				Counts bytes of the range as they're written
+	 * @throws IOException			If the range can't be fetched or the file changed
+	 */
+	private static void fetchSegment(URI uri, String validator, FileChannel channel,
+			long start, long end, Progress counter) throws IOException {
+		HttpTransport transport = HttpTransport.shared();
+		HttpRequest.Builder request = transport.newRequest(uri).GET()
+				.header("Range", "bytes=" + start + "-" + end);
+		if (validator != null) {
+			// Refuse ranges from a different version of the file
+			request.header("If-Range", validator);
+		}
+		HttpResponse<InputStream> response = transport.stream(request.build());
+		try (InputStream body = response.body()) {
+			if (response.statusCode() != 206 || !response.headers()
+					.firstValue("Content-Range").orElse("")
+					.startsWith("bytes " + start + "-" + end + "/")) {
+				throw new IOException("HTTP " + response.statusCode()
+						+ " for bytes " + start + "-" + end + " of " + uri);
+			}
+			writeRange(counter.count(body), channel, start, end - start + 1);
+		}
+	}
+
+	/**
+	 * Copies exactly `length` bytes from a stream into a file at a position.
+	 * @param in					Stream to read
+	 * @param channel				File to write
+	 * @param position				Where in the file to start writing
+	 * @param length				Number of bytes to copy
+	 * @throws IOException			If the stream ends early
+	 */
+	private static void writeRange(InputStream in, FileChannel channel,
+			long position, long length) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				throw new EOFException("Unexpected end of segment at byte " + position);
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+			while (bytes.hasRemaining()) {
+				position += channel.write(bytes, position);
+			}
+			remaining -= read;
+		}
+	}
+
+	/**
+	 * Reports the bytes written by one download attempt, so that an attempt
+	 * that fails can take back what it reported. Segments of an attempt report
+	 * from several threads at once.
+	 */
+	private static class Progress implements LongConsumer {
+		private final LongConsumer listener;
+		private final AtomicLong reported = new AtomicLong();
+
+		/**
+		 * Progress constructor
+		 * @param listener			Receives counts of bytes, or null to count nothing
+		 */
+		Progress(LongConsumer listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void accept(long bytes) {
+			if (listener != null && bytes != 0) {
+				reported.addAndGet(bytes);
+				listener.accept(bytes);
+			}
+		}
+
+		/**
+		 * Count the bytes read from a stream
+		 * @param in				Stream to read
+		 * @return					Stream reporting each read
+		 */
+		InputStream count(InputStream in) {
+			if (listener == null) {
+				return in;
+			}
+			return new ProxyInputStream(in) {
+				@Override
+				protected void afterRead(int n) {
+					if (n > 0) {
+						accept(n);
+					}
+				}
+			};
+		}
+
+		/**
+		 * Take back every byte reported by a failed attempt
+		 */
+		void undo() {
+			accept(-reported.get());
+		}
+	}
+
+	/**
+	 * Number of segments to split a file into. Files are only split when
+	 * the server advertises byte ranges and each segment would be at least
+	 * the minimum segment size.
+	 * @param response				Response for the whole file
+	 * @return						Number of segments, or 1 for a single stream
+	 */
+	private static int getSegmentCount(HttpResponse<?> response) {
+		long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+		boolean acceptsRanges = response.headers().firstValue("Accept-Ranges")
+				.map(value -> value.trim().equalsIgnoreCase("bytes"))
+				.orElse(false);
+		if (!acceptsRanges || length <= 0) {
+			return 1;
+		}
+		return (int) Math.max(1, Math.min(maxSegments, length / minSegmentBytes));
+	}
+
+	/**
+	 * Set how large files are split into concurrently downloaded segments.
+	 * @param maxSegments			Most segments per file. 1 disables segmenting.
+	 * @param minSegmentBytes		Smallest size of a segment in bytes
+	 */
+	static void configureSegments(int maxSegments, long minSegmentBytes) {
+		if (maxSegments < 1 || minSegmentBytes < 1) {
+			throw new IllegalArgumentException(
+					"Segment count and size must be positive.");
+		}
+		Downloader.maxSegments = maxSegments;
+		Downloader.minSegmentBytes = minSegmentBytes;
+	}
+
+	/**
+	 * Gets a strong validator identifying the version of a resource.
+	 * Weak ETags can't be used with If-Range, so fall back to Last-Modified.
+	 * @param response				Response for the resource
+	 * @return						ETag or Last-Modified value, or null if neither
+	 */
+	private static String getValidator(HttpResponse<?> response) {
+		String etag = response.headers().firstValue("ETag").orElse(null);
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return response.headers().firstValue("Last-Modified").orElse(null);
+	}
+
+	/**
+	 * Checks if the server compressed a response body with gzip.
+	 * @param response				Response for the resource
+	 * @return						true if the body must be decompressed
+	 */
+	private static boolean isGzipped(HttpResponse<?> response) {
+		return response.headers().firstValue("Content-Encoding")
+				.map(value -> value.trim().equalsIgnoreCase("gzip"))
+				.orElse(false);
+	}
+
+	/**
+	 * Deletes a partial download and its validator.
+	 * @param partLoc				Partial download location
+	 * @param validatorLoc			ETag or Last-Modified of the partial download
+	 * @throws IOException
+	 */
+	private static void discardPart(Path partLoc, Path validatorLoc) throws IOException {
+		Files.deleteIfExists(partLoc);
+		Files.deleteIfExists(validatorLoc);
+	}
+
+	/**
+	 * Moves a validated `.part` file into place, replacing any existing file.
+	 * Readers of the save location see either the old or the new file, never
+	 * a partially written one. Falls back to a plain move on filesystems
+	 * without atomic rename.
+	 * @param partLoc				Validated download
+	 * @param saveLocation			Final location of the download
+	 * @throws IOException
+	 */
+	static void commit(Path partLoc, Path saveLocation) throws IOException {
+		try {
+			Files.move(partLoc, saveLocation,
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(partLoc, saveLocation, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes the complete content of a file
+	 */
+	interface Content {
+		/**
+		 * Write the content to a new file
+		 * @param file				File to create and write
+		 * @throws IOException
+		 */
+		void writeTo(Path file) throws IOException;
+	}
+
+	/**
+	 * Writes a file by committing a complete copy written beside it, so
+	 * readers see either the old or the new file and an interrupted write
+	 * leaves the old file intact. The copy has a unique name, so concurrent
+	 * writers don't write into each other's copy, and is deleted if writing
+	 * it fails.
+	 * @param file					File to write
+	 * @param content				Writes the copy
+	 * @throws IOException
+	 */
+	static void writeAtomically(Path file, Content content) throws IOException {
+		Path parent = file.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		Path tmp = parent.resolve(file.getFileName() + "-"
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			content.writeTo(tmp);
+			commit(tmp, file);
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException deleteException) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + tmp);
+			}
+			throw e;
+		}
+	}
+
 	/**
 	 * Gets the precomputed MD5 checksum for a file at the corresponding file.md5.
 	 * @param uri		URI of file to download
 	 * @return			String of precomputed md5sum from the md5 file on server.
 	 * 					Returns an empty string if not found.
 	 */
-	private static String getExpectedMd5(URI uri) {
+	static String getExpectedMd5(URI uri) {
 		try {
 			uri = new URI(uri.toString().concat(".md5"));
-			InputStream inputStream = uri.toURL().openStream();
-			return IOUtils.toString(inputStream, StandardCharsets.UTF_8).trim();
+			return HttpTransport.shared().getString(uri).trim();
 		} catch (URISyntaxException | IOException e) {
 			SimpleLogger.LOG(
 					System.err, "Could not find precomputed md5sum for " + uri);
@@ -0,0 +1,113 @@
+package org.scec.getfile;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The EventDispatcher delivers events to the GetFileListeners of a GetFile
+ * instance. Events are queued by the thread that raises them and delivered in
+ * order on a single daemon thread, so listeners never block downloads.
+ * No thread is started until there is a listener to deliver to.
+ */
+class EventDispatcher {
+	private final String name;
+	private final List<GetFileListener> listeners = new CopyOnWriteArrayList<>();
+	private ExecutorService executor;
+
+	/**
+	 * EventDispatcher constructor
+	 * @param name			Name of the GetFile instance, used to name the thread
+	 */
+	EventDispatcher(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start delivering events to a listener
+	 * @param listener		Listener to add
+	 */
+	void addListener(GetFileListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Stop delivering events to a listener
+	 * @param listener		Listener to remove
+	 */
+	void removeListener(GetFileListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Queue an event for every listener. Returns immediately.
+	 * @param event			Invokes the event method on a listener
+	 */
+	void fire(Consumer<GetFileListener> event) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		getExecutor().execute(() -> {
+			for (GetFileListener listener : listeners) {
+				try {
+					event.accept(listener);
+				} catch (RuntimeException e) {
+					SimpleLogger.LOG(System.err, "Listener failed: " + e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Count the bytes of a download for bytesProgressed events. At most one
+	 * progress event per file waits in the queue, holding the latest count.
+	 * @param fileKey		Key of the file being downloaded
+	 * @param size			Expected size in bytes, or -1 if unknown
+	 * @return				Receives bytes as they're written, or null without listeners
+	 */
+	LongConsumer progress(String fileKey, long size) {
+		if (listeners.isEmpty()) {
+			return null;
+		}
+		AtomicLong bytes = new AtomicLong();
+		AtomicBoolean queued = new AtomicBoolean();
+		return delta -> {
+			bytes.addAndGet(delta);
+			if (queued.compareAndSet(false, true)) {
+				fire(listener -> {
+					queued.set(false);
+					listener.bytesProgressed(fileKey, bytes.get(), size);
+				});
+			}
+		};
+	}
+
+	/**
+	 * Create the delivery thread on first use.
+	 * @return				Single threaded executor delivering events in order
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+					1, 1, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					runnable -> {
+						Thread thread = new Thread(runnable, "getfile-" + name + "-events");
+						thread.setDaemon(true);
+						return thread;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+}
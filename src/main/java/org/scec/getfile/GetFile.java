@@ -1,19 +1,30 @@
 package org.scec.getfile;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
 
 import java.net.URI;
 
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import java.time.Duration;
+
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 
 import org.apache.commons.io.FileUtils;
 
@@ -29,15 +40,27 @@ public class GetFile {
 	 */
 	public static final String LATEST_JAR_URL =
 			"https://raw.githubusercontent.com/abhatthal/getfile/refs/heads/main/libs/libs.json";
+	/**
+	 * Number of files downloaded at once by updateAll unless otherwise specified.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+	// Download attempts per file. Interrupted attempts resume where they left off.
+	private static final int DOWNLOAD_RETRIES = 3;
 	// GetFile client metadata is stored in MetadataHandler to pass data into utility classes.
 	final MetadataHandler meta;
 	// Each GetFile instance can have multiple concurrent backups. 1-many relationship via Map.
 	private final Map<String, BackupManager> backups;
 	// Show users the progress of their downloads
 	final ProgressTracker tracker;
-	private final boolean showProgress;
+	// Delivers events to listeners off the download threads
+	private final EventDispatcher events;
 	// Each GetFile instance has its own Prompter with default user prompting behavior.
 	private final Prompter prompter;
+	// Dedicated pool for blocking network and disk I/O. Bounds concurrent downloads
+	// and keeps updates off the common ForkJoinPool.
+	private final ExecutorService executor;
+	// Optional store of unique file contents shared by tracked files
+	private volatile ObjectStore store;
 
 	/**
 	 * Constructor establishes connection with server and parses local and
@@ -67,38 +90,31 @@ public class GetFile {
      * @param showProgress		Show download progress in CalcProgressBar
      */
     public GetFile(String name, File clientMetaFile, List<URI> serverMetaURIs, boolean showProgress) {
-        // Iterate over all serverMetaURIs and choose first server with successful connection.
-        URI serverMetaURI = null;
+        this(name, clientMetaFile, serverMetaURIs, showProgress,
+                DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    /**
+     * Constructor establishes connection with a server and parses local and
+     * server file metadata into memory.
+     * <p>
+     * Up to maxConcurrentDownloads files are downloaded at once when updating.
+     * </p>
+     * @param name						Name of GetFile instance
+     * @param clientMetaFile			Reference to local metadata file on client
+     * @param serverMetaURIs			List of links to hosted server metadata file to download
+     * @param showProgress				Show download progress in CalcProgressBar
+     * @param maxConcurrentDownloads	Maximum number of files to download at once
+     */
+    public GetFile(String name, File clientMetaFile, List<URI> serverMetaURIs,
+            boolean showProgress, int maxConcurrentDownloads) {
         if (serverMetaURIs == null || serverMetaURIs.isEmpty()) {
             SimpleLogger.LOG(System.err, "No server metadata URIs provided.");
             throw new IllegalArgumentException("No server metadata URIs provided.");
         }
-        for (URI uri : serverMetaURIs) {
-            // Get a location for metadata file download
-            Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
-            String path = uri.getPath();
-            String serverMetaFileName = path.substring(path.lastIndexOf('/') + 1);
-            Path dwnLoc = tmpDir.resolve(serverMetaFileName);
-            // We need to download the metadata file (i.e., can't just use HEAD request)
-            // to validate the server connection and that the file is not corrupted.
-            if (Downloader.downloadFile(uri, dwnLoc) == 0) {
-                serverMetaURI = uri;
-                try {
-                    Files.deleteIfExists(dwnLoc);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                SimpleLogger.LOG(System.out, "Connection established with " + serverMetaURI);
-                break;
-            }
-            SimpleLogger.LOG(System.err, "Couldn't connect to " + uri + ".");
-        }
-        if (serverMetaURI == null) {
-            SimpleLogger.LOG(System.err, "Failed to connect to any server. Cache retrieval only.");
-            // Try to use first server even though it's currently failing.
-            // If it works later, it will be used for updating.
-            // Otherwise, cached files can still be retrieved.
-            serverMetaURI = serverMetaURIs.get(0);
+        if (maxConcurrentDownloads < 1) {
+            SimpleLogger.LOG(System.err, "maxConcurrentDownloads must be at least 1.");
+            throw new IllegalArgumentException("maxConcurrentDownloads must be at least 1.");
         }
 
         clientMetaFile = clientMetaFile.getAbsoluteFile();
@@ -113,32 +129,107 @@ public class GetFile {
                 e.printStackTrace();
             }
         }
+        // Server metadata is fetched once, from the first server to respond.
         this.meta = MetadataHandler.MetadataHandlerFactory(
-                clientMetaFile, serverMetaURI);
+                clientMetaFile, serverMetaURIs);
         this.prompter = new Prompter(meta);
-        this.showProgress = showProgress;
+        this.events = new EventDispatcher(name);
         this.tracker = new ProgressTracker(meta, name);
+        if (showProgress) {
+            if (GraphicsEnvironment.isHeadless()) {
+                SimpleLogger.LOG(System.err, "No display to show progress on");
+            } else {
+                events.addListener(tracker);
+            }
+        }
         this.backups = new HashMap<String, BackupManager>();
+        this.executor = newIOExecutor(name, maxConcurrentDownloads);
+        // Resume lazy backups so files are captured before they change
+        for (String identifier : BackupManager.getLazyIdentifiers(clientMetaFile)) {
+            getBackupManager(identifier);
+        }
         Runtime.getRuntime().addShutdownHook(new Thread(meta::writeClientMetaState));
     }
 	
 	/**
 	 * Update all local files using new server files.
-	 * This will force an update regardless of if there are any changes.
-	 * @return Mapping of fileKey to file updated.
+	 * Only files whose version or path differs from the server are updated,
+	 * found by comparing digests of the client and server metadata.
+	 * Files are updated concurrently, bounded by the maximum number of
+	 * concurrent downloads. A failed file doesn't hold up or fail the others.
+	 * @return Mapping of fileKey to file updated. Files that failed to update map to null.
 	 */
 	public CompletableFuture<Map<String, File>> updateAll() {
-		return CompletableFuture.supplyAsync(() -> {
-			// Map fileKeys to evaluated result from updateFile
-			Map<String, File> filesUpdated = new HashMap<>();
-			// Don't attempt to update files that were removed from server
-			new DeleteFile(meta).deleteMissingFiles();
-			// Iterate over the files on the server
-			for (String fileKey : meta.getServerFiles()) {
-				filesUpdated.put(fileKey, updateFile(fileKey).join());
-			}
-			return filesUpdated;
-		});
+		return CompletableFuture.supplyAsync(this::planUpdate, executor)
+			.thenCompose(this::execute);
+	}
+	
+	/**
+	 * Plan what updateAll would do without doing it: the files to download
+	 * with their sizes, the files to move to a new path and the files to
+	 * delete. Only metadata in memory is read, so no file I/O is done.
+	 * @return Immutable plan to inspect and carry out with execute
+	 */
+	public UpdatePlan planUpdate() {
+		return UpdatePlan.plan(meta);
+	}
+	
+	/**
+	 * Carry out a plan from planUpdate. Exactly what the plan lists is done:
+	 * files removed from the server are deleted, then files are moved from
+	 * and to the planned paths and downloaded at the planned versions,
+	 * concurrently, bounded by the maximum number of concurrent downloads.
+	 * @param plan				Plan from planUpdate on this GetFile
+	 * @return Mapping of fileKey to file updated. Files that failed to update map to null.
+	 * @throws IllegalArgumentException	If the plan is from a GetFile with
+	 * 									different client metadata
+	 * @throws IllegalStateException	If the server metadata was refreshed with
+	 * 									different entries since the plan was made
+	 */
+	public CompletableFuture<Map<String, File>> execute(UpdatePlan plan) {
+		if (plan.meta != meta) {
+			throw new IllegalArgumentException("Plan is for a different client metadata file");
+		}
+		if (!plan.isCurrent()) {
+			throw new IllegalStateException("Server metadata changed since the update was planned");
+		}
+		Map<String, UpdatePlan.Download> downloads = new HashMap<>();
+		for (UpdatePlan.Download download : plan.getDownloads()) {
+			downloads.put(download.getFileKey(), download);
+		}
+		Map<String, UpdatePlan.Move> moves = new HashMap<>();
+		for (UpdatePlan.Move move : plan.getMoves()) {
+			moves.put(move.getFileKey(), move);
+		}
+		events.fire(listener -> listener.updateStarted(plan));
+		CompletableFuture<Map<String, File>> result = CompletableFuture.runAsync(() -> {
+				List<String> deletions = new ArrayList<>();
+				for (UpdatePlan.Deletion deletion : plan.getDeletions()) {
+					deletions.add(deletion.getFileKey());
+				}
+				// Don't attempt to update files that were removed from server
+				new DeleteFile(meta, events).deleteMissingFiles(deletions);
+			}, executor)
+			.thenCompose(deleted -> {
+				// Schedule every file at once. The executor bounds how many run.
+				Map<String, CompletableFuture<File>> pending = new LinkedHashMap<>();
+				for (String fileKey : plan.getUpdatedFiles()) {
+					UpdatePlan.Download download = downloads.get(fileKey);
+					UpdatePlan.Move move = moves.get(fileKey);
+					pending.put(fileKey, CompletableFuture.supplyAsync(
+							() -> updateFileImpl(fileKey, download, move), executor)
+						.exceptionally(e -> {
+						SimpleLogger.LOG(System.err,
+								"Failed to update " + fileKey + ": " + e.getMessage());
+						return null;
+					}));
+				}
+				return CompletableFuture.allOf(
+						pending.values().toArray(new CompletableFuture<?>[0]))
+					.thenApply(done -> collectResults(meta.getServerFiles(), pending));
+			});
+		result.whenComplete((files, e) -> events.fire(listener -> listener.updateFinished(plan)));
+		return result;
 	}
 	
 	/**
@@ -149,51 +240,279 @@ public class GetFile {
 	 * @return Future to updated file or null if error
 	 */
 	public CompletableFuture<File> updateFile(String fileKey) {
-		return CompletableFuture.supplyAsync(() -> {
-			final String serverVersion = meta.getServerMeta(fileKey, "version");
-			final String clientVersion = meta.getClientMeta(fileKey, "version");
-			// Handle if file doesn't exist on server
-			if (serverVersion.equals("")) {
-				SimpleLogger.LOG(System.err,
-						"File key \"" + fileKey + "\" does not exist in server meta");
-				return null;
-			}
-			// Create the file entry if it doesn't already exist
-			if (clientVersion.equals("")) {
-				meta.newClientEntry(fileKey);
+		return CompletableFuture.supplyAsync(() -> updateFileImpl(fileKey), executor);
+	}
+	
+	/**
+	 * Blocking implementation of updateFile. Always invoked on the I/O executor.
+	 * @param fileKey			Name of key corresponding to file to try downloading
+	 * @return Updated file or null if error
+	 */
+	private File updateFileImpl(String fileKey) {
+		final String serverVersion = meta.getServerVersion(fileKey);
+		final String serverPath = meta.getServerFilePath(fileKey);
+		final String clientVersion = meta.getClientVersion(fileKey);
+		// Handle if file doesn't exist on server
+		if (serverVersion == null || serverPath == null) {
+			SimpleLogger.LOG(System.err,
+					"File key \"" + fileKey + "\" does not exist in server meta");
+			return null;
+		}
+		// Create the file entry if it doesn't already exist
+		if (clientVersion == null || clientVersion.isEmpty()) {
+			meta.newClientEntry(fileKey, serverPath);
+		}
+		String clientPath = meta.getClientFilePath(fileKey);
+		File file = meta.serverPathEquals(fileKey, clientPath)
+				? new File(meta.getClientMetaFile().getParent(), clientPath)
+				: updatePath(fileKey, clientPath, serverPath);
+		if (serverVersion.equals(clientVersion)) {
+			SimpleLogger.LOG(System.out,
+					"File \"" + fileKey + "\" is already up to date.");
+			return file;
+		}
+		return downloadVersion(fileKey, clientVersion, serverVersion, file);
+	}
+
+	/**
+	 * Carry out the planned download and move of a file. Always invoked on
+	 * the I/O executor.
+	 * @param fileKey			Name of key corresponding to file
+	 * @param download			Planned download, or null if the file is only moved
+	 * @param move				Planned move, or null if the file stays at its path
+	 * @return Updated file or null if error
+	 */
+	private File updateFileImpl(String fileKey, UpdatePlan.Download download,
+			UpdatePlan.Move move) {
+		// Create the file entry if it doesn't already exist
+		if (download != null && download.getFromVersion() == null) {
+			meta.newClientEntry(fileKey, download.getPath());
+		}
+		File file = move != null
+				? updatePath(fileKey, move.getFromPath(), move.getToPath())
+				: new File(meta.getClientMetaFile().getParent(), download.getPath());
+		if (download == null) {
+			return file;
+		}
+		return downloadVersion(fileKey, download.getFromVersion(), download.getToVersion(), file);
+	}
+
+	/**
+	 * Download a version of a file from the server, unless the user declines
+	 * it or the content is already on the client.
+	 * @param fileKey			Name of key corresponding to file
+	 * @param fromVersion		Version on the client, or null if the file is new
+	 * @param toVersion			Version on the server
+	 * @param file				Where the file is stored
+	 * @return Updated file, the unchanged file if declined, or null if error
+	 */
+	private File downloadVersion(String fileKey, String fromVersion, String toVersion,
+			File file) {
+		// Begin download with optional user prompting
+		boolean shouldPrompt = prompter.shouldPrompt(fileKey);
+		if (shouldPrompt && !prompter.promptDownload(fileKey)) {
+			return file;
+		}
+		SimpleLogger.LOG(System.out,
+				"Update " + fileKey + " " + fromVersion + " => " + toVersion);
+		// Download and validate the new file from the server
+		Path downloadLoc = file.toPath();
+		meta.beforeChange(downloadLoc);
+		// Skip the download if the local file is known to already match
+		if (meta.serverChecksumMatches(fileKey, meta.getContentIndex().lookup(downloadLoc))) {
+			SimpleLogger.LOG(System.out,
+					"File \"" + fileKey + "\" already has the latest content.");
+			meta.setClientMeta(fileKey, "version", toVersion);
+			events.fire(listener -> listener.fileCommitted(fileKey, toVersion, file));
+			return file;
+		}
+		Checksum checksum = meta.getServerChecksum(fileKey);
+		// Skip the download if the content is already in the object store
+		ObjectStore store = this.store;
+		if (store != null) {
+			if (checksum == null) {
+				checksum = fetchChecksum(fileKey);
 			}
-			File file = updatePath(fileKey);
-			if (clientVersion.equals(serverVersion)) {
-				SimpleLogger.LOG(System.out,
-						"File \"" + fileKey + "\" is already up to date.");
+			if (checksum != null && store.materialize(checksum, downloadLoc)) {
+				meta.getContentIndex().record(downloadLoc, checksum);
+				meta.setClientMeta(fileKey, "version", toVersion);
+				events.fire(listener -> listener.fileCommitted(fileKey, toVersion, file));
 				return file;
 			}
-			// Begin download with optional user prompting
-			boolean shouldPrompt = prompter.shouldPrompt(fileKey);
-			if ((shouldPrompt && prompter.promptDownload(fileKey)) || !shouldPrompt) {
-				SimpleLogger.LOG(System.out,
-						"Update " + fileKey + " " + clientVersion + " => " + serverVersion);
-				// Download and validate the new file from the server
-				Path downloadLoc = Paths.get(
-						meta.getClientMetaFile().getParent(),
-						meta.getClientMeta(fileKey, "path"));
-				URI serverLoc = URI.create(
-						meta.getServerPath().toString().concat(
-								meta.getServerMeta(fileKey, "path")));
-
-				CompletableFuture<Void> downloader = CompletableFuture.runAsync(() -> {
-					if (Downloader.downloadFile(serverLoc, downloadLoc) == 0) {
-						// Update the client meta version accordingly
-						meta.setClientMeta(fileKey, "version", serverVersion);
-					}
-				});
-				if (showProgress) {
-					tracker.updateProgress(fileKey);
-				}
-				downloader.join();
+		}
+		long size = meta.getServerSize(fileKey);
+		events.fire(listener -> listener.downloadStarted(fileKey, size));
+		if (downloadFromServers(fileKey, downloadLoc, checksum,
+				events.progress(fileKey, size)) != 0) {
+			SimpleLogger.LOG(System.err, "Failed to update " + fileKey);
+			events.fire(listener -> listener.downloadFailed(fileKey,
+					"No server could provide a valid copy"));
+			return null;
+		}
+		events.fire(listener -> listener.downloadVerified(fileKey, file));
+		if (store != null && checksum != null) {
+			store.add(downloadLoc, checksum);
+		}
+		// Update the client meta version accordingly
+		meta.setClientMeta(fileKey, "version", toVersion);
+		events.fire(listener -> listener.fileCommitted(fileKey, toVersion, file));
+		return file;
+	}
+	
+	/**
+	 * Download a file from the fastest server, failing over to the other
+	 * servers in order of their ranking. Servers that fail are ranked last.
+	 * When the server publishes a block index and an older copy of the file
+	 * exists, only the changed blocks are downloaded. Otherwise a compressed
+	 * copy of the file is preferred when the server publishes one.
+	 * @param fileKey			Name of key corresponding to file to download
+	 * @param downloadLoc		Where the downloaded file should be stored
+	 * @param checksum			Expected checksum, or null to use the `.md5` on server
+	 * @param progress			Receives bytes of the file as they're written, or null
+	 * @return 0 if success and 1 if no server could provide the file
+	 */
+	private int downloadFromServers(String fileKey, Path downloadLoc, Checksum checksum,
+			LongConsumer progress) {
+		String serverPath = meta.getServerFilePath(fileKey);
+		String blocksPath = meta.getServerBlocks(fileKey);
+		String gzipPath = meta.getServerGzip(fileKey);
+		for (URI serverMetaURI : meta.getServerMetaURIs()) {
+			String serverRoot = MetadataHandler.getServerPath(serverMetaURI).toString();
+			URI serverLoc = URI.create(serverRoot.concat(serverPath));
+			if (blocksPath != null && Downloader.downloadDelta(serverLoc,
+					URI.create(serverRoot.concat(blocksPath)), downloadLoc,
+					checksum, meta.getContentIndex(), progress) == 0) {
+				return 0;
 			}
-			return file;
-		});
+			if (gzipPath != null && Downloader.downloadCompressed(
+					URI.create(serverRoot.concat(gzipPath)), serverLoc, downloadLoc,
+					checksum, meta.getContentIndex(), progress) == 0) {
+				return 0;
+			}
+			if (Downloader.downloadFile(serverLoc, downloadLoc,
+					DOWNLOAD_RETRIES, checksum, meta.getContentIndex(), progress) == 0) {
+				return 0;
+			}
+			meta.reportServerFailure(serverMetaURI);
+		}
+		return 1;
+	}
+	
+	/**
+	 * Get the expected checksum of a file from the `.md5` file beside it on
+	 * the fastest server that has one.
+	 * @param fileKey			Name of key corresponding to file
+	 * @return Expected MD5 checksum, or null if no server provides one
+	 */
+	private Checksum fetchChecksum(String fileKey) {
+		String serverPath = meta.getServerFilePath(fileKey);
+		for (URI serverMetaURI : meta.getServerMetaURIs()) {
+			String expectedMd5 = Downloader.getExpectedMd5(URI.create(
+					MetadataHandler.getServerPath(serverMetaURI).toString().concat(serverPath)));
+			if (!expectedMd5.isEmpty()) {
+				return Checksum.md5(expectedMd5);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Gathers the evaluated futures from updateAll into a single mapping and
+	 * reports any files that failed to update. Files that were already up to
+	 * date map to their current location.
+	 * @param serverFiles		Keynames of every file on the server
+	 * @param pending			Mapping of fileKey to completed updateFile future
+	 * @return Mapping of fileKey to file updated
+	 */
+	private Map<String, File> collectResults(Set<String> serverFiles,
+			Map<String, CompletableFuture<File>> pending) {
+		Map<String, File> filesUpdated = new HashMap<>();
+		String root = meta.getClientMetaFile().getParent();
+		for (String fileKey : serverFiles) {
+			String path = meta.getServerFilePath(fileKey);
+			if (!pending.containsKey(fileKey) && path != null) {
+				filesUpdated.put(fileKey, new File(root, path));
+			}
+		}
+		List<String> failed = new ArrayList<>();
+		for (Map.Entry<String, CompletableFuture<File>> entry : pending.entrySet()) {
+			File file = entry.getValue().join();
+			if (file == null) {
+				failed.add(entry.getKey());
+			}
+			filesUpdated.put(entry.getKey(), file);
+		}
+		if (!failed.isEmpty()) {
+			SimpleLogger.LOG(System.err, "Failed to update " + failed.size()
+					+ " of " + pending.size() + " files: " + failed);
+		}
+		return filesUpdated;
+	}
+	
+	/**
+	 * Fetch the latest server metadata so subsequent updates see new versions.
+	 * Servers are tried in the order they were ranked at construction, fastest
+	 * first, without probing them all again. Server metadata is only
+	 * downloaded if it changed.
+	 * @return 0 if server metadata is current and 1 if no server responded
+	 */
+	public int refreshServerMeta() {
+		return meta.refreshServerMeta();
+	}
+	
+	/**
+	 * Set the network timeouts used by all GetFile instances in this process.
+	 * All GetFile network calls share one pool of keep-alive connections.
+	 * Defaults to 5 seconds for both timeouts.
+	 * @param connectTimeout	Time to establish a connection with a server
+	 * @param readTimeout		Time to wait for a server to respond to a request,
+	 * 							and for more of a response body once it's sending.
+	 * 							A download fails once its server stalls this long.
+	 */
+	public static void setTimeouts(Duration connectTimeout, Duration readTimeout) {
+		HttpTransport.configure(connectTimeout, readTimeout);
+	}
+	
+	/**
+	 * Set how large files are downloaded as concurrent byte ranges, for all
+	 * GetFile instances in this process. A file is split into as many segments
+	 * as fit the minimum segment size, up to maxSegments, when the server
+	 * supports Range requests. Defaults to 4 segments of at least 64 MiB.
+	 * @param maxSegments		Most segments per file. 1 disables segmented downloads.
+	 * @param minSegmentBytes	Smallest segment size in bytes
+	 */
+	public static void setSegmentedDownloads(int maxSegments, long minSegmentBytes) {
+		Downloader.configureSegments(maxSegments, minSegmentBytes);
+	}
+	
+	/**
+	 * Keep one copy of each unique file in an object store shared by all
+	 * tracked files, and any other GetFile instances using the same store.
+	 * Tracked files become hard links to objects in the store, or copies where
+	 * links aren't supported. Files whose content is already in the store are
+	 * linked rather than downloaded.
+	 * @param storeDir			Directory of the object store, or null to stop using it
+	 */
+	public void setObjectStore(File storeDir) {
+		this.store = storeDir == null ? null : new ObjectStore(storeDir.toPath());
+	}
+	
+	/**
+	 * Receive events as files are downloaded, moved, deleted, backed up and
+	 * rolled back. Events are delivered in order on a thread of their own, so
+	 * listeners never hold up downloads.
+	 * @param listener			Listener to add
+	 */
+	public void addListener(GetFileListener listener) {
+		events.addListener(listener);
+	}
+	
+	/**
+	 * Stop receiving events.
+	 * @param listener			Listener to remove
+	 */
+	public void removeListener(GetFileListener listener) {
+		events.removeListener(listener);
 	}
 	
 	/**
@@ -209,7 +528,7 @@ public class GetFile {
 		if (backups.containsKey(identifier)) {
 			return backups.get(identifier);
 		}
-		BackupManager backup = new BackupManager(meta, identifier);
+		BackupManager backup = new BackupManager(meta, identifier, events);
 		backups.put(identifier, backup);
 		return backup;
 	}
@@ -224,36 +543,61 @@ public class GetFile {
 	}
 	
 	/**
-	 * If the serverPath and clientPath mismatch, then the file location was
-	 * updated and the client file location should be updated accordingly.
-	 * Invoked in updateFile regardless of if file is outdated.
+	 * Move a file whose location was updated on the server, and record the
+	 * new location in client metadata. A file that isn't at its old location
+	 * is downloaded to the new one.
 	 * @param fileKey			Name of file key in metadata
-	 * @return File object with updated or unchanged path
+	 * @param fromPath			Current path relative to the client metadata file
+	 * @param toPath			New path relative to the client metadata file
+	 * @return File object with updated path, or the old path if moving failed
 	 */
-	private File updatePath(String fileKey) {
-		String serverPath = meta.getServerMeta(fileKey, "path");
-		String clientPath = meta.getClientMeta(fileKey, "path");
+	private File updatePath(String fileKey, String fromPath, String toPath) {
 		String root = meta.getClientMetaFile().getParent();
-		File oldLoc = new File(root, clientPath);
-		File newLoc = new File(root, serverPath);
-		if (clientPath.equals(serverPath)) {
-			return oldLoc;
+		File oldLoc = new File(root, fromPath);
+		File newLoc = new File(root, toPath);
+		if (!oldLoc.exists()) {
+			meta.setClientMeta(fileKey, "path", toPath);
+			return newLoc;
 		}
-		if (oldLoc.exists()) {
-			try {
-				FileUtils.moveFile(oldLoc, newLoc);
-				meta.setClientMeta(fileKey, "path", serverPath);
-				SimpleLogger.LOG(System.out,
-						"Updated " + fileKey + " path " + oldLoc + " => " + newLoc);
-				if (oldLoc.getParent() != null) {
-					DeleteFile.deleteIfEmpty(Paths.get(oldLoc.getParent()));
-				}
-			} catch (IOException e) {
-				SimpleLogger.LOG(System.err,
-						"Failed to update file path " + oldLoc + " => " + newLoc);
-				e.printStackTrace();
+		try {
+			meta.beforeChange(oldLoc.toPath());
+			FileUtils.moveFile(oldLoc, newLoc);
+			meta.getContentIndex().move(oldLoc.toPath(), newLoc.toPath());
+			meta.setClientMeta(fileKey, "path", toPath);
+			SimpleLogger.LOG(System.out,
+					"Updated " + fileKey + " path " + oldLoc + " => " + newLoc);
+			events.fire(listener -> listener.pathMoved(fileKey, oldLoc, newLoc));
+			if (oldLoc.getParent() != null) {
+				DeleteFile.deleteIfEmpty(Paths.get(oldLoc.getParent()));
 			}
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err,
+					"Failed to update file path " + oldLoc + " => " + newLoc);
+			e.printStackTrace();
+			return oldLoc;
 		}
 		return newLoc;
 	}
+	
+	/**
+	 * Creates the I/O executor for a GetFile instance. Threads are daemons and
+	 * time out when idle, so unused instances don't keep threads alive.
+	 * @param name				Name of GetFile instance used to name threads
+	 * @param nThreads			Maximum number of concurrent tasks
+	 * @return executor bounded to nThreads
+	 */
+	private static ExecutorService newIOExecutor(String name, int nThreads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				nThreads, nThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				runnable -> {
+					Thread thread = new Thread(runnable,
+							"getfile-" + name + "-io-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
 }
@@ -0,0 +1,122 @@
+package org.scec.getfile;
+
+import java.io.File;
+
+/**
+ * Receives events from a GetFile instance as files are updated, moved,
+ * deleted, backed up and rolled back. Every method does nothing by default,
+ * so a listener only overrides the events it needs.
+ * <p>
+ * Events are delivered in order on a single thread owned by the GetFile
+ * instance, never on the threads downloading files. A slow listener delays
+ * later events but not the downloads themselves. Progress events are
+ * coalesced, so a listener that falls behind sees the latest count.
+ * </p>
+ */
+public interface GetFileListener {
+	/**
+	 * An update of every changed file has started.
+	 * @param plan			Files to be downloaded, moved and deleted
+	 */
+	default void updateStarted(UpdatePlan plan) {
+	}
+
+	/**
+	 * An update of every changed file has finished, successfully or not.
+	 * @param plan			Files that were to be downloaded, moved and deleted
+	 */
+	default void updateFinished(UpdatePlan plan) {
+	}
+
+	/**
+	 * A file started downloading.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param size			Expected size in bytes, or -1 if unknown
+	 */
+	default void downloadStarted(String fileKey, long size) {
+	}
+
+	/**
+	 * More of a file was downloaded. The count may decrease when a failed
+	 * attempt is retried.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param bytes			Bytes of the file downloaded so far
+	 * @param size			Expected size in bytes, or -1 if unknown
+	 */
+	default void bytesProgressed(String fileKey, long bytes, long size) {
+	}
+
+	/**
+	 * A downloaded file matched its checksum and replaced the previous copy.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param file			Location of the file
+	 */
+	default void downloadVerified(String fileKey, File file) {
+	}
+
+	/**
+	 * A file is up to date with a new version, which client metadata now records.
+	 * Files whose content was already on the client are committed without a download.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param version		New version of the file
+	 * @param file			Location of the file
+	 */
+	default void fileCommitted(String fileKey, String version, File file) {
+	}
+
+	/**
+	 * A file couldn't be downloaded from any server.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param reason		Description of the failure
+	 */
+	default void downloadFailed(String fileKey, String reason) {
+	}
+
+	/**
+	 * A file was moved because its path changed on the server.
+	 * @param fileKey		Key of the file in server metadata
+	 * @param from			Previous location of the file
+	 * @param to			New location of the file
+	 */
+	default void pathMoved(String fileKey, File from, File to) {
+	}
+
+	/**
+	 * A file was deleted because it was removed from the server.
+	 * @param fileKey		Key of the file in client metadata
+	 * @param file			Location of the deleted file
+	 */
+	default void fileDeleted(String fileKey, File file) {
+	}
+
+	/**
+	 * A backup has started.
+	 * @param identifier	Identifier of the BackupManager
+	 * @param lazy			Whether files are captured only before they change
+	 */
+	default void backupStarted(String identifier, boolean lazy) {
+	}
+
+	/**
+	 * A backup has finished. Lazy backups continue capturing files until
+	 * they're rolled back or replaced.
+	 * @param identifier	Identifier of the BackupManager
+	 */
+	default void backupFinished(String identifier) {
+	}
+
+	/**
+	 * A rollback has started.
+	 * @param identifier	Identifier of the BackupManager
+	 */
+	default void rollbackStarted(String identifier) {
+	}
+
+	/**
+	 * A rollback has finished.
+	 * @param identifier	Identifier of the BackupManager
+	 * @param success		Whether every file was rolled back
+	 */
+	default void rollbackFinished(String identifier, boolean success) {
+	}
+}
@@ -0,0 +1,290 @@
+package org.scec.getfile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HttpTransport shares a single pooled HTTP client for all GetFile network
+ * calls in the process. Connections are kept alive and reused across requests,
+ * so a file and its checksum don't each pay for a new TCP and TLS handshake.
+ * HTTP/2 is negotiated over TLS, multiplexing concurrent downloads from the
+ * same server over one connection.
+ * <p>
+ * The read timeout bounds both the wait for a response and each read of its
+ * body, so a server that stops sending partway through a file fails the
+ * download instead of holding its thread forever.
+ * </p>
+ */
+class HttpTransport {
+	// Default time to establish a connection
+	static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofMillis(5000);
+	// Default time to wait for a response, or for more of its body
+	static final Duration DEFAULT_READ_TIMEOUT = Duration.ofMillis(5000);
+	// Transport shared by all GetFile instances
+	private static volatile HttpTransport shared =
+			new HttpTransport(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	// Closes response bodies that stall mid-read for longer than the read timeout
+	private static final ScheduledExecutorService watchdog =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "getfile-watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final HttpClient client;
+	private final Duration readTimeout;
+
+	/**
+	 * Create a transport with its own connection pool.
+	 * @param connectTimeout	Time to establish a connection
+	 * @param readTimeout		Time to wait for a response, or for more of its body
+	 */
+	HttpTransport(Duration connectTimeout, Duration readTimeout) {
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(connectTimeout)
+				.build();
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Get the transport shared by all GetFile instances
+	 * @return shared transport
+	 */
+	static HttpTransport shared() {
+		return shared;
+	}
+
+	/**
+	 * Replace the shared transport with one using the given timeouts.
+	 * Requests already in flight complete with the previous timeouts.
+	 * @param connectTimeout	Time to establish a connection
+	 * @param readTimeout		Time to wait for a response, or for more of its body
+	 */
+	static void configure(Duration connectTimeout, Duration readTimeout) {
+		if (connectTimeout.isNegative() || connectTimeout.isZero()
+				|| readTimeout.isNegative() || readTimeout.isZero()) {
+			throw new IllegalArgumentException("Timeouts must be positive.");
+		}
+		shared = new HttpTransport(connectTimeout, readTimeout);
+	}
+
+	/**
+	 * Send a GET request and stream the response body.
+	 * The caller must close the returned stream.
+	 * @param uri				Resource to get
+	 * @return					Response body
+	 * @throws IOException		If the request failed or status isn't 200 OK
+	 */
+	InputStream get(URI uri) throws IOException {
+		HttpResponse<InputStream> response = stream(newRequest(uri).GET().build());
+		if (response.statusCode() != 200) {
+			response.body().close();
+			throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+		}
+		return response.body();
+	}
+
+	/**
+	 * Send a GET request and read the response body as a UTF-8 string.
+	 * @param uri				Resource to get
+	 * @return					Response body
+	 * @throws IOException		If the request failed or status isn't 200 OK
+	 */
+	String getString(URI uri) throws IOException {
+		try (InputStream body = get(uri)) {
+			return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Send a HEAD request for a resource.
+	 * @param uri				Resource to inspect
+	 * @return					Response without a body
+	 * @throws IOException		If the request failed or status isn't 200 OK
+	 */
+	HttpResponse<Void> head(URI uri) throws IOException {
+		HttpResponse<Void> response = send(
+				newRequest(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+				HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() != 200) {
+			throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+		}
+		return response;
+	}
+
+	/**
+	 * Start building a request with the transport timeouts.
+	 * Cleartext requests stay on HTTP/1.1 keep-alive, as file servers rarely
+	 * support upgrading to h2c and attempting it costs a round trip.
+	 * @param uri				Resource to request
+	 * @return					Request builder
+	 * @throws IOException		If the URI can't be requested over HTTP
+	 */
+	HttpRequest.Builder newRequest(URI uri) throws IOException {
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(readTimeout);
+			if ("http".equalsIgnoreCase(uri.getScheme())) {
+				builder.version(HttpClient.Version.HTTP_1_1);
+			}
+			return builder;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid URI " + uri, e);
+		}
+	}
+
+	/**
+	 * Send a request on the pooled client and stream the response body.
+	 * Each read of the body fails with an HttpTimeoutException once the server
+	 * has sent nothing for the read timeout. The caller must close the body.
+	 * @param request			Request to send
+	 * @return					Response to the request
+	 * @throws IOException		If the request failed or was interrupted
+	 */
+	HttpResponse<InputStream> stream(HttpRequest request) throws IOException {
+		return send(request, info -> HttpResponse.BodySubscribers.mapping(
+				HttpResponse.BodySubscribers.ofInputStream(),
+				body -> new IdleTimeoutInputStream(body, request.uri(), readTimeout)));
+	}
+
+	/**
+	 * Send a request on the pooled client.
+	 * @param request			Request to send
+	 * @param handler			How to handle the response body
+	 * @return					Response to the request
+	 * @throws IOException		If the request failed or was interrupted
+	 */
+	<T> HttpResponse<T> send(HttpRequest request,
+			HttpResponse.BodyHandler<T> handler) throws IOException {
+		try {
+			return client.send(request, handler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted requesting " + request.uri());
+		}
+	}
+
+	/**
+	 * Response body that is closed by the watchdog when a read waits longer
+	 * than the timeout for the server to send more. Time spent between reads
+	 * isn't counted, so a slow consumer never times out.
+	 */
+	private static class IdleTimeoutInputStream extends FilterInputStream {
+		private final URI uri;
+		private final long timeoutNanos;
+		private final ScheduledFuture<?> check;
+		// When the read in progress started, or 0 if none is
+		private volatile long readStarted;
+		private volatile boolean timedOut;
+
+		/**
+		 * IdleTimeoutInputStream constructor
+		 * @param body				Response body to watch
+		 * @param uri				Resource the body is from, for errors
+		 * @param timeout			Longest wait for a read to return
+		 */
+		IdleTimeoutInputStream(InputStream body, URI uri, Duration timeout) {
+			super(body);
+			this.uri = uri;
+			this.timeoutNanos = timeout.toNanos();
+			// Checking twice per timeout closes a stalled body within 1.5 timeouts
+			long period = Math.max(1, timeoutNanos / 2);
+			this.check = watchdog.scheduleAtFixedRate(
+					this::checkIdle, period, period, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Close the body if the read in progress has waited too long.
+		 * Runs on the watchdog thread.
+		 */
+		private void checkIdle() {
+			long started = readStarted;
+			if (started != 0 && System.nanoTime() - started >= timeoutNanos) {
+				timedOut = true;
+				check.cancel(false);
+				try {
+					in.close();
+				} catch (IOException e) {
+					SimpleLogger.LOG(System.err, "Failed to close stalled body of " + uri);
+				}
+			}
+		}
+
+		/**
+		 * Mark a read as started.
+		 * @throws HttpTimeoutException	If the body was already closed for stalling
+		 */
+		private void beforeRead() throws HttpTimeoutException {
+			if (timedOut) {
+				throw timeout();
+			}
+			// nanoTime may be 0, which would read as no read in progress
+			long now = System.nanoTime();
+			readStarted = now == 0 ? 1 : now;
+		}
+
+		/**
+		 * Get the error for a read that ended because the body stalled.
+		 * @return				Timeout naming the resource and the timeout
+		 */
+		private HttpTimeoutException timeout() {
+			return new HttpTimeoutException("No data from " + uri
+					+ " for " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+		}
+
+		@Override
+		public int read() throws IOException {
+			beforeRead();
+			int b;
+			try {
+				b = in.read();
+			} catch (IOException e) {
+				throw timedOut ? timeout() : e;
+			} finally {
+				readStarted = 0;
+			}
+			// Closing the body may end the stalled read as if the body were complete
+			if (timedOut) {
+				throw timeout();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			beforeRead();
+			int n;
+			try {
+				n = in.read(b, off, len);
+			} catch (IOException e) {
+				throw timedOut ? timeout() : e;
+			} finally {
+				readStarted = 0;
+			}
+			if (timedOut) {
+				throw timeout();
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			check.cancel(false);
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package org.scec.getfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The MetaFeed describes the revisions of server metadata published beside it,
+ * so clients can fetch only the changes since the revision they cached.
+ * <p>
+ * Beside `meta.json`, the server hosts `meta.json.feed` with the latest
+ * revision and its digests, and `meta.json.patches/N.json` with the entries
+ * set and removed by revision N. Clients apply the patches after their cached
+ * revision, then compare the canonical digest of the result with the feed.
+ * The canonical digest is the SHA-256 of the metadata as compact JSON with
+ * keys sorted, so it doesn't depend on how the JSON is formatted.
+ * </p>
+ * <p>
+ * The feed is generated by running this class on the server after each edit of
+ * the metadata. It keeps a snapshot of the last published revision in the
+ * patches directory to find what changed.
+ * </p>
+ */
+class MetaFeed {
+	// Clients download the whole file rather than apply more patches than this
+	static final int MAX_PATCHES = 100;
+	// Patches kept on the server by default
+	static final int DEFAULT_KEPT = 100;
+	// Snapshot of the last published revision, kept in the patches directory
+	private static final String SNAPSHOT = "latest.json";
+
+	// Latest revision of the server metadata
+	final long revision;
+	// Canonical digest of the latest revision
+	final String sha256;
+	// Digest of the server metadata file as published
+	final String raw;
+	// Oldest revision with a patch on the server
+	final long oldest;
+
+	/**
+	 * MetaFeed constructor
+	 * @param revision		Latest revision of the server metadata
+	 * @param sha256		Canonical digest of the latest revision
+	 * @param raw			Digest of the server metadata file as published
+	 * @param oldest		Oldest revision with a patch on the server
+	 */
+	MetaFeed(long revision, String sha256, String raw, long oldest) {
+		this.revision = revision;
+		this.sha256 = sha256;
+		this.raw = raw;
+		this.oldest = oldest;
+	}
+
+	/**
+	 * Read a feed
+	 * @param json			Feed as JSON
+	 * @return				The feed
+	 * @throws JsonParseException	If the feed is malformed
+	 */
+	static MetaFeed parse(String json) {
+		try {
+			JsonObject feed = JsonParser.parseString(json).getAsJsonObject();
+			return new MetaFeed(
+					feed.get("revision").getAsLong(),
+					feed.get("sha256").getAsString(),
+					feed.get("raw").getAsString(),
+					feed.get("oldest").getAsLong());
+		} catch (IllegalStateException | NullPointerException | UnsupportedOperationException
+				| NumberFormatException e) {
+			throw new JsonParseException("Malformed feed", e);
+		}
+	}
+
+	/**
+	 * Write a feed as JSON
+	 * @return				The feed as a JsonObject
+	 */
+	JsonObject toJson() {
+		JsonObject feed = new JsonObject();
+		feed.addProperty("revision", revision);
+		feed.addProperty("sha256", sha256);
+		feed.addProperty("raw", raw);
+		feed.addProperty("oldest", oldest);
+		return feed;
+	}
+
+	/**
+	 * Check whether a cached revision can catch up by applying patches.
+	 * @param cached		Revision of the cached server metadata
+	 * @return				true if every patch since then is on the server
+	 * 						and there aren't too many of them
+	 */
+	boolean canPatch(long cached) {
+		return cached > 0 && cached < revision && cached + 1 >= oldest
+				&& revision - cached <= MAX_PATCHES;
+	}
+
+	/**
+	 * Get the link to the feed of server metadata
+	 * @param metaURI		Link to hosted server metadata file
+	 * @return				Link to its feed
+	 */
+	static URI getFeedURI(URI metaURI) {
+		return URI.create(metaURI.toString().concat(".feed"));
+	}
+
+	/**
+	 * Get the link to the patch making a revision of server metadata
+	 * @param metaURI		Link to hosted server metadata file
+	 * @param revision		Revision made by the patch
+	 * @return				Link to the patch
+	 */
+	static URI getPatchURI(URI metaURI, long revision) {
+		return URI.create(metaURI.toString().concat(".patches/" + revision + ".json"));
+	}
+
+	/**
+	 * Apply a patch to server metadata
+	 * @param meta			Server metadata to update in place
+	 * @param patch			Entries set and removed by one revision
+	 * @throws JsonParseException	If the patch is malformed
+	 */
+	static void apply(JsonObject meta, JsonObject patch) {
+		try {
+			if (patch.has("set")) {
+				for (Map.Entry<String, JsonElement> entry : patch.getAsJsonObject("set").entrySet()) {
+					meta.add(entry.getKey(), entry.getValue());
+				}
+			}
+			if (patch.has("remove")) {
+				for (JsonElement key : patch.getAsJsonArray("remove")) {
+					meta.remove(key.getAsString());
+				}
+			}
+		} catch (ClassCastException | IllegalStateException | UnsupportedOperationException e) {
+			throw new JsonParseException("Malformed patch", e);
+		}
+	}
+
+	/**
+	 * Find the entries set and removed between two versions of server metadata
+	 * @param from			Previous version
+	 * @param to			New version
+	 * @param revision		Revision made by the patch
+	 * @return				Patch from the previous to the new version, or
+	 * 						null if nothing changed
+	 */
+	static JsonObject diff(JsonObject from, JsonObject to, long revision) {
+		JsonObject set = new JsonObject();
+		JsonArray remove = new JsonArray();
+		for (Map.Entry<String, JsonElement> entry : to.entrySet()) {
+			if (!entry.getValue().equals(from.get(entry.getKey()))) {
+				set.add(entry.getKey(), entry.getValue());
+			}
+		}
+		for (String key : from.keySet()) {
+			if (!to.has(key)) {
+				remove.add(key);
+			}
+		}
+		if (set.size() == 0 && remove.size() == 0) {
+			return null;
+		}
+		JsonObject patch = new JsonObject();
+		patch.addProperty("revision", revision);
+		patch.add("set", set);
+		patch.add("remove", remove);
+		return patch;
+	}
+
+	/**
+	 * Compute the canonical digest of server metadata, which is the SHA-256
+	 * of it as compact JSON with the keys of every object sorted.
+	 * @param meta			Server metadata
+	 * @return				Canonical digest as a hex string
+	 */
+	static String canonicalSha256(JsonElement meta) {
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		try (Writer out = new OutputStreamWriter(
+				new DigestOutputStream(OutputStream.nullOutputStream(), digest),
+				StandardCharsets.UTF_8)) {
+			JsonWriter writer = new JsonWriter(out);
+			writeCanonical(writer, meta);
+			writer.flush();
+		} catch (IOException e) {
+			// Not thrown when writing to a digest
+			throw new IllegalStateException(e);
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Write JSON with the keys of every object sorted.
+	 * @param writer		Where the JSON is written
+	 * @param element		JSON to write
+	 * @throws IOException
+	 */
+	private static void writeCanonical(JsonWriter writer, JsonElement element) throws IOException {
+		if (element.isJsonObject()) {
+			List<String> keys = new ArrayList<>(element.getAsJsonObject().keySet());
+			keys.sort(null);
+			writer.beginObject();
+			for (String key : keys) {
+				writer.name(key);
+				writeCanonical(writer, element.getAsJsonObject().get(key));
+			}
+			writer.endObject();
+		} else if (element.isJsonArray()) {
+			writer.beginArray();
+			for (JsonElement item : element.getAsJsonArray()) {
+				writeCanonical(writer, item);
+			}
+			writer.endArray();
+		} else if (element.isJsonNull()) {
+			writer.nullValue();
+		} else {
+			JsonPrimitive primitive = element.getAsJsonPrimitive();
+			if (primitive.isBoolean()) {
+				writer.value(primitive.getAsBoolean());
+			} else if (primitive.isNumber()) {
+				writer.value(primitive.getAsNumber());
+			} else {
+				writer.value(primitive.getAsString());
+			}
+		}
+	}
+
+	/**
+	 * Read server metadata from a file
+	 * @param file			Server metadata JSON file
+	 * @return				Server metadata
+	 * @throws IOException
+	 */
+	static JsonObject read(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			return JsonParser.parseReader(reader).getAsJsonObject();
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("Malformed JSON in " + file, e);
+		}
+	}
+
+	/**
+	 * Publish the current server metadata as a new revision, with a patch
+	 * from the previous revision. Old patches beyond those kept are deleted.
+	 * @param metaFile		Server metadata file
+	 * @param kept			Number of patches to keep
+	 * @return				Published feed
+	 * @throws IOException
+	 */
+	static MetaFeed publish(Path metaFile, int kept) throws IOException {
+		Path feedFile = Paths.get(metaFile.toString().concat(".feed"));
+		Path patchDir = Paths.get(metaFile.toString().concat(".patches"));
+		Path snapshot = patchDir.resolve(SNAPSHOT);
+		JsonObject meta = read(metaFile);
+		String raw;
+		try (InputStream in = Files.newInputStream(metaFile)) {
+			raw = DigestUtils.sha256Hex(in);
+		}
+		Gson pretty = new GsonBuilder().setPrettyPrinting().create();
+		MetaFeed previous = Files.exists(feedFile)
+				? parse(Files.readString(feedFile, StandardCharsets.UTF_8))
+				: null;
+		long revision = previous == null ? 1 : previous.revision + 1;
+		// No patches are available until there's a snapshot to compare with
+		long oldest = revision + 1;
+		JsonObject base = previous != null && Files.exists(snapshot) ? read(snapshot) : null;
+		// A publish that stopped after saving the snapshot but before writing
+		// the feed leaves the snapshot ahead of the feed. Patches are only made
+		// from a snapshot of the previous revision, so clients can't be patched
+		// to this revision and download it whole instead.
+		if (base != null && canonicalSha256(base).equalsIgnoreCase(previous.sha256)) {
+			JsonObject patch = diff(base, meta, revision);
+			if (patch == null) {
+				// Only the formatting changed
+				MetaFeed feed = new MetaFeed(previous.revision, previous.sha256, raw, previous.oldest);
+				String json = pretty.toJson(feed.toJson());
+				Downloader.writeAtomically(feedFile,
+						tmp -> Files.writeString(tmp, json, StandardCharsets.UTF_8));
+				return feed;
+			}
+			String json = new Gson().toJson(patch);
+			Downloader.writeAtomically(patchDir.resolve(revision + ".json"),
+					tmp -> Files.writeString(tmp, json, StandardCharsets.UTF_8));
+			oldest = Math.max(previous.oldest, revision - kept + 1);
+		}
+		if (previous != null) {
+			for (long old = previous.oldest; old < oldest && old <= previous.revision; old++) {
+				Files.deleteIfExists(patchDir.resolve(old + ".json"));
+			}
+		}
+		Downloader.writeAtomically(snapshot, tmp -> Files.copy(metaFile, tmp));
+		MetaFeed feed = new MetaFeed(revision, canonicalSha256(meta), raw, oldest);
+		// The feed is written last, so clients never see a revision without its patch
+		String json = pretty.toJson(feed.toJson());
+		Downloader.writeAtomically(feedFile,
+				tmp -> Files.writeString(tmp, json, StandardCharsets.UTF_8));
+		return feed;
+	}
+
+	/**
+	 * Publish a new revision of server metadata after editing it.
+	 * Usage: MetaFeed meta.json [patchesKept]
+	 * @param args			Server metadata file, and optionally the number of
+	 * 						patches to keep
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: MetaFeed meta.json [patchesKept]");
+			return;
+		}
+		Path metaFile = Paths.get(args[0].trim());
+		int kept = args.length > 1
+				? Integer.parseInt(args[1].trim())
+				: DEFAULT_KEPT;
+		try {
+			MetaFeed feed = publish(metaFile, kept);
+			System.out.println("Published " + metaFile + " revision " + feed.revision);
+		} catch (IOException | JsonParseException e) {
+			System.err.println("Failed to publish " + metaFile + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.scec.getfile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * The MetaJournal records each change to client metadata as one line of JSON
+ * appended to a journal file beside the client metadata. A change costs a small
+ * append rather than rewriting the whole client metadata file, and changes
+ * survive a crash before the client metadata is next written.
+ * <p>
+ * The client metadata file is a snapshot, and the journal holds the changes
+ * since. Compaction rotates the journal aside, writes a new snapshot, then
+ * deletes the rotated journal. Replaying changes is idempotent, so a rotated
+ * journal left by an interrupted compaction is safely replayed again.
+ * Appends are flushed to the operating system but not synced to the device.
+ * </p>
+ */
+class MetaJournal {
+	private final File journalFile;
+	private final File rotatedFile;
+	private Writer writer;
+	// Changes appended since the last rotation
+	private int entries;
+
+	/**
+	 * MetaJournal constructor
+	 * @param clientMetaFile	Client metadata file the journal is stored beside
+	 */
+	MetaJournal(File clientMetaFile) {
+		this.journalFile = new File(clientMetaFile.getPath().concat(".journal"));
+		this.rotatedFile = new File(journalFile.getPath().concat(".old"));
+	}
+
+	/**
+	 * Record that file[key] was set to value
+	 * @param file			Name of file entry
+	 * @param key			Filedata that changed, i.e. version
+	 * @param value			New value
+	 * @return				Number of changes since the last rotation
+	 * @throws IOException
+	 */
+	synchronized int appendSet(String file, String key, String value) throws IOException {
+		JsonObject change = new JsonObject();
+		change.addProperty("op", "set");
+		change.addProperty("file", file);
+		change.addProperty("key", key);
+		change.addProperty("value", value);
+		return append(change);
+	}
+
+	/**
+	 * Record that a file entry was created or replaced
+	 * @param file			Name of file entry
+	 * @param entry			New file entry
+	 * @return				Number of changes since the last rotation
+	 * @throws IOException
+	 */
+	synchronized int appendNew(String file, JsonObject entry) throws IOException {
+		JsonObject change = new JsonObject();
+		change.addProperty("op", "new");
+		change.addProperty("file", file);
+		change.add("entry", entry.deepCopy());
+		return append(change);
+	}
+
+	/**
+	 * Record that a file entry was deleted
+	 * @param file			Name of file entry
+	 * @return				Number of changes since the last rotation
+	 * @throws IOException
+	 */
+	synchronized int appendDelete(String file) throws IOException {
+		JsonObject change = new JsonObject();
+		change.addProperty("op", "delete");
+		change.addProperty("file", file);
+		return append(change);
+	}
+
+	/**
+	 * Apply journaled changes to a client metadata snapshot, oldest first.
+	 * A change cut short by a crash is ignored along with anything after it.
+	 * @param meta			Snapshot of client metadata to update in place
+	 * @return				Number of changes applied
+	 */
+	synchronized int replay(JsonObject meta) {
+		return replay(rotatedFile, meta) + replay(journalFile, meta);
+	}
+
+	/**
+	 * Move the journal aside before writing a snapshot. Changes made while the
+	 * snapshot is written go to a new journal.
+	 * @throws IOException
+	 */
+	synchronized void rotate() throws IOException {
+		close();
+		if (journalFile.exists()) {
+			if (rotatedFile.exists()) {
+				// A previous snapshot failed, so its changes are still needed
+				Files.write(rotatedFile.toPath(), Files.readAllBytes(journalFile.toPath()),
+						StandardOpenOption.APPEND);
+				Files.delete(journalFile.toPath());
+			} else {
+				Files.move(journalFile.toPath(), rotatedFile.toPath());
+			}
+		}
+		entries = 0;
+	}
+
+	/**
+	 * Delete the rotated journal once a snapshot including it is written.
+	 * @throws IOException
+	 */
+	synchronized void deleteRotated() throws IOException {
+		Files.deleteIfExists(rotatedFile.toPath());
+	}
+
+	/**
+	 * Check for journaled changes not yet in a snapshot
+	 * @return				true if a journal exists on disk
+	 */
+	synchronized boolean exists() {
+		return journalFile.exists() || rotatedFile.exists();
+	}
+
+	/**
+	 * Forget every journaled change, i.e. when the snapshot is replaced by a backup.
+	 * @throws IOException
+	 */
+	synchronized void discard() throws IOException {
+		close();
+		Files.deleteIfExists(journalFile.toPath());
+		Files.deleteIfExists(rotatedFile.toPath());
+		entries = 0;
+	}
+
+	/**
+	 * Append one change and flush it.
+	 * @param change		Change to record
+	 * @return				Number of changes since the last rotation
+	 * @throws IOException
+	 */
+	private int append(JsonObject change) throws IOException {
+		if (writer == null) {
+			writer = new OutputStreamWriter(
+					new FileOutputStream(journalFile, true), StandardCharsets.UTF_8);
+		}
+		writer.write(change.toString());
+		writer.write('\n');
+		writer.flush();
+		return ++entries;
+	}
+
+	/**
+	 * Close the journal file if it's open.
+	 * @throws IOException
+	 */
+	private void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Apply the changes in one journal file.
+	 * @param file			Journal file
+	 * @param meta			Client metadata to update in place
+	 * @return				Number of changes applied
+	 */
+	private static int replay(File file, JsonObject meta) {
+		if (!file.exists()) {
+			return 0;
+		}
+		Path path = file.toPath();
+		int applied = 0;
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) {
+					continue;
+				}
+				apply(JsonParser.parseString(line).getAsJsonObject(), meta);
+				applied++;
+			}
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Ignoring incomplete change in " + file.getName());
+		}
+		return applied;
+	}
+
+	/**
+	 * Apply one change to client metadata.
+	 * @param change		Journaled change
+	 * @param meta			Client metadata to update in place
+	 */
+	private static void apply(JsonObject change, JsonObject meta) {
+		String file = change.get("file").getAsString();
+		switch (change.get("op").getAsString()) {
+			case "set":
+				if (meta.has(file) && meta.get(file).isJsonObject()) {
+					meta.getAsJsonObject(file).addProperty(
+							change.get("key").getAsString(),
+							change.get("value").getAsString());
+				}
+				break;
+			case "new":
+				meta.add(file, change.getAsJsonObject("entry"));
+				break;
+			case "delete":
+				meta.remove(file);
+				break;
+			default:
+				throw new JsonParseException("Unknown change " + change);
+		}
+	}
+}
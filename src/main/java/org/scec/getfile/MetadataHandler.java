@@ -2,157 +2,1002 @@ package org.scec.getfile;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * MetadataHandler handles metadata IO on server and client.
+ * Client metadata may be read and written concurrently by multiple downloads,
+ * so all access to it is synchronized on the MetadataHandler instance.
  */
 class MetadataHandler {
 	// Track instances of MetadataHandler for MetadataHandlerFactory
 	private static final Map<String, MetadataHandler> metaMap = new HashMap<>();
 	// Each unique clientMetaFile has its own FileLock. 1-1 relationship.
 	private static final Map<String, Object> fileLocks = new HashMap<>();
-	private URI serverMetaURI;
+	// Pings every server at once when choosing where to fetch metadata
+	private static final ExecutorService probeExecutor = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable,
+							"getfile-probe-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	// Compacts client metadata journals in the background
+	private static final ExecutorService compactExecutor = Executors.newSingleThreadExecutor(
+			runnable -> {
+				Thread thread = new Thread(runnable, "getfile-journal");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private volatile URI serverMetaURI;
+	// Server metadata links ranked by latency, fastest healthy server first
+	private final List<URI> mirrors;
+	private final Map<URI, Long> mirrorLatency;
+	// Servers that answered that they publish no delta feed, so aren't asked again
+	private final Set<URI> serversWithoutFeed = ConcurrentHashMap.newKeySet();
+	// Most patches of a delta feed fetched at once
+	private static final int CONCURRENT_PATCH_FETCHES = 8;
 	// Names of metadata JSON files
 	private File clientMetaFile;
-	private File serverMetaFile;
+	private volatile File serverMetaFile;
 	// Parsed metadata objects
-	private JsonObject serverMeta;
+	private volatile ShardedCatalog serverMeta;
 	private JsonObject clientMeta;
+	// Digest of clientMeta, kept in step with it for finding changed files
+	private StateDigest.Client clientDigest = new StateDigest.Client();
+	// Digests of downloaded files, stored beside the client metadata
+	private final ContentIndex contentIndex;
+	// Changes to client metadata since it was last written
+	private final MetaJournal journal;
+	// Compaction is scheduled once the journal holds this many changes
+	private static final int COMPACT_THRESHOLD = 1000;
+	private boolean compactionPending;
+	// Lazy backups capturing files before they're replaced, moved or deleted
+	private final List<BackupManager> lazyBackups = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Reads file metadata from server and client and writes client metadata
-	 * as new files are downloaded. Reads fresh server meta on initialization.
+	 * as new files are downloaded. Fetches server meta once on initialization
+	 * from the fastest server to respond, downloading it only if it changed.
 	 * @param clientMetaFile	Reference to local metadata file on client
-	 * @param serverMetaURI		Link to hosted server metadata file to download
+	 * @param serverMetaURIs	Links to hosted server metadata file
 	 */
-	private MetadataHandler(File clientMetaFile, URI serverMetaURI) {
+	private MetadataHandler(File clientMetaFile, List<URI> serverMetaURIs) {
 		// Read client metadata
 		this.clientMetaFile = clientMetaFile;
+		this.journal = new MetaJournal(clientMetaFile);
 		loadClientMeta();
-		// Get a fresh copy of the latest file versions
-		String serverMetaFileName;
-		this.serverMetaURI = serverMetaURI;
-		String path = serverMetaURI.getPath();
-		serverMetaFileName = path.substring(path.lastIndexOf('/') + 1);
-		File cachedServerMetaFile = new File(
-				clientMetaFile.getParent(), serverMetaFileName);
-		File freshServerMetaFile = new File(
-				clientMetaFile.getParent(), "." + serverMetaFileName);
-		int downloadStatusCode = Downloader.downloadFile(serverMetaURI,
-				freshServerMetaFile.toPath(), /*retries=*/3);
-		if (downloadStatusCode == 1) {
-			SimpleLogger.LOG(System.err, "Failed to download server metadata at " + serverMetaURI);
-			if (freshServerMetaFile.exists()) {
-				freshServerMetaFile.delete();
-			}
+		this.contentIndex = new ContentIndex(clientMetaFile);
+		// Fold changes from a previous session into the client metadata
+		if (journal.exists()) {
+			writeClientMetaState();
+		}
+		this.mirrors = new ArrayList<>(serverMetaURIs);
+		this.mirrorLatency = new HashMap<>();
+		// Use the fastest server with a valid copy of the latest file versions
+		MirrorProbe fastest = probeMirrors(serverMetaURIs);
+		if (fastest != null && commitProbe(fastest) == 0) {
+			this.serverMetaURI = fastest.uri;
+			SimpleLogger.LOG(System.out, "Connection established with " + serverMetaURI);
 		} else {
-			try {
-				// Proceed with download if no cache hit
-				if (!cachedServerMetaFile.exists() ||
-					!FileUtils.contentEquals(
-							cachedServerMetaFile, freshServerMetaFile)) {
-					// Overwrite cache with fresh data
-					if (cachedServerMetaFile.exists()) {
-						FileUtils.delete(cachedServerMetaFile);
+			SimpleLogger.LOG(System.err, "Failed to connect to any server. Cache retrieval only.");
+			// Try to use first server even though it's currently failing.
+			// If it works later, it will be used for updating.
+			// Otherwise, cached files can still be retrieved.
+			this.serverMetaURI = serverMetaURIs.get(0);
+		}
+		File cachedServerMetaFile = getCachedServerMetaFile(serverMetaURI);
+		this.serverMetaFile = cachedServerMetaFile.exists() ? cachedServerMetaFile : null;
+		this.serverMeta = loadServerMeta(serverMetaURI);
+	}
+
+	/**
+	 * Fetch the latest server metadata, trying servers in order of their
+	 * ranking rather than probing them all again. Keeps the cached server
+	 * metadata if no server responds.
+	 * @return				0 if server metadata was refreshed or already current
+	 * 						and 1 if no server could provide valid metadata
+	 */
+	int refreshServerMeta() {
+		for (URI uri : getServerMetaURIs()) {
+			MirrorProbe probe = probeMirror(uri);
+			recordProbe(probe);
+			if (probe.status != 1 && commitProbe(probe) == 0) {
+				File cachedServerMetaFile = getCachedServerMetaFile(uri);
+				ShardedCatalog freshServerMeta = loadServerMeta(uri);
+				if (freshServerMeta != null) {
+					this.serverMetaURI = uri;
+					this.serverMetaFile = cachedServerMetaFile;
+					this.serverMeta = freshServerMeta;
+					return 0;
+				}
+			}
+			SimpleLogger.LOG(System.err, "Couldn't connect to " + uri + ".");
+		}
+		SimpleLogger.LOG(System.err, "Failed to refresh server metadata from any server.");
+		return 1;
+	}
+
+	/**
+	 * Load the cached server metadata from a given server. When it's a root
+	 * index of shards, shards not already cached are fetched from the servers
+	 * in order of their ranking and checked against their digests.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Catalog of the server files, or null if unavailable
+	 */
+	private ShardedCatalog loadServerMeta(URI uri) {
+		File cachedServerMetaFile = getCachedServerMetaFile(uri);
+		if (!cachedServerMetaFile.exists()) {
+			return null;
+		}
+		List<ShardedCatalog.Shard> shards;
+		try {
+			shards = ShardedCatalog.readIndex(cachedServerMetaFile);
+		} catch (IOException e) {
+			// A malformed index must not be read as metadata listing no files
+			SimpleLogger.LOG(System.err, e.getMessage());
+			return null;
+		}
+		if (shards == null) {
+			ServerCatalog catalog = ServerCatalog.load(cachedServerMetaFile, getImageFile(uri));
+			return catalog == null ? null : ShardedCatalog.of(List.of(catalog));
+		}
+		File shardDir = getShardDir(uri);
+		// Fetch missing shards at once, since each is small
+		List<CompletableFuture<ServerCatalog>> loads = new ArrayList<>();
+		for (ShardedCatalog.Shard shard : shards) {
+			loads.add(CompletableFuture.supplyAsync(() -> {
+				String name = shard.checksum.getHex().toLowerCase(Locale.ROOT);
+				File shardFile = new File(shardDir, name + ".json");
+				if (!shardFile.exists() && fetchShard(shard, shardFile.toPath()) != 0) {
+					return null;
+				}
+				return ServerCatalog.load(shardFile, new File(shardDir, name + ".image"));
+			}, probeExecutor));
+		}
+		List<ServerCatalog> catalogs = new ArrayList<>();
+		for (CompletableFuture<ServerCatalog> load : loads) {
+			ServerCatalog catalog = load.join();
+			if (catalog == null) {
+				SimpleLogger.LOG(System.err, "Failed to load shards of " + cachedServerMetaFile.getName());
+				return null;
+			}
+			catalogs.add(catalog);
+		}
+		deleteStaleShards(shardDir, shards);
+		return ShardedCatalog.of(catalogs);
+	}
+
+	/**
+	 * Download a shard of server metadata from the first server that has it.
+	 * @param shard			Shard listed in the root index
+	 * @param shardFile		Where the shard is cached
+	 * @return				0 if the shard was downloaded and 1 if no server could provide it
+	 */
+	private int fetchShard(ShardedCatalog.Shard shard, Path shardFile) {
+		for (URI uri : getServerMetaURIs()) {
+			URI shardURI = URI.create(getServerPath(uri).toString().concat(shard.path));
+			if (Downloader.downloadFile(shardURI, shardFile, shard.checksum, null) == 0) {
+				return 0;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Delete cached shards no longer listed in the root index.
+	 * @param shardDir		Directory of cached shards
+	 * @param shards		Shards listed in the root index
+	 */
+	private static void deleteStaleShards(File shardDir, List<ShardedCatalog.Shard> shards) {
+		Set<String> current = new HashSet<>();
+		for (ShardedCatalog.Shard shard : shards) {
+			current.add(shard.checksum.getHex().toLowerCase(Locale.ROOT));
+		}
+		File[] cached = shardDir.listFiles();
+		if (cached == null) {
+			return;
+		}
+		for (File file : cached) {
+			String name = file.getName();
+			int dot = name.indexOf('.');
+			if (!current.contains(dot < 0 ? name : name.substring(0, dot))) {
+				// Fails harmlessly if another instance still has it mapped
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Ping all servers at once, then fetch server metadata only from the
+	 * fastest healthy server, falling back to the next fastest if it fails.
+	 * Slower pings finish in the background to complete the ranking.
+	 * @param uris			Links to hosted server metadata file
+	 * @return				Probe of the server metadata was fetched from, or null if none
+	 */
+	private MirrorProbe probeMirrors(List<URI> uris) {
+		CompletableFuture<URI> fastest = new CompletableFuture<>();
+		AtomicInteger remaining = new AtomicInteger(uris.size());
+		for (URI uri : uris) {
+			CompletableFuture.supplyAsync(() -> pingMirror(uri), probeExecutor)
+				.whenComplete((ping, e) -> {
+					if (ping != null) {
+						recordProbe(ping);
+						if (ping.status != 1) {
+							fastest.complete(uri);
+						}
+					}
+					if (remaining.decrementAndGet() == 0) {
+						fastest.complete(null);
 					}
-					FileUtils.moveFile(freshServerMetaFile, cachedServerMetaFile);
-					SimpleLogger.LOG(System.out, "New files are available to download.");
-				} else {
-					FileUtils.delete(freshServerMetaFile);
-					SimpleLogger.LOG(System.out, "No new files found.");
+				});
+		}
+		URI first = fastest.join();
+		if (first == null) {
+			return null;
+		}
+		List<URI> candidates = new ArrayList<>();
+		candidates.add(first);
+		for (URI uri : getServerMetaURIs()) {
+			if (!candidates.contains(uri) && !hasFailed(uri)) {
+				candidates.add(uri);
+			}
+		}
+		for (URI uri : candidates) {
+			MirrorProbe probe = probeMirror(uri);
+			if (probe.status != 1) {
+				return probe;
+			}
+			reportServerFailure(uri);
+		}
+		return null;
+	}
+
+	/**
+	 * Time how long a server takes to start responding with server metadata.
+	 * The request is conditional on the cached copy from that server, and the
+	 * body of a changed file is abandoned unread, so pinging transfers little.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Outcome of the ping and how long it took, without a file
+	 */
+	private MirrorProbe pingMirror(URI uri) {
+		long start = System.nanoTime();
+		if (getServerMetaFileName(uri).isEmpty()) {
+			SimpleLogger.LOG(System.err, "No server metadata file in " + uri);
+			return new MirrorProbe(uri, 1, 0, null, null, -1);
+		}
+		Map<String, String> validators = readValidators(uri);
+		HttpTransport transport = HttpTransport.shared();
+		try {
+			HttpRequest.Builder request = transport.newRequest(uri).GET();
+			if (validators.containsKey("ETag")) {
+				request.header("If-None-Match", validators.get("ETag"));
+			}
+			if (validators.containsKey("Last-Modified")) {
+				request.header("If-Modified-Since", validators.get("Last-Modified"));
+			}
+			HttpResponse<InputStream> response = transport.stream(request.build());
+			// Closing the body unread cancels the rest of the transfer
+			response.body().close();
+			int status = response.statusCode() == 200 || response.statusCode() == 304 ? 0 : 1;
+			if (status == 1) {
+				SimpleLogger.LOG(System.err, "HTTP " + response.statusCode() + " for " + uri);
+			}
+			return new MirrorProbe(uri, status, System.nanoTime() - start, null, null, -1);
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Couldn't connect to " + uri + ".");
+			return new MirrorProbe(uri, 1, 0, null, null, -1);
+		}
+	}
+
+	/**
+	 * Request server metadata from a server into a unique temporary file.
+	 * Conditional requests let the server skip the transfer when the cache is
+	 * already current.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Outcome of the request and how long it took
+	 */
+	private MirrorProbe probeMirror(URI uri) {
+		long start = System.nanoTime();
+		String serverMetaFileName = getServerMetaFileName(uri);
+		if (serverMetaFileName.isEmpty()) {
+			SimpleLogger.LOG(System.err, "No server metadata file in " + uri);
+			return new MirrorProbe(uri, 1, 0, null, null, -1);
+		}
+		// Validators are only kept for the server the cached copy came from
+		Map<String, String> validators = getCachedServerMetaFile(uri).exists()
+				? readValidators(uri)
+				: new HashMap<>();
+		Path probeFile = null;
+		try {
+			probeFile = Files.createTempFile(Paths.get(clientMetaFile.getParent()),
+					"." + serverMetaFileName + "-", ".probe");
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to create temporary file for " + uri);
+			return new MirrorProbe(uri, 1, 0, null, null, -1);
+		}
+		// Catch up by applying patches when the server publishes a delta feed
+		MetaFeed feed = fetchFeed(uri);
+		int status = feed == null ? 1 : applyFeed(uri, feed, probeFile);
+		long revision = -1;
+		if (status == 0) {
+			// The patched copy no longer matches the server's validators
+			validators = new HashMap<>();
+			revision = feed.revision;
+		} else if (status != Downloader.NOT_MODIFIED) {
+			status = Downloader.downloadFileIfModified(uri, probeFile, validators);
+			if (status == 0 && feed != null && isPublished(probeFile, feed)) {
+				revision = feed.revision;
+			}
+		}
+		MirrorProbe probe = new MirrorProbe(
+				uri, status, System.nanoTime() - start, probeFile, validators, revision);
+		if (status != 0) {
+			probe.discard();
+		}
+		if (status == 1) {
+			SimpleLogger.LOG(System.err, "Couldn't connect to " + uri + ".");
+		}
+		return probe;
+	}
+
+	/**
+	 * Fetch the delta feed published beside server metadata. A server that
+	 * answers it has no feed isn't asked again by this handler.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				The feed, or null if the server doesn't publish one
+	 */
+	private MetaFeed fetchFeed(URI uri) {
+		if (serversWithoutFeed.contains(uri)) {
+			return null;
+		}
+		URI feedURI = MetaFeed.getFeedURI(uri);
+		HttpTransport transport = HttpTransport.shared();
+		try {
+			HttpResponse<InputStream> response = transport.stream(
+					transport.newRequest(feedURI).GET().build());
+			try (InputStream body = response.body()) {
+				if (response.statusCode() == 404 || response.statusCode() == 410) {
+					SimpleLogger.LOG(System.out, "No delta feed at " + feedURI);
+					serversWithoutFeed.add(uri);
+					return null;
 				}
-			} catch (IOException e) {
-				SimpleLogger.LOG(System.err, "IOException reading cache");
-				this.serverMeta = null;
-				e.printStackTrace();
+				if (response.statusCode() != 200) {
+					return null;
+				}
+				return MetaFeed.parse(new String(body.readAllBytes(), StandardCharsets.UTF_8));
 			}
+		} catch (IOException | JsonParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Fetch a patch of a delta feed.
+	 * @param patchURI		Link to the patch
+	 * @return				The patch, or null if it couldn't be fetched
+	 */
+	private static JsonObject fetchPatch(URI patchURI) {
+		try {
+			return JsonParser.parseString(HttpTransport.shared().getString(patchURI))
+					.getAsJsonObject();
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Failed to fetch " + patchURI);
+			return null;
+		}
+	}
+
+	/**
+	 * Bring the cached server metadata up to the latest revision in a feed
+	 * by applying each patch since its cached revision. Patches are fetched
+	 * several at a time and applied in order. The result must match the
+	 * canonical digest in the feed.
+	 * @param uri			Link to hosted server metadata file
+	 * @param feed			Feed published beside it
+	 * @param probeFile		Where the patched server metadata is written
+	 * @return				0 if patched, NOT_MODIFIED if the cache is current,
+	 * 						and 1 if the whole file must be downloaded
+	 */
+	private int applyFeed(URI uri, MetaFeed feed, Path probeFile) {
+		File cachedServerMetaFile = getCachedServerMetaFile(uri);
+		long cached = readRevision(uri);
+		if (!cachedServerMetaFile.exists() || cached <= 0) {
+			return 1;
+		}
+		if (cached == feed.revision) {
+			SimpleLogger.LOG(System.out, "not modified " + uri);
+			return Downloader.NOT_MODIFIED;
+		}
+		if (!feed.canPatch(cached)) {
+			return 1;
+		}
+		// Each fetcher takes every nth patch, so no more than n are requested at once
+		int count = (int) (feed.revision - cached);
+		JsonObject[] patches = new JsonObject[count];
+		int fetchers = Math.min(count, CONCURRENT_PATCH_FETCHES);
+		CompletableFuture<?>[] fetches = new CompletableFuture<?>[fetchers];
+		for (int f = 0; f < fetchers; f++) {
+			int first = f;
+			fetches[f] = CompletableFuture.runAsync(() -> {
+				for (int p = first; p < count; p += fetchers) {
+					patches[p] = fetchPatch(MetaFeed.getPatchURI(uri, cached + 1 + p));
+					if (patches[p] == null) {
+						return;
+					}
+				}
+			}, probeExecutor);
+		}
+		try {
+			JsonObject patched = MetaFeed.read(cachedServerMetaFile.toPath());
+			CompletableFuture.allOf(fetches).join();
+			for (JsonObject patch : patches) {
+				if (patch == null) {
+					return 1;
+				}
+				MetaFeed.apply(patched, patch);
+			}
+			if (!MetaFeed.canonicalSha256(patched).equalsIgnoreCase(feed.sha256)) {
+				SimpleLogger.LOG(System.err, "Patched metadata doesn't match " + MetaFeed.getFeedURI(uri));
+				return 1;
+			}
+			Files.writeString(probeFile, new Gson().toJson(patched));
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Failed to apply patches from " + uri);
+			return 1;
+		}
+		SimpleLogger.LOG(System.out, "patched " + uri + " " + cached + " => " + feed.revision);
+		return 0;
+	}
+
+	/**
+	 * Check whether a download is the server metadata file the feed describes.
+	 * @param file			Downloaded server metadata
+	 * @param feed			Feed fetched before the download
+	 * @return				true if the download is the revision in the feed
+	 */
+	private static boolean isPublished(Path file, MetaFeed feed) {
+		try (InputStream in = Files.newInputStream(file)) {
+			return DigestUtils.sha256Hex(in).equalsIgnoreCase(feed.raw);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read the feed revision of the cached server metadata.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Cached revision, or -1 if unknown
+	 */
+	private long readRevision(URI uri) {
+		try {
+			return Long.parseLong(Files.readString(getRevisionFile(uri).toPath()).trim());
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Save the feed revision of newly cached server metadata.
+	 * @param uri			Link to hosted server metadata file
+	 * @param revision		Cached revision, or -1 if unknown
+	 */
+	private void writeRevision(URI uri, long revision) {
+		File revisionFile = getRevisionFile(uri);
+		try {
+			if (revision < 0) {
+				Files.deleteIfExists(revisionFile.toPath());
+			} else {
+				Files.writeString(revisionFile.toPath(), String.valueOf(revision));
+			}
+		} catch (IOException e) {
+			// Only costs a full download next time
+			SimpleLogger.LOG(System.err, "Failed to write " + revisionFile);
+		}
+	}
+
+	/**
+	 * Replace the cached server metadata with a probe's download, if any.
+	 * @param probe			Successful probe of a server
+	 * @return				0 if the cache is current and 1 if it couldn't be updated
+	 */
+	private int commitProbe(MirrorProbe probe) {
+		if (probe.status == Downloader.NOT_MODIFIED) {
+			SimpleLogger.LOG(System.out, "No new files found.");
+			return 0;
+		}
+		try {
+			Downloader.commit(probe.file, getCachedServerMetaFile(probe.uri).toPath());
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to cache server metadata from " + probe.uri);
+			probe.discard();
+			return 1;
+		}
+		writeValidators(probe.uri, probe.validators);
+		writeRevision(probe.uri, probe.revision);
+		SimpleLogger.LOG(System.out, "Fetched latest server metadata.");
+		return 0;
+	}
+
+	/**
+	 * Rank a server by how quickly it responded. Servers that failed are
+	 * ranked last. Pings set the ranking, while a metadata fetch only ranks
+	 * a server that had none or had failed, as fetches take longer than pings.
+	 * @param probe			Completed ping or probe of a server
+	 */
+	private void recordProbe(MirrorProbe probe) {
+		synchronized (mirrors) {
+			if (probe.status == 1) {
+				mirrorLatency.put(probe.uri, Long.MAX_VALUE);
+			} else if (probe.file == null || hasFailed(probe.uri)) {
+				mirrorLatency.put(probe.uri, probe.nanos);
+			}
+			// Stable sort keeps servers not yet ranked in their given order
+			mirrors.sort(Comparator.comparingLong(
+					uri -> mirrorLatency.getOrDefault(uri, Long.MAX_VALUE - 1)));
+		}
+	}
+
+	/**
+	 * Rank a server last after it failed to provide a file, so other
+	 * servers are tried first without probing them again.
+	 * @param uri			Link to hosted server metadata file
+	 */
+	void reportServerFailure(URI uri) {
+		recordProbe(new MirrorProbe(uri, 1, 0, null, null, -1));
+	}
+
+	/**
+	 * Check whether a server failed when it was last probed.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				true if ranked last for failing
+	 */
+	private boolean hasFailed(URI uri) {
+		synchronized (mirrors) {
+			return mirrorLatency.getOrDefault(uri, 0L) == Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Get links to server metadata, fastest healthy server first.
+	 * @return				Ranked copy of server metadata links
+	 */
+	List<URI> getServerMetaURIs() {
+		synchronized (mirrors) {
+			return new ArrayList<>(mirrors);
+		}
+	}
+
+	/**
+	 * Read the ETag and Last-Modified of the cached server metadata
+	 * from a given server.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Mapping of header name to value
+	 */
+	private Map<String, String> readValidators(URI uri) {
+		Map<String, String> validators = new HashMap<>();
+		JsonObject allValidators = parseValidators(getValidatorsFile(uri));
+		JsonElement uriValidators = allValidators.get(uri.toString());
+		if (uriValidators != null && uriValidators.isJsonObject()) {
+			for (Map.Entry<String, JsonElement> header
+					: uriValidators.getAsJsonObject().entrySet()) {
+				if (header.getValue().isJsonPrimitive()) {
+					validators.put(header.getKey(), header.getValue().getAsString());
+				}
+			}
+		}
+		return validators;
+	}
+
+	/**
+	 * Save the ETag and Last-Modified of newly cached server metadata.
+	 * Servers sharing a file name share the cached copy, so validators of
+	 * other servers are dropped as they no longer describe it.
+	 * @param uri			Link to hosted server metadata file
+	 * @param validators	Mapping of header name to value
+	 */
+	private synchronized void writeValidators(URI uri, Map<String, String> validators) {
+		File validatorsFile = getValidatorsFile(uri);
+		JsonObject allValidators = new JsonObject();
+		JsonObject newValidators = new JsonObject();
+		for (Map.Entry<String, String> validator : validators.entrySet()) {
+			newValidators.addProperty(validator.getKey(), validator.getValue());
+		}
+		allValidators.add(uri.toString(), newValidators);
+		String json = new Gson().toJson(allValidators);
+		try {
+			// Replaced in one step so readers never see a partial file
+			Downloader.writeAtomically(validatorsFile.toPath(), tmp -> Files.writeString(tmp, json));
+		} catch (IOException e) {
+			// Only costs a full download next time
+			SimpleLogger.LOG(System.err, "Failed to write " + validatorsFile);
 		}
-		this.serverMetaFile = cachedServerMetaFile.exists() ? cachedServerMetaFile : null;
-		this.serverMeta = parseJson(serverMetaFile);
+	}
+
+	/**
+	 * Read the validators of every server. A corrupt file is treated as
+	 * having no validators, which only costs a full download.
+	 * @param validatorsFile	File of validators
+	 * @return				Mapping of server metadata link to its validators
+	 */
+	private JsonObject parseValidators(File validatorsFile) {
+		try {
+			JsonObject allValidators = parseJson(validatorsFile);
+			if (allValidators != null) {
+				return allValidators;
+			}
+		} catch (JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Ignoring corrupt " + validatorsFile.getName());
+		}
+		return new JsonObject();
+	}
+
+	/**
+	 * Get where validators for cached server metadata are stored.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Validators file
+	 */
+	private File getValidatorsFile(URI uri) {
+		return new File(clientMetaFile.getParent(),
+				"." + getServerMetaFileName(uri) + ".validators");
+	}
+
+	/**
+	 * Get where the feed revision of cached server metadata is stored.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Revision file
+	 */
+	private File getRevisionFile(URI uri) {
+		return new File(clientMetaFile.getParent(),
+				"." + getServerMetaFileName(uri) + ".revision");
+	}
+
+	/**
+	 * Get where the binary image of cached server metadata is stored.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Image file
+	 */
+	private File getImageFile(URI uri) {
+		return new File(clientMetaFile.getParent(),
+				"." + getServerMetaFileName(uri) + ".image");
+	}
+
+	/**
+	 * Get where shards of server metadata from a given server are cached.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Shard directory
+	 */
+	private File getShardDir(URI uri) {
+		return new File(clientMetaFile.getParent(),
+				"." + getServerMetaFileName(uri) + ".shards");
+	}
+
+	/**
+	 * Get where metadata from a given server is cached on the client.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				Cached server metadata file
+	 */
+	private File getCachedServerMetaFile(URI uri) {
+		return new File(clientMetaFile.getParent(), getServerMetaFileName(uri));
+	}
+
+	/**
+	 * Get the name of the server metadata file in a link.
+	 * @param uri			Link to hosted server metadata file
+	 * @return				File name, or empty string if the link has none
+	 */
+	private static String getServerMetaFileName(URI uri) {
+		String path = uri.getPath() == null ? "" : uri.getPath();
+		return path.substring(path.lastIndexOf('/') + 1);
 	}
 	
 	/**
 	 * The MetadataHandlerFactory ensures that a new instance is only created
 	 * if there isn't already another MetadataHandler instance for the same
-	 * clientMetaFile.
+	 * clientMetaFile. Server metadata is only fetched when a new instance is created.
 	 * @param clientMetaFile
-	 * @param serverMetaURI
+	 * @param serverMetaURIs
 	 * @return
 	 */
-	static MetadataHandler MetadataHandlerFactory(
-			File clientMetaFile, URI serverMetaURI) {
+	static synchronized MetadataHandler MetadataHandlerFactory(
+			File clientMetaFile, List<URI> serverMetaURIs) {
 		String path = clientMetaFile.getAbsolutePath();
 		if (metaMap.containsKey(path)) {
 			return metaMap.get(path);
 		}
-		MetadataHandler newInstance = new MetadataHandler(clientMetaFile, serverMetaURI);
+		MetadataHandler newInstance = new MetadataHandler(clientMetaFile, serverMetaURIs);
 		metaMap.put(path, newInstance);
 		return newInstance;
 	}
 
 	/**
-	 * Read cached file metadata from server
+	 * Outcome of requesting server metadata from one server.
+	 */
+	private static class MirrorProbe {
+		final URI uri;
+		// 0 if downloaded, NOT_MODIFIED if cache is current, 1 if failed
+		final int status;
+		final long nanos;
+		final Path file;
+		final Map<String, String> validators;
+		// Revision of the delta feed downloaded, or -1 if unknown
+		final long revision;
+
+		MirrorProbe(URI uri, int status, long nanos, Path file,
+				Map<String, String> validators, long revision) {
+			this.uri = uri;
+			this.status = status;
+			this.nanos = nanos;
+			this.file = file;
+			this.validators = validators;
+			this.revision = revision;
+		}
+
+		/**
+		 * Delete the temporary file holding this probe's download.
+		 */
+		void discard() {
+			if (file == null) {
+				return;
+			}
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + file);
+			}
+		}
+	}
+
+	/**
+	 * Get the version of a server file from cached server metadata
 	 * @param file		Key in the meta.json file. Not necessarily filename.
-	 * @param key		Filedata to lookup, i.e. path, version
-	 * @return			Value corresponding to key in JSON
+	 * @return			Latest version, or null if server metadata has none
 	 */
-	String getServerMeta(String file, String key) {
-		return getMetaImpl(file, key, serverMeta);
+	String getServerVersion(String file) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? null : catalog.getVersion(index);
 	}
 
 	/**
-	 * Read file metadata from client
+	 * Get the location of a server file from cached server metadata
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @return			Path relative to the server root,
+	 * 					or null if server metadata has none
+	 */
+	String getServerFilePath(String file) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? null : catalog.getPath(index);
+	}
+
+	/**
+	 * Compare the location of a server file with a path without rebuilding it
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @param path		Path relative to the server root, or null
+	 * @return			true if server metadata has the same path, or both have none
+	 */
+	boolean serverPathEquals(String file, String path) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? path == null : catalog.pathEquals(index, path);
+	}
+
+	/**
+	 * Compare the expected checksum of a server file with a digest without
+	 * decoding it
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @param checksum	Digest to compare with, or null
+	 * @return			true if server metadata has the same algorithm and digest
+	 */
+	boolean serverChecksumMatches(String file, Checksum checksum) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index >= 0 && catalog.checksumMatches(index, checksum);
+	}
+
+	/**
+	 * Get the expected checksum of a server file from server metadata.
+	 * Prefers SHA-256 over MD5 when both are provided.
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @return			Expected checksum, or null if server metadata has none
+	 * 					and the `.md5` file on server must be used
+	 */
+	Checksum getServerChecksum(String file) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? null : catalog.getChecksum(index);
+	}
+
+	/**
+	 * Get the size of a server file from server metadata.
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @return			Size in bytes, or -1 if server metadata has none
+	 */
+	long getServerSize(String file) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? -1 : catalog.getSize(index);
+	}
+
+	/**
+	 * Get the location of the block index of a server file, which allows
+	 * updating it by downloading only the blocks that changed.
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @return			Path of the block index relative to the server root,
+	 * 					or null if the server doesn't publish one
+	 */
+	String getServerBlocks(String file) {
+		return getServerExtra(file, "blocks");
+	}
+
+	/**
+	 * Get the location of a gzip-compressed copy of a server file.
+	 * @param file		Key in the meta.json file. Not necessarily filename.
+	 * @return			Path of the compressed copy relative to the server root,
+	 * 					or null if the server doesn't publish one
+	 */
+	String getServerGzip(String file) {
+		return getServerExtra(file, "gzip");
+	}
+
+	/**
+	 * Get the version of a client file
 	 * @param file		Key in the getfile.json file. Not necessarily filename.
-	 * @param key		Filedata to lookup, i.e. path, version
-	 * @return			Value corresponding to key in JSON
+	 * @return			Downloaded version, empty if never downloaded,
+	 * 					or null if client metadata has no entry for the file
+	 */
+	synchronized String getClientVersion(String file) {
+		return getClientField(file, "version");
+	}
+
+	/**
+	 * Get the location of a client file
+	 * @param file		Key in the getfile.json file. Not necessarily filename.
+	 * @return			Path relative to the client metadata file,
+	 * 					or null if client metadata has none
 	 */
-	String getClientMeta(String file, String key) {
-		return getMetaImpl(file, key, clientMeta);
+	synchronized String getClientFilePath(String file) {
+		return getClientField(file, "path");
+	}
+
+	/**
+	 * Get whether the user is prompted before a client file is updated
+	 * @param file		Key in the getfile.json file. Not necessarily filename.
+	 * @return			Whether to prompt, or null to use the default
+	 */
+	synchronized Boolean getClientPrompt(String file) {
+		String prompt = getClientField(file, "prompt");
+		if (prompt == null || prompt.isEmpty()) {
+			return null;
+		}
+		if (prompt.equals("true")) {
+			return Boolean.TRUE;
+		}
+		if (!prompt.equals("false")) {
+			SimpleLogger.LOG(System.err,
+					"Invalid prompt value " + prompt + ". Assuming \"false\"");
+		}
+		return Boolean.FALSE;
 	}
 	
+	/**
+	 * Get the current server metadata. It's replaced, never modified, when
+	 * server metadata is refreshed.
+	 * @return			Catalog of the server files, or null if unavailable
+	 */
+	ShardedCatalog getServerCatalog() {
+		return serverMeta;
+	}
+
 	/**
 	 * Get keynames for files on server
 	 * @return
 	 */
 	Set<String> getServerFiles() {
-		if (serverMeta == null) {
+		ShardedCatalog catalog = serverMeta;
+		if (catalog == null) {
 			return new HashSet<String>();
 		}
-		return serverMeta.keySet();
+		return catalog.keySet();
 	}
 	
 	/**
-	 * Get keynames for files on client
+	 * Get keynames of files whose client entry differs from the server entry in
+	 * version or path, including files found on only one of them. Every other
+	 * file is already up to date. Only the key ranges that differ are compared.
+	 * @param catalog	Server metadata from getServerCatalog, or null if none
+	 * @return			Changed keynames in sorted order
+	 */
+	Set<String> getChangedFiles(ShardedCatalog catalog) {
+		StateDigest server = catalog == null
+				? new StateDigest.Client()
+				: catalog.getDigest();
+		synchronized (this) {
+			return StateDigest.diff(clientDigest, server);
+		}
+	}
+
+	/**
+	 * Get keynames for files on client.
+	 * Returns a copy so callers may iterate while files are being updated.
 	 * @return
 	 */
-	Set<String> getClientFiles() {
+	synchronized Set<String> getClientFiles() {
 		if (clientMeta == null) {
 			return new HashSet<String>();
 		}
-		return clientMeta.keySet();
+		return new LinkedHashSet<String>(clientMeta.keySet());
 	}
 	
 	/**
-	 * Loads client metadata from file into memory.
+	 * Loads client metadata from file into memory, along with any changes
+	 * journaled since the file was written.
 	 * Can be done multiple times to load fresh changes made directly to file.
 	 */
-	void loadClientMeta() {
+	synchronized void loadClientMeta() {
 		clientMeta = parseJson(clientMetaFile);
+		if (clientMeta != null) {
+			journal.replay(clientMeta);
+		}
+		digestClientMeta();
+	}
+
+	/**
+	 * Replace the client metadata with a backup of it. Changes journaled
+	 * since the backup are discarded.
+	 * @param backup		Backup of the client metadata file, moved into place
+	 * @throws IOException
+	 */
+	void restoreClientMeta(File backup) throws IOException {
+		synchronized(getLock(clientMetaFile)) {
+			synchronized(this) {
+				journal.discard();
+				Files.move(backup.toPath(), clientMetaFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+				clientMeta = parseJson(clientMetaFile);
+				digestClientMeta();
+			}
+		}
 	}
 
 	/**
@@ -171,11 +1016,57 @@ class MetadataHandler {
 		return clientMetaFile;
 	}
 	
+	/**
+	 * Get the index of digests of files downloaded for this client metadata
+	 * @return
+	 */
+	ContentIndex getContentIndex() {
+		return contentIndex;
+	}
+	
+	/**
+	 * Start notifying a lazy backup before tracked files change
+	 * @param backup		Lazy backup to notify
+	 */
+	void registerLazyBackup(BackupManager backup) {
+		if (!lazyBackups.contains(backup)) {
+			lazyBackups.add(backup);
+		}
+	}
+
+	/**
+	 * Stop notifying a backup before tracked files change
+	 * @param backup		Backup that is no longer lazy
+	 */
+	void unregisterLazyBackup(BackupManager backup) {
+		lazyBackups.remove(backup);
+	}
+
+	/**
+	 * Must be invoked before a tracked file is replaced, moved or deleted,
+	 * so lazy backups can capture its previous contents.
+	 * @param file			Tracked file about to change
+	 */
+	void beforeChange(Path file) {
+		for (BackupManager backup : lazyBackups) {
+			backup.capture(file);
+		}
+	}
+	
 	/**
 	 * Get link where all server files in hosted metadata file are stored
 	 * @return
 	 */
 	URI getServerPath() {
+		return getServerPath(serverMetaURI);
+	}
+
+	/**
+	 * Get link where all server files are stored for a given server
+	 * @param serverMetaURI	Link to hosted server metadata file
+	 * @return
+	 */
+	static URI getServerPath(URI serverMetaURI) {
 		// Get the path part of the URI and find the last slash index
 		String path = serverMetaURI.getPath();
 		int lastSlashIndex = path.lastIndexOf('/');
@@ -202,13 +1093,20 @@ class MetadataHandler {
 	 * @param key
 	 * @param value
 	 */
-	void setClientMeta(String file, String key, String value) {
+	synchronized void setClientMeta(String file, String key, String value) {
 		try {
 			// Update the file value in memory
 			((JsonObject) clientMeta.get(file)).addProperty(key, value);
 		} catch (NullPointerException e) {
 			e.printStackTrace();
 			SimpleLogger.LOG(System.err, "Failed to set " + file + "[" + key + "]");
+			return;
+		}
+		digestClientEntry(file);
+		try {
+			journaled(journal.appendSet(file, key, value));
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to journal " + file + "[" + key + "]");
 		}
 	}
 	
@@ -216,35 +1114,80 @@ class MetadataHandler {
 	 * Create a new JsonObject for the client metadata in memory.
 	 * Must invoke writeClientMetaState to write to disk.
 	 * @param file	Name of new JsonObject entry
+	 * @param path	Path of the file relative to the client metadata file, or null
 	 */
-	void newClientEntry(String file) {
+	synchronized void newClientEntry(String file, String path) {
 		JsonObject newFileEntry = new JsonObject();
 		newFileEntry.addProperty("version", "");
-		newFileEntry.addProperty("path", getServerMeta(file, "path"));
+		newFileEntry.addProperty("path", path == null ? "" : path);
 		// newFileEntry.addProperty("prompt", String.valueOf(promptByDefault));
 		clientMeta.add(file, newFileEntry);
+		digestClientEntry(file);
+		try {
+			journaled(journal.appendNew(file, newFileEntry));
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to journal new entry " + file);
+		}
 	}
 	
 	/**
 	 * Delete from JsonObject. Used in DeleteFile class.
 	 * @param file	Name of file entry
 	 */
-	void deleteClientEntry(String file) {
+	synchronized void deleteClientEntry(String file) {
 		if (clientMeta.has(file)) {
 			clientMeta.remove(file);
+			clientDigest.remove(file);
+			try {
+				journaled(journal.appendDelete(file));
+			} catch (IOException e) {
+				SimpleLogger.LOG(System.err, "Failed to journal deletion of " + file);
+			}
+		}
+	}
+
+	/**
+	 * Schedule compaction in the background once the journal grows large.
+	 * @param entries		Number of changes in the journal
+	 */
+	private synchronized void journaled(int entries) {
+		if (entries >= COMPACT_THRESHOLD && !compactionPending) {
+			compactionPending = true;
+			compactExecutor.execute(this::writeClientMetaState);
 		}
 	}
 	
 	/**
 	 * Push current state of clientMeta in memory to the client meta file on disk.
+	 * The content index is written alongside it.
+	 * The file is replaced atomically, and the journal of changes it now
+	 * includes is deleted.
 	 */
 	void writeClientMetaState() {
+		contentIndex.write();
 		synchronized(getLock(clientMetaFile)) {
-			Gson gson = new GsonBuilder().setPrettyPrinting().create();
-			// Parse json and merge with current meta before writing
-			try (FileWriter writer = new FileWriter(clientMetaFile)) {
-				gson.toJson(clientMeta, writer);
+			String json;
+			synchronized(this) {
+				compactionPending = false;
+				if (clientMeta == null) {
+					return;
+				}
+				Gson gson = new GsonBuilder().setPrettyPrinting().create();
+				json = gson.toJson(clientMeta);
+				try {
+					// Changes made while the snapshot is written go to a new journal
+					journal.rotate();
+				} catch (IOException e) {
+					e.printStackTrace();
+					SimpleLogger.LOG(System.err, "Failed to write clientMeta to disk");
+					return;
+				}
+			}
+			try {
+				Downloader.writeAtomically(clientMetaFile.toPath(), tmp -> Files.writeString(tmp, json));
+				journal.deleteRotated();
 			} catch (IOException e) {
+				// The rotated journal is kept and replayed on the next load
 				e.printStackTrace();
 				SimpleLogger.LOG(System.err, "Failed to write clientMeta to disk");
 			}
@@ -252,20 +1195,51 @@ class MetadataHandler {
 	}
 
 	/**
-	 * Shared logic for reading key-value pairs in file entry JsonObject.
-	 * @param file		Key in the meta JSON file. Not necessarily filename.
+	 * Rebuild the digest of the client metadata after it's replaced.
+	 */
+	private void digestClientMeta() {
+		clientDigest = new StateDigest.Client();
+		if (clientMeta == null) {
+			return;
+		}
+		for (String file : clientMeta.keySet()) {
+			digestClientEntry(file);
+		}
+	}
+
+	/**
+	 * Update the digest of a client file entry after it changes.
+	 * @param file		Key in the getfile.json file. Not necessarily filename.
+	 */
+	private void digestClientEntry(String file) {
+		clientDigest.put(file, getClientField(file, "version"), getClientField(file, "path"));
+	}
+
+	/**
+	 * Read a field of a client file entry without copying it.
+	 * @param file		Key in the getfile.json file. Not necessarily filename.
 	 * @param key		Filedata to lookup, i.e. path, version
-	 * @param meta		Which metadata to consider
-	 * @return			Value corresponding to key in JSON or empty string if not found.
+	 * @return			Value of the field, or null if the entry or field is missing
 	 */
-	String getMetaImpl(String file, String key, JsonObject meta) {
-		try {
-			return ((JsonObject) meta.get(file))
-				.get(key).toString().replaceAll("\"", "");
-		} catch (NullPointerException e) {
-			SimpleLogger.LOG(System.err, file +"." + key + " not found in meta"); 
-			return "";
+	private String getClientField(String file, String key) {
+		JsonElement entry = clientMeta == null ? null : clientMeta.get(file);
+		if (entry == null || !entry.isJsonObject()) {
+			return null;
 		}
+		JsonElement value = entry.getAsJsonObject().get(key);
+		return value == null || !value.isJsonPrimitive() ? null : value.getAsString();
+	}
+
+	/**
+	 * Read a server file field that has no typed accessor.
+	 * @param file		Key in the meta JSON file. Not necessarily filename.
+	 * @param key		Filedata to lookup, i.e. blocks, gzip
+	 * @return			Value of the field, or null if the entry or field is missing
+	 */
+	private String getServerExtra(String file, String key) {
+		ShardedCatalog catalog = serverMeta;
+		int index = catalog == null ? -1 : catalog.indexOf(file);
+		return index < 0 ? null : catalog.getExtra(index, key);
 	}
 
 	/**
@@ -291,7 +1265,7 @@ class MetadataHandler {
 	 * Returns the fileLock for the clientMetaFile
 	 * @return
 	 */
-	private static Object getLock(File file) {
+	private static synchronized Object getLock(File file) {
 		String filePath = file.getAbsolutePath();
 		if (fileLocks.containsKey(filePath)) {
 			return fileLocks.get(filePath);
@@ -0,0 +1,129 @@
+package org.scec.getfile;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * The ObjectStore keeps one copy of each unique file downloaded by GetFile,
+ * named by its digest. Tracked files are hard links to objects in the store,
+ * so byte-identical files across keys and GetFile instances share disk space,
+ * and a file already in the store is never downloaded again.
+ * Where hard links aren't supported, such as across filesystems, files are
+ * copied instead.
+ * <p>
+ * Tracked files share their content with the store, so they must be replaced
+ * rather than modified in place. GetFile always replaces files by renaming.
+ * </p>
+ */
+class ObjectStore {
+	private final Path root;
+
+	/**
+	 * ObjectStore constructor
+	 * @param root			Directory holding the objects
+	 */
+	ObjectStore(Path root) {
+		this.root = root.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Get the location of an object in the store. Objects are grouped by
+	 * algorithm and the first two hex digits of their digest, so no single
+	 * directory grows too large.
+	 * Digests that aren't hex of the algorithm's length are rejected, so a
+	 * checksum from the server can never name a path outside the store.
+	 * @param checksum		Digest of the object
+	 * @return				Path of the object, which may not exist,
+	 * 						or null if the digest is malformed
+	 */
+	Path getObject(Checksum checksum) {
+		if (!checksum.isWellFormed()) {
+			SimpleLogger.LOG(System.err, "Ignoring malformed checksum " + checksum);
+			return null;
+		}
+		String hex = checksum.getHex().toLowerCase(Locale.ROOT);
+		String algorithm = checksum.getAlgorithm().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+		return root.resolve(algorithm).resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	/**
+	 * Place a stored object at a tracked location, replacing any file there.
+	 * @param checksum		Digest of the wanted content
+	 * @param target		Where the content should be
+	 * @return				true if the object was in the store and placed at target
+	 */
+	boolean materialize(Checksum checksum, Path target) {
+		Path object = getObject(checksum);
+		if (object == null || !Files.isRegularFile(object)) {
+			return false;
+		}
+		Path tmp = Paths.get(target.toString().concat(".link"));
+		try {
+			if (target.getParent() != null) {
+				Files.createDirectories(target.getParent());
+			}
+			Files.deleteIfExists(tmp);
+			link(object, tmp);
+			Downloader.commit(tmp, target);
+			SimpleLogger.LOG(System.out, "Linked " + target + " => " + object);
+			return true;
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to link " + target + " => " + object);
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException deleteException) {
+				SimpleLogger.LOG(System.err, "Failed to delete " + tmp);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Add a validated file to the store, unless its content is already stored.
+	 * @param file			Downloaded file
+	 * @param checksum		Digest of the file
+	 */
+	void add(Path file, Checksum checksum) {
+		Path object = getObject(checksum);
+		if (object == null || Files.exists(object)) {
+			return;
+		}
+		try {
+			Files.createDirectories(object.getParent());
+			link(file, object);
+		} catch (FileAlreadyExistsException e) {
+			// Another download stored the same content first
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to store " + file + " as " + object);
+		}
+	}
+
+	/**
+	 * Create a hard link, or a copy if the filesystem can't link the files.
+	 * Copies are written beside the link and renamed into place, so a
+	 * partially copied object is never visible.
+	 * @param existing		File to link to
+	 * @param link			Path of the new link, which must not exist
+	 * @throws IOException
+	 */
+	private static void link(Path existing, Path link) throws IOException {
+		try {
+			Files.createLink(link, existing);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException | UnsupportedOperationException e) {
+			Path tmp = Files.createTempFile(link.getParent(), "." + link.getFileName(), ".tmp");
+			try {
+				Files.copy(existing, tmp, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tmp, link);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+}
@@ -1,28 +1,74 @@
 package org.scec.getfile;
 
 import java.io.File;
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.SwingUtilities;
-import javax.swing.SwingWorker;
-
-import java.lang.Math;
-
-import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.ImmutablePair;
+import javax.swing.Timer;
 
 /**
- * The ProgressTracker updates a CalcProgressBar with download data.
+ * The ProgressTracker is the GetFileListener that shows the progress of every
+ * download of an update in a single CalcProgressBar, with the bytes downloaded
+ * of the total, the rate and the time remaining.
+ * <p>
+ * Events update counts in memory, and the dialog is refreshed on the event
+ * dispatch thread from those counts alone, so no network or disk I/O runs on
+ * the EDT. CalcProgressBar isn't loaded until there is progress to show.
+ * </p>
  */
-class ProgressTracker {
+class ProgressTracker implements GetFileListener {
+	// Milliseconds between refreshes of the dialog
+	private static final int REFRESH_MILLIS = 200;
+	// Weight of the latest rate in the smoothed rate
+	private static final double RATE_SMOOTHING = 0.3;
+	private static final int FILE_KEY_LEN = 24;
+
 	private MetadataHandler meta;
 	private String appName;
 
+	// Files expected or being downloaded in the current batch
+	private final Map<String, FileProgress> files = new HashMap<>();
+	// Open batches. The batch ends when the last one closes.
+	private int batches;
+	// Expected bytes of the current batch
+	private long totalBytes;
+	// Bytes written so far in the current batch
+	private final AtomicLong receivedBytes = new AtomicLong();
+	private volatile String currentFile;
+
+	// Only accessed on the EDT
+	private Timer timer;
+	private CalcProgressBar dialog;
+	private long lastReceived;
+	private long lastNanos;
+	private double rate;
+
+	/**
+	 * Progress of one file in the current batch.
+	 */
+	private static class FileProgress {
+		// Expected size in bytes, or 0 if unknown
+		final long expected;
+		// Whether the file opened a batch of its own
+		final boolean ownBatch;
+		final AtomicLong received = new AtomicLong();
+
+		FileProgress(long expected, boolean ownBatch) {
+			this.expected = expected;
+			this.ownBatch = ownBatch;
+		}
+
+		/**
+		 * Bytes the file adds to the batch total. A file of unknown size
+		 * adds the bytes received so far.
+		 */
+		long counted() {
+			return expected == 0 ? received.get() : expected;
+		}
+	}
+
 	/**
 	 * ProgressTracker Constructor
 	 * @param meta
@@ -33,142 +79,203 @@ class ProgressTracker {
 		this.appName = appName;
 	}
 
+	@Override
+	public synchronized void updateStarted(UpdatePlan plan) {
+		openBatch();
+		// Downloads of unknown size are counted as their bytes arrive
+		for (UpdatePlan.Download download : plan.getDownloads()) {
+			expect(download.getFileKey(), Math.max(0, download.getSize()), false);
+		}
+	}
+
+	@Override
+	public synchronized void updateFinished(UpdatePlan plan) {
+		closeBatch();
+	}
+
+	/**
+	 * A file outside any update is shown as a batch of its own. A file of
+	 * unknown size is counted as its bytes arrive.
+	 */
+	@Override
+	public void downloadStarted(String fileKey, long size) {
+		long expected = Math.max(0, size);
+		synchronized (this) {
+			FileProgress file = files.get(fileKey);
+			if (file == null) {
+				openBatch();
+				expect(fileKey, expected, true);
+			} else if (file.expected == 0) {
+				expect(fileKey, expected, file.ownBatch);
+			}
+		}
+		currentFile = fileKey;
+	}
+
+	@Override
+	public synchronized void bytesProgressed(String fileKey, long bytes, long size) {
+		FileProgress file = files.get(fileKey);
+		if (file != null) {
+			long counted = file.counted();
+			receivedBytes.addAndGet(bytes - file.received.getAndSet(bytes));
+			totalBytes += file.counted() - counted;
+		}
+	}
+
 	/**
-	 * Gets the size of a file on server in bytes.
-	 * @param fileKey	Key in server metadata corresponding to server file
-	 * @return			size in bytes or 0 if not found
+	 * Files committed without a download leave the total.
 	 */
-	long getFileSize(String fileKey) {
-		final String path = meta.getServerMeta(fileKey, "path");
-		if (path.equals("")) {
-			SimpleLogger.LOG(System.err,
-					"File key \"" + fileKey + "\" does not exist in server meta");
-			return 0;
-		}
-		URI serverLoc = URI.create(
-				meta.getServerPath().toString().concat(path));
-		try {
-			HttpURLConnection connection =
-					(HttpURLConnection)serverLoc.toURL().openConnection();
-			connection.setRequestMethod("HEAD");
-			return connection.getContentLengthLong();
-		} catch (MalformedURLException e) {
-			SimpleLogger.LOG(System.err, "URL is invalid " + serverLoc);
-			e.printStackTrace();
-		} catch (IOException e) {
-			SimpleLogger.LOG(System.err, "Could not read " + serverLoc);
-			e.printStackTrace();
-		}
-		return 0;
-	}
-	
+	@Override
+	public void fileCommitted(String fileKey, String version, File file) {
+		finishFile(fileKey);
+	}
+
+	@Override
+	public void downloadFailed(String fileKey, String reason) {
+		finishFile(fileKey);
+	}
+
 	/**
-	 * Gets the current progress of a download in representable `chunks`.
-	 * As file downloads become very large, it becomes infeasible to show
-	 * progress without chunking into larger groups. This is used to show
-	 * the progress bar in updateProgress.
-	 * @param count		Number of bytes downloaded
-	 * @param total		Number of bytes total
-	 * @return			A pair of chunks downloaded and total chunks
+	 * Stop tracking a file once it's updated or failed. The total is
+	 * corrected to the bytes the file actually took.
+	 * @param fileKey		Key of the file
 	 */
-	private Pair<Long, Long> chunkProgress(long count, long total) {
-		if (count > total || count < 0 || total < 0) {
-			SimpleLogger.LOG(System.err, "Unable to parse progress "
-					+ count + " / " + total);
-			return null;
+	private synchronized void finishFile(String fileKey) {
+		FileProgress file = files.remove(fileKey);
+		if (file == null) {
+			return;
 		}
-		final long NUM_CHUNKS = (long) 1e3;
-		if (total <= NUM_CHUNKS) {
-			return ImmutablePair.of(count, total);
+		totalBytes += file.received.get() - file.counted();
+		if (file.ownBatch) {
+			closeBatch();
 		}
-		return ImmutablePair.of(NUM_CHUNKS * count / total, NUM_CHUNKS);
 	}
 
 	/**
-	 * Monitoring thread will run this to track the status of a file update
-	 * and update the CalcProgressBar to show user the status.
-	 * @param fileKey		Name of file key in metadata
+	 * Add a file to the current batch, replacing any earlier expectation.
+	 * @param fileKey		Key of the file
+	 * @param expected		Expected size in bytes, or 0 if unknown
+	 * @param ownBatch		Whether the file opened a batch of its own
+	 * @return				Progress of the file
 	 */
-	void updateProgress(String fileKey) {
-		SwingUtilities.invokeLater(() -> {
-			CalcProgressBar progress = new CalcProgressBar(
-				/*owner=*/null,
-				/*title=*/"Downloading " + appName + " Files",
-				/*info=*/"downloading " + fileKey,
-				/*visible=*/false);
-			final long fileSizeBytes = getFileSize(fileKey);
-			if (fileSizeBytes <= 0) {
-				progress.dispose();
-				return;
-			}
+	private FileProgress expect(String fileKey, long expected, boolean ownBatch) {
+		FileProgress file = new FileProgress(expected, ownBatch);
+		FileProgress previous = files.put(fileKey, file);
+		if (previous != null) {
+			totalBytes -= previous.counted();
+			file.received.set(previous.received.get());
+		}
+		totalBytes += file.counted();
+		return file;
+	}
+
+	/**
+	 * Open a batch, starting a new count and the dialog if none is open.
+	 */
+	private void openBatch() {
+		if (batches++ == 0) {
+			files.clear();
+			totalBytes = 0;
+			receivedBytes.set(0);
+			SwingUtilities.invokeLater(this::startRefresh);
+		}
+	}
+
+	/**
+	 * Close a batch. The dialog closes on its next refresh once none are open.
+	 */
+	private void closeBatch() {
+		batches--;
+	}
+
+	/**
+	 * Start refreshing the dialog. Runs on the EDT.
+	 */
+	private void startRefresh() {
+		if (timer != null) {
+			return;
+		}
+		lastReceived = 0;
+		lastNanos = System.nanoTime();
+		rate = 0;
+		timer = new Timer(REFRESH_MILLIS, event -> refresh());
+		timer.start();
+	}
 
-			File file = new File(
-				meta.getClientMetaFile().getParent(),
-				meta.getClientMeta(fileKey, "path"));
-			File partial = new File(file.toString().concat(".part"));
-
-			// Define SwingWorker for background processing
-			SwingWorker<Void, Long> worker = new SwingWorker<>() {
-				@Override
-				protected Void doInBackground() throws Exception {
-					// Show progress until the download completes
-					while (partial.exists()) {
-						publish(partial.length());
-						Thread.sleep(200); // Non-EDT sleep
-					}
-					return null;
-				}
-
-				@Override
-				protected void process(List<Long> chunks) {
-					// Update progress bar on the EDT
-					long totalBytesDownloaded = chunks.get(chunks.size() - 1);
-					Pair<Long, Long> chunkedProgress =
-							ProgressTracker.this.chunkProgress(
-									totalBytesDownloaded, fileSizeBytes);
-					final int FILE_KEY_LEN = 24;
-					// Update the progress bar using the chunked progress
-					progress.updateProgress(
-						chunkedProgress.getLeft(), chunkedProgress.getRight(),
-						((fileKey.length() <= FILE_KEY_LEN)
-							? fileKey
-							: fileKey.substring(0, FILE_KEY_LEN))
-							+ ": "
-							+ (int) Math.round(totalBytesDownloaded / 1e6) + " of "
-							+ (int) Math.round(fileSizeBytes / 1e6) + " MB downloaded"
-					);
-				}
-
-				@Override
-				protected void done() {
-					progress.showProgress(false);
-				}
-			};
-			
-			// Check for the .part file in a background thread (not on the EDT)
-			CompletableFuture.runAsync(() -> {
-				try {
-					for (int i = 0; i < 4; i++) {
-						if (partial.exists()) break;
-						Thread.sleep(1000);
-					}
-					if (partial.exists()) {
-						SwingUtilities.invokeLater(() -> {
-							progress.showProgress(true);
-							worker.execute();
-						});
-					} else {
-						SwingUtilities.invokeLater(() -> {
-							progress.showProgress(false);
-						});
-					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
-			});
-			if (progress.isDisplayable()) {
-			    progress.dispose();
+	/**
+	 * Show the latest counts in the dialog, or close it once every batch has
+	 * ended. Runs on the EDT and only reads counts kept in memory.
+	 */
+	private void refresh() {
+		long total;
+		boolean active;
+		synchronized (this) {
+			total = totalBytes;
+			active = batches > 0;
+		}
+		if (!active) {
+			timer.stop();
+			timer = null;
+			if (dialog != null) {
+				dialog.showProgress(false);
+				dialog = null;
 			}
-		});
+			return;
+		}
+		long received = Math.max(0, receivedBytes.get());
+		total = Math.max(total, received);
+		long now = System.nanoTime();
+		double seconds = (now - lastNanos) / 1e9;
+		if (seconds > 0) {
+			double latest = Math.max(0, received - lastReceived) / seconds;
+			rate = rate == 0 ? latest : RATE_SMOOTHING * latest + (1 - RATE_SMOOTHING) * rate;
+		}
+		lastReceived = received;
+		lastNanos = now;
+		if (total == 0) {
+			return;
+		}
+		if (dialog == null) {
+			dialog = new CalcProgressBar(
+					/*owner=*/null,
+					/*title=*/"Downloading " + appName + " Files",
+					/*info=*/"",
+					/*visible=*/true);
+		}
+		String fileKey = currentFile == null ? "" : currentFile;
+		dialog.setProgressMessage("downloading " + (fileKey.length() <= FILE_KEY_LEN
+				? fileKey
+				: fileKey.substring(0, FILE_KEY_LEN)));
+		dialog.updateProgress(received, total,
+				(int) Math.round(received / 1e6) + " of "
+				+ (int) Math.round(total / 1e6) + " MB downloaded");
+		dialog.alert(formatRate(rate) + ", " + formatRemaining(total - received, rate));
+	}
+
+	/**
+	 * Format a download rate
+	 * @param bytesPerSecond	Rate in bytes per second
+	 * @return					Rate in MB/s
+	 */
+	private static String formatRate(double bytesPerSecond) {
+		return String.format("%.1f MB/s", bytesPerSecond / 1e6);
+	}
+
+	/**
+	 * Format the time left to download the remaining bytes
+	 * @param remaining			Bytes left to download
+	 * @param bytesPerSecond	Rate in bytes per second
+	 * @return					Time left as h:mm:ss or m:ss
+	 */
+	private static String formatRemaining(long remaining, double bytesPerSecond) {
+		if (bytesPerSecond < 1) {
+			return "estimating time left";
+		}
+		long seconds = (long) Math.ceil(remaining / bytesPerSecond);
+		if (seconds >= 3600) {
+			return String.format("%d:%02d:%02d left",
+					seconds / 3600, seconds / 60 % 60, seconds % 60);
+		}
+		return String.format("%d:%02d left", seconds / 60, seconds % 60);
 	}
 }
@@ -52,18 +52,7 @@ class Prompter {
 	 * @return				true if client metadata or default indicates
 	 */
 	boolean shouldPrompt(String file) {
-		String shouldPrompt = meta.getClientMeta(file, "prompt");
-		if (shouldPrompt.equals("")) {
-			return promptByDefault;
-		}
-		if (shouldPrompt.equals("true")) {
-			return true;
-		}
-		if (!shouldPrompt.equals("false")) {
-			SimpleLogger.LOG(System.err,
-					"Invalid prompt value " + shouldPrompt +
-					". Assuming \"false\"");
-		}
-		return false;
+		Boolean shouldPrompt = meta.getClientPrompt(file);
+		return shouldPrompt == null ? promptByDefault : shouldPrompt;
 	}
 }
@@ -0,0 +1,1385 @@
+package org.scec.getfile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The ServerCatalog is a compact, read-only model of server metadata for
+ * catalogs of up to millions of files. It's loaded by streaming through the
+ * JSON rather than building a tree of it in memory.
+ * <p>
+ * Entries are stored in columns ordered by key and found by binary search.
+ * Versions are deduplicated, so the many files at the same version share one
+ * string. Paths are stored as nodes of a trie of path segments, so files in the
+ * same directory share its path. Rarely used fields are stored sparsely.
+ * </p>
+ * <p>
+ * The columns are laid out in a binary image, which is saved beside the cached
+ * server metadata along with the digest of the JSON it was built from. Later
+ * loads memory-map the image and query it in place without parsing the JSON,
+ * as long as the digest still matches. The JSON remains the source of truth,
+ * and the image is rebuilt whenever it changes.
+ * </p>
+ * <p>
+ * Fields are read by entry index with typed accessors. Missing fields are null,
+ * or -1 for sizes. Keys are compared in place. Paths, checksums and other
+ * fields are decoded from the image when they're read.
+ * </p>
+ */
+class ServerCatalog {
+	// Identifies an image file and the layout it was written with
+	private static final int MAGIC = 0x47464349;
+	private static final int FORMAT_VERSION = 1;
+	private static final int DIGEST_LENGTH = 32;
+	// Sections of an image, in the order they're stored
+	private static final int KEY_OFFSETS = 0;
+	private static final int KEY_CHARS = 1;
+	private static final int ENTRY_VERSIONS = 2;
+	private static final int ENTRY_NODES = 3;
+	private static final int ENTRY_SIZES = 4;
+	private static final int ENTRY_ALGORITHMS = 5;
+	private static final int CHECKSUM_OFFSETS = 6;
+	private static final int CHECKSUM_CHARS = 7;
+	private static final int VERSION_OFFSETS = 8;
+	private static final int VERSION_CHARS = 9;
+	private static final int NODE_PARENTS = 10;
+	private static final int SEGMENT_OFFSETS = 11;
+	private static final int SEGMENT_CHARS = 12;
+	private static final int EXTRA_STARTS = 13;
+	private static final int EXTRA_OFFSETS = 14;
+	private static final int EXTRA_CHARS = 15;
+	private static final int SECTIONS = 16;
+	// Magic, format version, digest, then the offset and length of each section
+	private static final int SECTION_TABLE = 8 + DIGEST_LENGTH;
+	private static final int HEADER_LENGTH = SECTION_TABLE + SECTIONS * 8;
+	// Checksum algorithm of an entry
+	private static final byte NO_CHECKSUM = 0;
+	private static final byte MD5 = 1;
+	private static final byte SHA256 = 2;
+	// Largest array the JVM reliably allocates
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	// File keys in sorted order. Entry i of every column belongs to key i.
+	private final StringTable keys;
+	private final IntBuffer entryVersions;
+	private final IntBuffer pathNodes;
+	private final LongBuffer sizes;
+	private final ByteBuffer algorithms;
+	private final StringTable checksums;
+	// Distinct versions, decoded once since there are few of them
+	private final String[] versions;
+	// Trie of path segments. Node 0 is the root.
+	private final IntBuffer nodeParents;
+	private final StringTable segments;
+	// Other fields of entry i are the name, value pairs
+	// from extraStarts[i] up to extraStarts[i + 1]
+	private final IntBuffer extraStarts;
+	private final StringTable extras;
+
+	/**
+	 * Strings stored in an image as one sequence of characters, along with
+	 * where each string starts in it.
+	 */
+	private static class StringTable {
+		private final IntBuffer offsets;
+		private final CharBuffer chars;
+
+		/**
+		 * StringTable constructor
+		 * @param offsets		Start of each string, followed by the end of the last
+		 * @param chars			Characters of every string
+		 */
+		StringTable(IntBuffer offsets, CharBuffer chars) {
+			this.offsets = offsets;
+			this.chars = chars;
+		}
+
+		/**
+		 * Number of characters in a string
+		 * @param i				String index
+		 * @return				Length of the string
+		 */
+		int length(int i) {
+			return offsets.get(i + 1) - offsets.get(i);
+		}
+
+		/**
+		 * Copy a string into an array of characters
+		 * @param i				String index
+		 * @param dst			Array to copy into
+		 * @param at			Where in dst to copy the first character
+		 */
+		void getChars(int i, char[] dst, int at) {
+			int start = offsets.get(i);
+			int length = length(i);
+			for (int c = 0; c < length; c++) {
+				dst[at + c] = chars.get(start + c);
+			}
+		}
+
+		/**
+		 * Decode a string
+		 * @param i				String index
+		 * @return				The string
+		 */
+		String get(int i) {
+			char[] value = new char[length(i)];
+			getChars(i, value, 0);
+			return new String(value);
+		}
+
+		/**
+		 * Compare a string with another without decoding it
+		 * @param i				String index
+		 * @param other			String to compare with
+		 * @return				Negative, zero or positive as in String.compareTo
+		 */
+		int compareTo(int i, String other) {
+			int start = offsets.get(i);
+			int length = length(i);
+			int common = Math.min(length, other.length());
+			for (int c = 0; c < common; c++) {
+				int diff = chars.get(start + c) - other.charAt(c);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return length - other.length();
+		}
+
+		/**
+		 * Check whether a string matches part of another without decoding it
+		 * @param i				String index
+		 * @param other			String holding the characters
+		 * @param at			Where in other the string would start
+		 * @param ignoreCase	Whether to compare ASCII letters ignoring case
+		 * @return				true if the characters are equal
+		 */
+		boolean regionMatches(int i, String other, int at, boolean ignoreCase) {
+			int start = offsets.get(i);
+			int length = length(i);
+			if (at < 0 || at + length > other.length()) {
+				return false;
+			}
+			for (int c = 0; c < length; c++) {
+				char mine = chars.get(start + c);
+				char theirs = other.charAt(at + c);
+				if (mine != theirs && (!ignoreCase
+						|| Character.toLowerCase(mine) != Character.toLowerCase(theirs))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Continue a StateDigest hash with the characters of a string
+		 * @param i				String index
+		 * @param hash			Hash so far
+		 * @return				Hash including the characters
+		 */
+		long hash(int i, long hash) {
+			int end = offsets.get(i + 1);
+			for (int c = offsets.get(i); c < end; c++) {
+				hash = StateDigest.hashChar(hash, chars.get(c));
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Strings collected while streaming, stored as one growable sequence of
+	 * characters rather than as separate String objects. Characters are kept
+	 * one byte each until a string needs more, as keys, paths and checksums
+	 * are almost always Latin-1.
+	 */
+	private static class StringList {
+		// Characters while every one fits in a byte, otherwise null
+		private byte[] latin1 = new byte[256];
+		// Characters once any doesn't fit in a byte, otherwise null
+		private char[] chars;
+		// Start of each string, followed by the end of the last
+		private int[] starts = new int[16];
+		private int size;
+
+		/**
+		 * Append a string. Null strings are stored as empty strings.
+		 * @param string		String to append
+		 * @return				Index of the string
+		 */
+		int add(String string) {
+			return string == null ? add("", 0, 0) : add(string, 0, string.length());
+		}
+
+		/**
+		 * Append part of a string
+		 * @param string		String holding the characters
+		 * @param from			First character to append
+		 * @param to			End of the characters to append
+		 * @return				Index of the string
+		 */
+		int add(String string, int from, int to) {
+			int end = starts[size];
+			int length = to - from;
+			if ((long) end + length > MAX_ARRAY) {
+				throw new IllegalStateException("Server metadata is too large for an image");
+			}
+			if (latin1 != null) {
+				for (int c = from; c < to && latin1 != null; c++) {
+					if (string.charAt(c) > 0xff) {
+						inflate();
+					}
+				}
+			}
+			if (latin1 != null) {
+				if (end + length > latin1.length) {
+					latin1 = Arrays.copyOf(latin1, grow(latin1.length, end + length));
+				}
+				for (int c = from; c < to; c++) {
+					latin1[end + c - from] = (byte) string.charAt(c);
+				}
+			} else {
+				if (end + length > chars.length) {
+					chars = Arrays.copyOf(chars, grow(chars.length, end + length));
+				}
+				string.getChars(from, to, chars, end);
+			}
+			if (size + 2 > starts.length) {
+				starts = Arrays.copyOf(starts, grow(starts.length, size + 2));
+			}
+			starts[size + 1] = end + length;
+			return size++;
+		}
+
+		/**
+		 * Switch to storing two bytes per character
+		 */
+		private void inflate() {
+			chars = new char[latin1.length];
+			for (int c = 0; c < starts[size]; c++) {
+				chars[c] = (char) (latin1[c] & 0xff);
+			}
+			latin1 = null;
+		}
+
+		/**
+		 * Get a character of the sequence
+		 * @param at			Position in the sequence
+		 * @return				The character
+		 */
+		private char charAt(int at) {
+			return latin1 != null ? (char) (latin1[at] & 0xff) : chars[at];
+		}
+
+		/**
+		 * Number of strings
+		 * @return				Count of strings
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Number of characters in every string
+		 * @return				Total length
+		 */
+		int totalLength() {
+			return starts[size];
+		}
+
+		/**
+		 * Number of characters in a string
+		 * @param i				String index
+		 * @return				Length of the string
+		 */
+		int length(int i) {
+			return starts[i + 1] - starts[i];
+		}
+
+		/**
+		 * Compare two strings without decoding them
+		 * @param i				String index
+		 * @param j				Other string index
+		 * @return				Negative, zero or positive as in String.compareTo
+		 */
+		int compare(int i, int j) {
+			int a = starts[i];
+			int b = starts[j];
+			int common = Math.min(length(i), length(j));
+			for (int c = 0; c < common; c++) {
+				int diff = charAt(a + c) - charAt(b + c);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return length(i) - length(j);
+		}
+
+		/**
+		 * Check whether a string equals part of another
+		 * @param i				String index
+		 * @param string		String holding the characters
+		 * @param from			First character to compare
+		 * @param to			End of the characters to compare
+		 * @return				true if the characters are equal
+		 */
+		boolean equals(int i, String string, int from, int to) {
+			if (length(i) != to - from) {
+				return false;
+			}
+			int start = starts[i];
+			for (int c = from; c < to; c++) {
+				if (charAt(start + c - from) != string.charAt(c)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Hash a string the same way as hash(String, int, int)
+		 * @param i				String index
+		 * @return				Hash of the characters
+		 */
+		int hash(int i) {
+			int hash = 0;
+			for (int c = starts[i]; c < starts[i + 1]; c++) {
+				hash = 31 * hash + charAt(c);
+			}
+			return hash;
+		}
+
+		/**
+		 * Hash part of a string
+		 * @param string		String holding the characters
+		 * @param from			First character to hash
+		 * @param to			End of the characters to hash
+		 * @return				Hash of the characters
+		 */
+		static int hash(String string, int from, int to) {
+			int hash = 0;
+			for (int c = from; c < to; c++) {
+				hash = 31 * hash + string.charAt(c);
+			}
+			return hash;
+		}
+
+		/**
+		 * Write the characters of a string to an image
+		 * @param i				String index
+		 * @param out			Image being written
+		 * @throws IOException
+		 */
+		void write(int i, ImageWriter out) throws IOException {
+			for (int c = starts[i]; c < starts[i + 1]; c++) {
+				out.putChar(charAt(c));
+			}
+		}
+	}
+
+	/**
+	 * Writes an image to a channel through a small buffer, so the image is
+	 * never held in memory as a whole.
+	 */
+	private static class ImageWriter {
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		private long position;
+
+		/**
+		 * ImageWriter constructor
+		 * @param channel		Where the image is written
+		 */
+		ImageWriter(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Write a byte
+		 * @param value		Value to write
+		 * @throws IOException
+		 */
+		void putByte(byte value) throws IOException {
+			reserve(1);
+			buffer.put(value);
+		}
+
+		/**
+		 * Write a character
+		 * @param value		Value to write
+		 * @throws IOException
+		 */
+		void putChar(char value) throws IOException {
+			reserve(2);
+			buffer.putChar(value);
+		}
+
+		/**
+		 * Write an integer
+		 * @param value		Value to write
+		 * @throws IOException
+		 */
+		void putInt(int value) throws IOException {
+			reserve(4);
+			buffer.putInt(value);
+		}
+
+		/**
+		 * Write a long integer
+		 * @param value		Value to write
+		 * @throws IOException
+		 */
+		void putLong(long value) throws IOException {
+			reserve(8);
+			buffer.putLong(value);
+		}
+
+		/**
+		 * Pad with zeros up to an offset in the image
+		 * @param offset		Offset of what's written next
+		 * @throws IOException
+		 */
+		void padTo(long offset) throws IOException {
+			while (position < offset) {
+				putByte((byte) 0);
+			}
+		}
+
+		/**
+		 * Make room in the buffer, writing it out if it's full
+		 * @param bytes			Bytes about to be put
+		 * @throws IOException
+		 */
+		private void reserve(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+			position += bytes;
+		}
+
+		/**
+		 * Write out everything put so far
+		 * @throws IOException
+		 */
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Entry fields collected while streaming, before they're laid out in an image.
+	 * Columns are growable primitive arrays, so the heap needed to build an image
+	 * stays close to the size of the image itself.
+	 */
+	private static class Builder {
+		// Columns of the entries in the order they were read
+		final StringList keys = new StringList();
+		private int[] versions = new int[16];
+		private int[] pathNodes = new int[16];
+		private long[] sizes = new long[16];
+		private byte[] algorithms = new byte[16];
+		final StringList checksums = new StringList();
+		// Other fields of entry i are the name, value pairs
+		// from extraStarts[i] up to extraStarts[i + 1]
+		private int[] extraStarts = new int[17];
+		final StringList extras = new StringList();
+		private final Map<String, Integer> versionIds = new HashMap<>();
+		final StringList versionNames = new StringList();
+		// Trie of path segments. Node 0 is the root, and segment n belongs to node n.
+		private int[] nodeParents = new int[16];
+		final StringList segments = new StringList();
+		// Open addressed table of trie nodes by parent and segment. 0 is empty,
+		// since the root is never a child.
+		private int[] children = new int[64];
+		// Layout of the image, set by layout()
+		private int[] unique;
+		private final long[] sectionOffsets = new long[SECTIONS];
+		private final long[] sectionLengths = new long[SECTIONS];
+
+		Builder() {
+			nodeParents[0] = -1;
+			segments.add("");
+		}
+
+		/**
+		 * Add an entry. Its extra fields must already have been added.
+		 * @param key			Key in the meta.json file
+		 * @param version		Version, or null if the entry has none
+		 * @param path			Path relative to the server root, or null if the entry has none
+		 * @param algorithm		Checksum algorithm of the entry
+		 * @param checksum		Checksum hex, or null if the entry has none
+		 * @param size			Size in bytes, or -1 if the entry has none
+		 */
+		void addEntry(String key, String version, String path, byte algorithm,
+				String checksum, long size) {
+			int index = keys.add(key);
+			checksums.add(checksum);
+			if (index + 2 > extraStarts.length) {
+				int capacity = grow(extraStarts.length, index + 2);
+				versions = Arrays.copyOf(versions, capacity);
+				pathNodes = Arrays.copyOf(pathNodes, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+				algorithms = Arrays.copyOf(algorithms, capacity);
+				extraStarts = Arrays.copyOf(extraStarts, capacity);
+			}
+			versions[index] = version == null ? -1 : addVersion(version);
+			pathNodes[index] = path == null ? -1 : addPath(path);
+			sizes[index] = size;
+			algorithms[index] = algorithm;
+			extraStarts[index + 1] = extras.size() / 2;
+		}
+
+		/**
+		 * Add a field of the next entry that has no column of its own
+		 * @param field			Field name
+		 * @param value			Field value
+		 */
+		void addExtra(String field, String value) {
+			extras.add(field);
+			extras.add(value);
+		}
+
+		/**
+		 * Find or add a distinct version
+		 * @param version		Version read from JSON
+		 * @return				Index of the version
+		 */
+		private int addVersion(String version) {
+			Integer id = versionIds.get(version);
+			if (id == null) {
+				id = versionNames.add(version);
+				versionIds.put(version, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Find or add the trie node for a path
+		 * @param path			Path relative to the server root
+		 * @return				Node of the last segment of the path
+		 */
+		private int addPath(String path) {
+			int node = 0;
+			int start = 0;
+			while (start <= path.length()) {
+				int end = path.indexOf('/', start);
+				if (end < 0) {
+					end = path.length();
+				}
+				node = addChild(node, path, start, end);
+				start = end + 1;
+			}
+			return node;
+		}
+
+		/**
+		 * Find or add the child of a trie node for a segment of a path
+		 * @param parent		Parent node
+		 * @param path			Path holding the segment
+		 * @param from			First character of the segment
+		 * @param to			End of the segment
+		 * @return				Child node
+		 */
+		private int addChild(int parent, String path, int from, int to) {
+			int mask = children.length - 1;
+			int slot = slot(parent, StringList.hash(path, from, to)) & mask;
+			while (children[slot] != 0) {
+				int child = children[slot];
+				if (nodeParents[child] == parent && segments.equals(child, path, from, to)) {
+					return child;
+				}
+				slot = (slot + 1) & mask;
+			}
+			int child = segments.add(path, from, to);
+			if (child + 1 > nodeParents.length) {
+				nodeParents = Arrays.copyOf(nodeParents, grow(nodeParents.length, child + 1));
+			}
+			nodeParents[child] = parent;
+			children[slot] = child;
+			// Keep the table at most half full
+			if (2 * child >= children.length) {
+				int[] previous = children;
+				children = new int[2 * previous.length];
+				mask = children.length - 1;
+				for (int node : previous) {
+					if (node != 0) {
+						int s = slot(nodeParents[node], segments.hash(node)) & mask;
+						while (children[s] != 0) {
+							s = (s + 1) & mask;
+						}
+						children[s] = node;
+					}
+				}
+			}
+			return child;
+		}
+
+		/**
+		 * Spread the hash of a trie edge over the table
+		 * @param parent		Parent node
+		 * @param segmentHash	Hash of the segment
+		 * @return				Unmasked slot
+		 */
+		private static int slot(int parent, int segmentHash) {
+			int hash = parent * 0x9e3779b9 + segmentHash;
+			return hash ^ (hash >>> 16);
+		}
+
+		/**
+		 * Sort the entries by key and work out where each section of the
+		 * image goes. Later entries replace earlier entries with the same key.
+		 * @return				Length of the image in bytes
+		 * @throws IOException	If the catalog is too large for an image
+		 */
+		long layout() throws IOException {
+			int n = keys.size();
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			// Stable sort keeps duplicate keys in the order they were read
+			sortByKey(order, new int[n], 0, n);
+			int size = 0;
+			for (int i = 0; i < n; i++) {
+				if (i + 1 < n && keys.compare(order[i], order[i + 1]) == 0) {
+					continue;
+				}
+				order[size++] = order[i];
+			}
+			unique = Arrays.copyOf(order, size);
+
+			long keyChars = 0;
+			long checksumChars = 0;
+			long extraPairs = 0;
+			long extraChars = 0;
+			for (int from : unique) {
+				keyChars += keys.length(from);
+				checksumChars += checksums.length(from);
+				for (int pair = extraStarts[from]; pair < extraStarts[from + 1]; pair++) {
+					extraChars += extras.length(2 * pair) + extras.length(2 * pair + 1);
+				}
+				extraPairs += extraStarts[from + 1] - extraStarts[from];
+			}
+			sectionLengths[KEY_OFFSETS] = (size + 1) * 4L;
+			sectionLengths[KEY_CHARS] = keyChars * 2;
+			sectionLengths[ENTRY_VERSIONS] = size * 4L;
+			sectionLengths[ENTRY_NODES] = size * 4L;
+			sectionLengths[ENTRY_SIZES] = size * 8L;
+			sectionLengths[ENTRY_ALGORITHMS] = size;
+			sectionLengths[CHECKSUM_OFFSETS] = (size + 1) * 4L;
+			sectionLengths[CHECKSUM_CHARS] = checksumChars * 2;
+			sectionLengths[VERSION_OFFSETS] = (versionNames.size() + 1) * 4L;
+			sectionLengths[VERSION_CHARS] = versionNames.totalLength() * 2L;
+			sectionLengths[NODE_PARENTS] = segments.size() * 4L;
+			sectionLengths[SEGMENT_OFFSETS] = (segments.size() + 1) * 4L;
+			sectionLengths[SEGMENT_CHARS] = segments.totalLength() * 2L;
+			sectionLengths[EXTRA_STARTS] = (size + 1) * 4L;
+			sectionLengths[EXTRA_OFFSETS] = (2 * extraPairs + 1) * 4;
+			sectionLengths[EXTRA_CHARS] = extraChars * 2;
+			long length = HEADER_LENGTH;
+			for (int s = 0; s < SECTIONS; s++) {
+				sectionOffsets[s] = align(length);
+				length = sectionOffsets[s] + sectionLengths[s];
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Server metadata is too large for an image");
+			}
+			return length;
+		}
+
+		/**
+		 * Merge sort entry indexes by key. Stable, unlike sorting primitives.
+		 * @param order			Entry indexes to sort
+		 * @param scratch		Array at least as long as order
+		 * @param from			First index of the range to sort
+		 * @param to			End of the range to sort
+		 */
+		private void sortByKey(int[] order, int[] scratch, int from, int to) {
+			if (to - from < 2) {
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			sortByKey(order, scratch, from, mid);
+			sortByKey(order, scratch, mid, to);
+			if (keys.compare(order[mid - 1], order[mid]) <= 0) {
+				return;
+			}
+			System.arraycopy(order, from, scratch, from, to - from);
+			int left = from;
+			int right = mid;
+			for (int i = from; i < to; i++) {
+				if (right >= to || (left < mid && keys.compare(scratch[left], scratch[right]) <= 0)) {
+					order[i] = scratch[left++];
+				} else {
+					order[i] = scratch[right++];
+				}
+			}
+		}
+
+		/**
+		 * Write the image laid out by layout(), one section after another.
+		 * @param channel		Where the image is written
+		 * @param digest		SHA-256 of the JSON the entries were read from
+		 * @throws IOException
+		 */
+		void write(WritableByteChannel channel, byte[] digest) throws IOException {
+			ImageWriter out = new ImageWriter(channel);
+			out.putInt(MAGIC);
+			out.putInt(FORMAT_VERSION);
+			for (byte b : digest) {
+				out.putByte(b);
+			}
+			for (int s = 0; s < SECTIONS; s++) {
+				out.putInt((int) sectionOffsets[s]);
+				out.putInt((int) sectionLengths[s]);
+			}
+			out.padTo(sectionOffsets[KEY_OFFSETS]);
+			writeOffsets(out, keys, unique);
+			out.padTo(sectionOffsets[KEY_CHARS]);
+			for (int from : unique) {
+				keys.write(from, out);
+			}
+			out.padTo(sectionOffsets[ENTRY_VERSIONS]);
+			for (int from : unique) {
+				out.putInt(versions[from]);
+			}
+			out.padTo(sectionOffsets[ENTRY_NODES]);
+			for (int from : unique) {
+				out.putInt(pathNodes[from]);
+			}
+			out.padTo(sectionOffsets[ENTRY_SIZES]);
+			for (int from : unique) {
+				out.putLong(sizes[from]);
+			}
+			out.padTo(sectionOffsets[ENTRY_ALGORITHMS]);
+			for (int from : unique) {
+				out.putByte(algorithms[from]);
+			}
+			out.padTo(sectionOffsets[CHECKSUM_OFFSETS]);
+			writeOffsets(out, checksums, unique);
+			out.padTo(sectionOffsets[CHECKSUM_CHARS]);
+			for (int from : unique) {
+				checksums.write(from, out);
+			}
+			out.padTo(sectionOffsets[VERSION_OFFSETS]);
+			writeOffsets(out, versionNames, null);
+			out.padTo(sectionOffsets[VERSION_CHARS]);
+			for (int v = 0; v < versionNames.size(); v++) {
+				versionNames.write(v, out);
+			}
+			out.padTo(sectionOffsets[NODE_PARENTS]);
+			for (int node = 0; node < segments.size(); node++) {
+				out.putInt(nodeParents[node]);
+			}
+			out.padTo(sectionOffsets[SEGMENT_OFFSETS]);
+			writeOffsets(out, segments, null);
+			out.padTo(sectionOffsets[SEGMENT_CHARS]);
+			for (int node = 0; node < segments.size(); node++) {
+				segments.write(node, out);
+			}
+			out.padTo(sectionOffsets[EXTRA_STARTS]);
+			int pairs = 0;
+			for (int from : unique) {
+				out.putInt(pairs);
+				pairs += extraStarts[from + 1] - extraStarts[from];
+			}
+			out.putInt(pairs);
+			out.padTo(sectionOffsets[EXTRA_OFFSETS]);
+			int offset = 0;
+			for (int from : unique) {
+				for (int e = 2 * extraStarts[from]; e < 2 * extraStarts[from + 1]; e++) {
+					out.putInt(offset);
+					offset += extras.length(e);
+				}
+			}
+			out.putInt(offset);
+			out.padTo(sectionOffsets[EXTRA_CHARS]);
+			for (int from : unique) {
+				for (int e = 2 * extraStarts[from]; e < 2 * extraStarts[from + 1]; e++) {
+					extras.write(e, out);
+				}
+			}
+			out.flush();
+		}
+
+		/**
+		 * Write where each of a list of strings starts, followed by the end of the last
+		 * @param out			Image being written
+		 * @param strings		Strings being laid out
+		 * @param order			Indexes of the strings to lay out, or null for all of them
+		 * @throws IOException
+		 */
+		private static void writeOffsets(ImageWriter out, StringList strings, int[] order)
+				throws IOException {
+			int count = order == null ? strings.size() : order.length;
+			int offset = 0;
+			for (int i = 0; i < count; i++) {
+				out.putInt(offset);
+				offset += strings.length(order == null ? i : order[i]);
+			}
+			out.putInt(offset);
+		}
+
+		/**
+		 * Write the image into a buffer in memory
+		 * @param digest		SHA-256 of the JSON the entries were read from
+		 * @return				Image of the catalog
+		 * @throws IOException	If the catalog is too large for an image
+		 */
+		ByteBuffer toImage(byte[] digest) throws IOException {
+			ByteBuffer image = ByteBuffer.allocate((int) layout());
+			write(new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) {
+					int written = src.remaining();
+					image.put(src);
+					return written;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+				}
+			}, digest);
+			image.rewind();
+			return image;
+		}
+
+		/**
+		 * Round an offset up so every section starts on an 8 byte boundary
+		 * @param offset		Offset in the image
+		 * @return				Aligned offset
+		 */
+		private static long align(long offset) {
+			return (offset + 7) & ~7L;
+		}
+	}
+
+	/**
+	 * Grow the capacity of an array by half, so growing a large column
+	 * needs less spare heap than doubling it
+	 * @param capacity		Current capacity
+	 * @param needed		Capacity needed
+	 * @return				New capacity
+	 */
+	private static int grow(int capacity, int needed) {
+		return (int) Math.min(MAX_ARRAY, Math.max(capacity + (capacity >> 1), (long) needed));
+	}
+
+	/**
+	 * ServerCatalog constructor reads the columns of an image in place.
+	 * @param image			Image of a catalog with a valid header
+	 */
+	private ServerCatalog(ByteBuffer image) {
+		this.keys = stringTable(image, KEY_OFFSETS, KEY_CHARS);
+		this.entryVersions = section(image, ENTRY_VERSIONS).asIntBuffer();
+		this.pathNodes = section(image, ENTRY_NODES).asIntBuffer();
+		this.sizes = section(image, ENTRY_SIZES).asLongBuffer();
+		this.algorithms = section(image, ENTRY_ALGORITHMS);
+		this.checksums = stringTable(image, CHECKSUM_OFFSETS, CHECKSUM_CHARS);
+		StringTable versionTable = stringTable(image, VERSION_OFFSETS, VERSION_CHARS);
+		this.versions = new String[section(image, VERSION_OFFSETS).capacity() / 4 - 1];
+		for (int v = 0; v < versions.length; v++) {
+			versions[v] = versionTable.get(v);
+		}
+		this.nodeParents = section(image, NODE_PARENTS).asIntBuffer();
+		this.segments = stringTable(image, SEGMENT_OFFSETS, SEGMENT_CHARS);
+		this.extraStarts = section(image, EXTRA_STARTS).asIntBuffer();
+		this.extras = stringTable(image, EXTRA_OFFSETS, EXTRA_CHARS);
+	}
+
+	/**
+	 * Get one section of an image
+	 * @param image			Image of a catalog
+	 * @param section		Which section
+	 * @return				Buffer holding only that section
+	 */
+	private static ByteBuffer section(ByteBuffer image, int section) {
+		int offset = image.getInt(SECTION_TABLE + section * 8);
+		int length = image.getInt(SECTION_TABLE + section * 8 + 4);
+		return image.duplicate().position(offset).limit(offset + length).slice();
+	}
+
+	/**
+	 * Get the strings stored in two sections of an image
+	 * @param image			Image of a catalog
+	 * @param offsets		Section holding the offsets
+	 * @param chars			Section holding the characters
+	 * @return				Strings read in place
+	 */
+	private static StringTable stringTable(ByteBuffer image, int offsets, int chars) {
+		return new StringTable(section(image, offsets).asIntBuffer(),
+				section(image, chars).asCharBuffer());
+	}
+
+	/**
+	 * Load server metadata from a file. A saved image of the metadata is used
+	 * if it was built from the same JSON. Otherwise the JSON is parsed and the
+	 * image is saved for next time.
+	 * @param file			Server metadata JSON file
+	 * @param image			Where the image is saved, or null to not save one
+	 * @return				Catalog of the server files, or null if unreadable
+	 */
+	static ServerCatalog load(File file, File image) {
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		try {
+			if (image != null && image.exists()) {
+				byte[] digest;
+				try (InputStream in = Files.newInputStream(file.toPath())) {
+					digest = DigestUtils.sha256(in);
+				}
+				ServerCatalog mapped = map(image.toPath(), digest);
+				if (mapped != null) {
+					return mapped;
+				}
+			}
+			// Digest the JSON as it's parsed, so the image matches what was read
+			MessageDigest sha256 = DigestUtils.getSha256Digest();
+			Builder builder;
+			try (Reader reader = new InputStreamReader(new DigestInputStream(
+					new BufferedInputStream(Files.newInputStream(file.toPath())), sha256),
+					StandardCharsets.UTF_8)) {
+				builder = parse(reader);
+				char[] rest = new char[8192];
+				while (reader.read(rest) >= 0) {
+					// Digest anything after the JSON object too
+				}
+			}
+			byte[] digest = sha256.digest();
+			if (image != null) {
+				ServerCatalog saved = save(builder, digest, image.toPath());
+				if (saved != null) {
+					return saved;
+				}
+			}
+			return new ServerCatalog(builder.toImage(digest));
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			SimpleLogger.LOG(System.err, "Unable to parse JSON for " + file.getName());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Stream server metadata into a catalog held in memory.
+	 * @param in			Server metadata JSON
+	 * @return				Catalog of the server files
+	 * @throws IOException	If the JSON is malformed
+	 */
+	static ServerCatalog load(Reader in) throws IOException {
+		return new ServerCatalog(parse(in).toImage(new byte[DIGEST_LENGTH]));
+	}
+
+	/**
+	 * Memory-map a saved image if it was built from the expected JSON.
+	 * @param image			Saved image
+	 * @param digest		SHA-256 of the current JSON
+	 * @return				Catalog reading the mapped image, or null if the
+	 * 						image is stale, from another format or unreadable
+	 */
+	private static ServerCatalog map(Path image, byte[] digest) {
+		try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+				return null;
+			}
+			// The mapping stays valid after the channel is closed
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (!isCurrent(mapped, digest)) {
+				return null;
+			}
+			return new ServerCatalog(mapped);
+		} catch (IOException e) {
+			SimpleLogger.LOG(System.err, "Failed to read " + image);
+			return null;
+		}
+	}
+
+	/**
+	 * Stream an image to disk and map the saved copy, so the image is never
+	 * held in memory as a whole. The image is replaced atomically.
+	 * @param builder		Entries read from JSON
+	 * @param digest		SHA-256 of the JSON
+	 * @param image			Where the image is saved
+	 * @return				Catalog reading the saved image, or null if it
+	 * 						couldn't be saved
+	 * @throws IOException	If the catalog is too large for an image
+	 */
+	private static ServerCatalog save(Builder builder, byte[] digest, Path image)
+			throws IOException {
+		builder.layout();
+		try {
+			Downloader.writeAtomically(image, tmp -> {
+				try (FileChannel channel = FileChannel.open(tmp,
+						StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					builder.write(channel, digest);
+				}
+			});
+		} catch (IOException e) {
+			// Some systems can't replace an image this process has mapped
+			SimpleLogger.LOG(System.err, "Failed to save " + image);
+			return null;
+		}
+		return map(image, digest);
+	}
+
+	/**
+	 * Check that an image uses this format, was built from the expected JSON
+	 * and holds every section it claims to.
+	 * @param image			Image to check
+	 * @param digest		SHA-256 of the current JSON
+	 * @return				true if the image can be read
+	 */
+	private static boolean isCurrent(ByteBuffer image, byte[] digest) {
+		if (image.getInt(0) != MAGIC || image.getInt(4) != FORMAT_VERSION) {
+			return false;
+		}
+		for (int b = 0; b < DIGEST_LENGTH; b++) {
+			if (image.get(8 + b) != digest[b]) {
+				return false;
+			}
+		}
+		for (int s = 0; s < SECTIONS; s++) {
+			long offset = image.getInt(SECTION_TABLE + s * 8);
+			long length = image.getInt(SECTION_TABLE + s * 8 + 4);
+			if (offset < HEADER_LENGTH || length < 0 || offset + length > image.capacity()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stream server metadata into a builder. Entries that aren't objects and
+	 * fields that aren't strings, numbers or booleans are skipped.
+	 * @param in			Server metadata JSON
+	 * @return				Entries read from the JSON
+	 * @throws IOException	If the JSON is malformed
+	 */
+	private static Builder parse(Reader in) throws IOException {
+		Builder builder = new Builder();
+		JsonReader reader = new JsonReader(in);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				reader.skipValue();
+				continue;
+			}
+			String version = null;
+			String path = null;
+			String md5 = null;
+			String sha256 = null;
+			long size = -1;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String field = reader.nextName();
+				String value = nextValue(reader);
+				if (value == null) {
+					continue;
+				}
+				switch (field) {
+					case "version":
+						version = value;
+						break;
+					case "path":
+						path = value;
+						break;
+					case "md5":
+						md5 = value;
+						break;
+					case "sha256":
+						sha256 = value;
+						break;
+					case "size":
+						try {
+							size = Long.parseLong(value);
+						} catch (NumberFormatException e) {
+							SimpleLogger.LOG(System.err, "Invalid size " + value + " for " + key);
+						}
+						break;
+					default:
+						builder.addExtra(field, value);
+				}
+			}
+			reader.endObject();
+			// SHA-256 is preferred over MD5 when both are provided
+			builder.addEntry(key, version, path,
+					sha256 != null ? SHA256 : md5 != null ? MD5 : NO_CHECKSUM,
+					sha256 != null ? sha256 : md5, size);
+		}
+		reader.endObject();
+		return builder;
+	}
+
+	/**
+	 * Read a scalar JSON value as a string
+	 * @param reader		Reader positioned at a value
+	 * @return				Value as a string, or null if not a scalar
+	 * @throws IOException
+	 */
+	private static String nextValue(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case STRING:
+			case NUMBER:
+				return reader.nextString();
+			case BOOLEAN:
+				return String.valueOf(reader.nextBoolean());
+			default:
+				reader.skipValue();
+				return null;
+		}
+	}
+
+	/**
+	 * Find the entry for a file key
+	 * @param key			Key in the meta.json file. Not necessarily filename.
+	 * @return				Entry index, or a negative number if not found
+	 */
+	int indexOf(String key) {
+		int low = 0;
+		int high = size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = keys.compareTo(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Number of files in the catalog
+	 * @return				Count of entries
+	 */
+	int size() {
+		return entryVersions.capacity();
+	}
+
+	/**
+	 * Get the key of a file
+	 * @param index			Entry index
+	 * @return				Key in the meta.json file
+	 */
+	String getKey(int index) {
+		return keys.get(index);
+	}
+
+	/**
+	 * Compare the key of a file with another key without decoding it
+	 * @param index			Entry index
+	 * @param key			Key to compare with
+	 * @return				Negative, zero or positive as in String.compareTo
+	 */
+	int compareKey(int index, String key) {
+		return keys.compareTo(index, key);
+	}
+
+	/**
+	 * Get the version of a file
+	 * @param index			Entry index
+	 * @return				Version, or null if the entry has none
+	 */
+	String getVersion(int index) {
+		int version = entryVersions.get(index);
+		return version < 0 ? null : versions[version];
+	}
+
+	/**
+	 * Get the path of a file, rebuilt from the path trie
+	 * @param index			Entry index
+	 * @return				Path relative to the server root, or null if the entry has none
+	 */
+	String getPath(int index) {
+		int node = pathNodes.get(index);
+		if (node < 0) {
+			return null;
+		}
+		int length = -1;
+		for (int n = node; n > 0; n = nodeParents.get(n)) {
+			length += segments.length(n) + 1;
+		}
+		char[] path = new char[Math.max(length, 0)];
+		int end = path.length;
+		for (int n = node; n > 0; n = nodeParents.get(n)) {
+			end -= segments.length(n);
+			segments.getChars(n, path, end);
+			if (end > 0) {
+				path[--end] = '/';
+			}
+		}
+		return new String(path);
+	}
+
+	/**
+	 * Compare the path of a file with another path without rebuilding it
+	 * @param index			Entry index
+	 * @param path			Path to compare with, or null
+	 * @return				true if the paths are equal or both missing
+	 */
+	boolean pathEquals(int index, String path) {
+		int node = pathNodes.get(index);
+		if (node < 0 || path == null) {
+			return node < 0 && path == null;
+		}
+		int end = path.length();
+		for (int n = node; n > 0; n = nodeParents.get(n)) {
+			end -= segments.length(n);
+			if (!segments.regionMatches(n, path, end, false)) {
+				return false;
+			}
+			if (nodeParents.get(n) > 0) {
+				if (end == 0 || path.charAt(end - 1) != '/') {
+					return false;
+				}
+				end--;
+			}
+		}
+		return end == 0;
+	}
+
+	/**
+	 * Check whether a file has a path
+	 * @param index			Entry index
+	 * @return				true if the entry has a path
+	 */
+	boolean hasPath(int index) {
+		return pathNodes.get(index) >= 0;
+	}
+
+	/**
+	 * Continue a StateDigest hash with the characters of a file key, read in place
+	 * @param index			Entry index
+	 * @param hash			Hash so far
+	 * @return				Hash including the key
+	 */
+	long hashKey(int index, long hash) {
+		return keys.hash(index, hash);
+	}
+
+	/**
+	 * Continue a StateDigest hash with the characters of a file path, read
+	 * from the path trie in place
+	 * @param index			Entry index, which must have a path
+	 * @param hash			Hash so far
+	 * @return				Hash including the path
+	 */
+	long hashPath(int index, long hash) {
+		return hashNode(pathNodes.get(index), hash);
+	}
+
+	/**
+	 * Continue a hash with the path of a trie node, root first
+	 * @param node			Trie node below the root
+	 * @param hash			Hash so far
+	 * @return				Hash including the path
+	 */
+	private long hashNode(int node, long hash) {
+		int parent = nodeParents.get(node);
+		if (parent > 0) {
+			hash = StateDigest.hashChar(hashNode(parent, hash), '/');
+		}
+		return segments.hash(node, hash);
+	}
+
+	/**
+	 * Get the expected checksum of a file
+	 * @param index			Entry index
+	 * @return				SHA-256 if provided, otherwise MD5, or null if the entry has neither
+	 */
+	Checksum getChecksum(int index) {
+		switch (algorithms.get(index)) {
+			case SHA256:
+				return Checksum.sha256(checksums.get(index));
+			case MD5:
+				return Checksum.md5(checksums.get(index));
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Compare the expected checksum of a file with another without decoding it
+	 * @param index			Entry index
+	 * @param checksum		Checksum to compare with, or null
+	 * @return				true if both use the same algorithm and digest
+	 */
+	boolean checksumMatches(int index, Checksum checksum) {
+		if (checksum == null) {
+			return false;
+		}
+		byte algorithm = algorithms.get(index);
+		String hex = checksum.getHex();
+		boolean sameAlgorithm = algorithm == SHA256
+				? MessageDigestAlgorithms.SHA_256.equalsIgnoreCase(checksum.getAlgorithm())
+				: algorithm == MD5 && MessageDigestAlgorithms.MD5.equalsIgnoreCase(checksum.getAlgorithm());
+		return sameAlgorithm && checksums.length(index) == hex.length()
+				&& checksums.regionMatches(index, hex, 0, true);
+	}
+
+	/**
+	 * Get the size of a file
+	 * @param index			Entry index
+	 * @return				Size in bytes, or -1 if the entry has none
+	 */
+	long getSize(int index) {
+		return sizes.get(index);
+	}
+
+	/**
+	 * Get a field of a file that has no column of its own
+	 * @param index			Entry index
+	 * @param field			Field name, i.e. blocks, gzip
+	 * @return				Field value as a string, or null if the entry has none
+	 */
+	String getExtra(int index, String field) {
+		int end = extraStarts.get(index + 1);
+		for (int pair = extraStarts.get(index); pair < end; pair++) {
+			if (extras.compareTo(2 * pair, field) == 0) {
+				return extras.get(2 * pair + 1);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,188 @@
+package org.scec.getfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The ShardTool splits server metadata into shards by key range and writes a
+ * root index listing them, for hosting on the server in place of one large
+ * metadata file. Shards are named by their digest, so a shard is never
+ * modified once published, and clients only download shards that changed.
+ * <p>
+ * When the output already lists shards, their boundaries are kept so an edit
+ * only changes the shard holding the edited entries. A shard that grows past
+ * twice the target size is split.
+ * </p>
+ */
+class ShardTool {
+	// Target number of entries per shard
+	static final int DEFAULT_SHARD_SIZE = 10000;
+
+	private final int shardSize;
+
+	/**
+	 * ShardTool constructor
+	 * @param shardSize		Target number of entries per shard
+	 */
+	ShardTool(int shardSize) {
+		this.shardSize = shardSize;
+	}
+
+	/**
+	 * Split server metadata into shards and write the root index.
+	 * Shards are written to a `.shards` directory beside the root index.
+	 * @param input			Complete server metadata
+	 * @param output		Where the root index is written
+	 * @return				Shards listed in the root index
+	 * @throws IOException
+	 */
+	List<ShardedCatalog.Shard> split(Path input, Path output) throws IOException {
+		JsonObject meta;
+		try (Reader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+			meta = JsonParser.parseReader(reader).getAsJsonObject();
+		}
+		if (meta.has(ShardedCatalog.SHARDS_KEY)) {
+			throw new IOException(input + " is already a root index of shards");
+		}
+		TreeMap<String, JsonElement> entries = new TreeMap<>();
+		for (String key : meta.keySet()) {
+			entries.put(key, meta.get(key));
+		}
+		Path root = output.toAbsolutePath().getParent();
+		String shardDirName = output.getFileName() + ".shards";
+		Files.createDirectories(root.resolve(shardDirName));
+		Gson gson = new Gson();
+		List<ShardedCatalog.Shard> shards = new ArrayList<>();
+		for (List<String> range : ranges(entries, getBoundaries(output))) {
+			JsonObject shard = new JsonObject();
+			for (String key : range) {
+				shard.add(key, entries.get(key));
+			}
+			byte[] json = gson.toJson(shard).getBytes(StandardCharsets.UTF_8);
+			String sha256 = DigestUtils.sha256Hex(json);
+			String path = shardDirName + "/" + sha256 + ".json";
+			Path shardFile = root.resolve(path);
+			if (!Files.exists(shardFile)) {
+				Downloader.writeAtomically(shardFile, tmp -> Files.write(tmp, json));
+			}
+			shards.add(new ShardedCatalog.Shard(path, Checksum.sha256(sha256), range.get(0)));
+		}
+		JsonArray list = new JsonArray();
+		for (ShardedCatalog.Shard shard : shards) {
+			JsonObject entry = new JsonObject();
+			entry.addProperty("path", shard.path);
+			entry.addProperty("sha256", shard.checksum.getHex().toLowerCase(Locale.ROOT));
+			entry.addProperty("first", shard.first);
+			list.add(entry);
+		}
+		JsonObject index = new JsonObject();
+		index.add(ShardedCatalog.SHARDS_KEY, list);
+		Gson pretty = new GsonBuilder().setPrettyPrinting().create();
+		byte[] indexJson = pretty.toJson(index).getBytes(StandardCharsets.UTF_8);
+		Downloader.writeAtomically(output, tmp -> Files.write(tmp, indexJson));
+		return shards;
+	}
+
+	/**
+	 * Get the first key of each shard after the first in an existing root index.
+	 * @param output		Existing root index, which may not exist
+	 * @return				Keys where a new shard starts, in order
+	 * @throws IOException	If the existing root index is unreadable or malformed
+	 */
+	private static List<String> getBoundaries(Path output) throws IOException {
+		List<String> boundaries = new ArrayList<>();
+		if (!Files.exists(output)) {
+			return boundaries;
+		}
+		List<ShardedCatalog.Shard> previous = ShardedCatalog.readIndex(output.toFile());
+		if (previous == null) {
+			return boundaries;
+		}
+		for (int s = 1; s < previous.size(); s++) {
+			if (previous.get(s).first != null) {
+				boundaries.add(previous.get(s).first);
+			}
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Group sorted keys into shards. Keys are grouped by the given boundaries,
+	 * and groups more than twice the shard size are split evenly.
+	 * @param entries		Entries sorted by key
+	 * @param boundaries	Keys where a shard starts, in order
+	 * @return				Keys of each non-empty shard, in order
+	 */
+	private List<List<String>> ranges(TreeMap<String, JsonElement> entries,
+			List<String> boundaries) {
+		List<List<String>> groups = new ArrayList<>();
+		List<String> group = new ArrayList<>();
+		int boundary = 0;
+		for (String key : entries.keySet()) {
+			while (boundary < boundaries.size() && key.compareTo(boundaries.get(boundary)) >= 0) {
+				groups.add(group);
+				group = new ArrayList<>();
+				boundary++;
+			}
+			group.add(key);
+		}
+		groups.add(group);
+		List<List<String>> ranges = new ArrayList<>();
+		for (List<String> keys : groups) {
+			if (keys.isEmpty()) {
+				continue;
+			}
+			if (keys.size() <= 2 * shardSize) {
+				ranges.add(keys);
+				continue;
+			}
+			for (int start = 0; start < keys.size(); start += shardSize) {
+				ranges.add(keys.subList(start, Math.min(start + shardSize, keys.size())));
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Split server metadata into shards.
+	 * Usage: ShardTool input.json output.json [entriesPerShard]
+	 * @param args			Complete server metadata, where to write the root
+	 * 						index, and optionally the target entries per shard
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ShardTool input.json output.json [entriesPerShard]");
+			return;
+		}
+		Path input = Paths.get(args[0].trim());
+		Path output = Paths.get(args[1].trim());
+		int shardSize = args.length > 2
+				? Integer.parseInt(args[2].trim())
+				: DEFAULT_SHARD_SIZE;
+		try {
+			List<ShardedCatalog.Shard> shards = new ShardTool(shardSize).split(input, output);
+			System.out.println("Wrote " + output + " with " + shards.size() + " shards in "
+					+ new File(output.toString() + ".shards"));
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to shard " + input + ": " + e);
+		}
+	}
+}
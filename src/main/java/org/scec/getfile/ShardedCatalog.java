@@ -0,0 +1,400 @@
+package org.scec.getfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The ShardedCatalog combines the ServerCatalogs of server metadata split into
+ * shards by key range. Shards are ordered by key, so their entries together are
+ * in key order and each entry has a single index across all shards.
+ * A monolithic server metadata file is a catalog of one shard.
+ * <p>
+ * Sharded server metadata is a small root index listing each shard with its
+ * digest, under the reserved key `$shards`. Clients keep shards by digest, so
+ * only shards whose digest changed are downloaded and parsed again.
+ * </p>
+ */
+class ShardedCatalog {
+	// Reserved root key listing the shards of server metadata
+	static final String SHARDS_KEY = "$shards";
+
+	private final ServerCatalog[] shards;
+	// Index of the first entry of each shard, followed by the total entry count
+	private final int[] bases;
+	// Digest of the entries, built when first compared
+	private StateDigest.Server digest;
+
+	/**
+	 * A shard listed in the root index of sharded server metadata
+	 */
+	static class Shard {
+		// Path of the shard relative to the server root
+		final String path;
+		// Digest of the shard file
+		final Checksum checksum;
+		// First key in the shard, used by ShardTool to keep shard boundaries
+		final String first;
+
+		/**
+		 * Shard constructor
+		 * @param path			Path of the shard relative to the server root
+		 * @param checksum		Digest of the shard file
+		 * @param first			First key in the shard, or null if unknown
+		 */
+		Shard(String path, Checksum checksum, String first) {
+			this.path = path;
+			this.checksum = checksum;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * ShardedCatalog constructor
+	 * @param shards		Non-empty catalogs in key order without overlap
+	 */
+	private ShardedCatalog(ServerCatalog[] shards) {
+		this.shards = shards;
+		this.bases = new int[shards.length + 1];
+		for (int s = 0; s < shards.length; s++) {
+			bases[s + 1] = bases[s] + shards[s].size();
+		}
+	}
+
+	/**
+	 * Combine the catalogs of each shard.
+	 * @param catalogs		Catalog of each shard, in key order
+	 * @return				Combined catalog, or null if the shards overlap
+	 */
+	static ShardedCatalog of(List<ServerCatalog> catalogs) {
+		List<ServerCatalog> nonEmpty = new ArrayList<>(catalogs.size());
+		for (ServerCatalog catalog : catalogs) {
+			if (catalog.size() == 0) {
+				continue;
+			}
+			if (!nonEmpty.isEmpty()) {
+				ServerCatalog previous = nonEmpty.get(nonEmpty.size() - 1);
+				if (catalog.compareKey(0, previous.getKey(previous.size() - 1)) <= 0) {
+					SimpleLogger.LOG(System.err, "Shards of server metadata aren't in key order");
+					return null;
+				}
+			}
+			nonEmpty.add(catalog);
+		}
+		return new ShardedCatalog(nonEmpty.toArray(new ServerCatalog[0]));
+	}
+
+	/**
+	 * Read the shards listed in the root index of server metadata.
+	 * Only the start of the file is read when it isn't a root index.
+	 * @param file			Cached server metadata file
+	 * @return				Shards in key order, or null if the file isn't a root index
+	 * @throws IOException	If the file can't be read, or is a root index with a
+	 * 						malformed shard. The whole index is rejected when
+	 * 						any shard's sha256 isn't a SHA-256 digest.
+	 */
+	static List<Shard> readIndex(File file) throws IOException {
+		try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			JsonReader reader = new JsonReader(in);
+			try {
+				reader.beginObject();
+				if (!reader.hasNext() || !reader.nextName().equals(SHARDS_KEY)) {
+					return null;
+				}
+			} catch (JsonParseException | IllegalStateException e) {
+				// Not JSON server metadata, let alone a root index
+				return null;
+			}
+			try {
+				return readShards(reader, file);
+			} catch (JsonParseException | IllegalStateException e) {
+				throw new IOException("Malformed root index " + file.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Read the list of shards of a root index.
+	 * @param reader		Reader positioned at the list of shards
+	 * @param file			Root index being read, for errors
+	 * @return				Shards in key order
+	 * @throws IOException	If a shard is missing its path or has a malformed sha256
+	 */
+	private static List<Shard> readShards(JsonReader reader, File file) throws IOException {
+		List<Shard> shards = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			String path = null;
+			String sha256 = null;
+			String first = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String field = reader.nextName();
+				if (reader.peek() != JsonToken.STRING) {
+					reader.skipValue();
+					continue;
+				}
+				switch (field) {
+					case "path":
+						path = reader.nextString();
+						break;
+					case "sha256":
+						sha256 = reader.nextString();
+						break;
+					case "first":
+						first = reader.nextString();
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (path == null || sha256 == null) {
+				throw new IOException("Shard missing path or sha256 in " + file.getName());
+			}
+			// Shards are cached under their digest, so it must be safe to use as a file name
+			Checksum checksum = Checksum.sha256(sha256);
+			if (!checksum.isWellFormed()) {
+				throw new IOException(
+						"Malformed shard sha256 \"" + sha256 + "\" in " + file.getName());
+			}
+			shards.add(new Shard(path, checksum, first));
+		}
+		reader.endArray();
+		return shards;
+	}
+
+	/**
+	 * Find the entry for a file key
+	 * @param key			Key in the meta.json file. Not necessarily filename.
+	 * @return				Entry index, or a negative number if not found
+	 */
+	int indexOf(String key) {
+		// Last shard starting at or before the key
+		int low = 0;
+		int high = shards.length - 1;
+		int shard = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (shards[mid].compareKey(0, key) <= 0) {
+				shard = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (shard < 0) {
+			return -1;
+		}
+		int index = shards[shard].indexOf(key);
+		return index < 0 ? -1 : bases[shard] + index;
+	}
+
+	/**
+	 * Number of files in the catalog
+	 * @return				Count of entries in every shard
+	 */
+	int size() {
+		return bases[shards.length];
+	}
+
+	/**
+	 * Get the key of a file
+	 * @param index			Entry index
+	 * @return				Key in the meta.json file
+	 */
+	String getKey(int index) {
+		int shard = shardOf(index);
+		return shards[shard].getKey(index - bases[shard]);
+	}
+
+	/**
+	 * Get the version of a file
+	 * @param index			Entry index
+	 * @return				Version, or null if the entry has none
+	 */
+	String getVersion(int index) {
+		int shard = shardOf(index);
+		return shards[shard].getVersion(index - bases[shard]);
+	}
+
+	/**
+	 * Get the path of a file
+	 * @param index			Entry index
+	 * @return				Path relative to the server root, or null if the entry has none
+	 */
+	String getPath(int index) {
+		int shard = shardOf(index);
+		return shards[shard].getPath(index - bases[shard]);
+	}
+
+	/**
+	 * Compare the path of a file with another path without rebuilding it
+	 * @param index			Entry index
+	 * @param path			Path to compare with, or null
+	 * @return				true if the paths are equal or both missing
+	 */
+	boolean pathEquals(int index, String path) {
+		int shard = shardOf(index);
+		return shards[shard].pathEquals(index - bases[shard], path);
+	}
+
+	/**
+	 * Check whether a file has a path
+	 * @param index			Entry index
+	 * @return				true if the entry has a path
+	 */
+	boolean hasPath(int index) {
+		int shard = shardOf(index);
+		return shards[shard].hasPath(index - bases[shard]);
+	}
+
+	/**
+	 * Continue a StateDigest hash with the characters of a file key, read in place
+	 * @param index			Entry index
+	 * @param hash			Hash so far
+	 * @return				Hash including the key
+	 */
+	long hashKey(int index, long hash) {
+		int shard = shardOf(index);
+		return shards[shard].hashKey(index - bases[shard], hash);
+	}
+
+	/**
+	 * Continue a StateDigest hash with the characters of a file path, read in place
+	 * @param index			Entry index, which must have a path
+	 * @param hash			Hash so far
+	 * @return				Hash including the path
+	 */
+	long hashPath(int index, long hash) {
+		int shard = shardOf(index);
+		return shards[shard].hashPath(index - bases[shard], hash);
+	}
+
+	/**
+	 * Compare the expected checksum of a file with another without decoding it
+	 * @param index			Entry index
+	 * @param checksum		Checksum to compare with, or null
+	 * @return				true if both use the same algorithm and digest
+	 */
+	boolean checksumMatches(int index, Checksum checksum) {
+		int shard = shardOf(index);
+		return shards[shard].checksumMatches(index - bases[shard], checksum);
+	}
+
+	/**
+	 * Get the expected checksum of a file
+	 * @param index			Entry index
+	 * @return				SHA-256 if provided, otherwise MD5, or null if the entry has neither
+	 */
+	Checksum getChecksum(int index) {
+		int shard = shardOf(index);
+		return shards[shard].getChecksum(index - bases[shard]);
+	}
+
+	/**
+	 * Get the size of a file
+	 * @param index			Entry index
+	 * @return				Size in bytes, or -1 if the entry has none
+	 */
+	long getSize(int index) {
+		int shard = shardOf(index);
+		return shards[shard].getSize(index - bases[shard]);
+	}
+
+	/**
+	 * Get a field of a file that has no typed accessor
+	 * @param index			Entry index
+	 * @param field			Field name, i.e. blocks, gzip
+	 * @return				Field value as a string, or null if the entry has none
+	 */
+	String getExtra(int index, String field) {
+		int shard = shardOf(index);
+		return shards[shard].getExtra(index - bases[shard], field);
+	}
+
+	/**
+	 * Get the digest of every entry, for finding the entries that differ from
+	 * client metadata. It's built on first use and kept with the catalog.
+	 * @return				Digest of the catalog
+	 */
+	synchronized StateDigest.Server getDigest() {
+		if (digest == null) {
+			digest = new StateDigest.Server(this);
+		}
+		return digest;
+	}
+
+	/**
+	 * Check whether another catalog has the same entries, such as one loaded
+	 * again from unchanged server metadata.
+	 * @param other			Catalog to compare with, or null
+	 * @return				true if every key has the same version and path
+	 */
+	boolean hasSameEntries(ShardedCatalog other) {
+		return other == this || (other != null && size() == other.size()
+				&& getDigest().hasSameEntries(other.getDigest()));
+	}
+
+	/**
+	 * Find the shard holding an entry
+	 * @param index			Entry index
+	 * @return				Shard index
+	 */
+	private int shardOf(int index) {
+		int shard = Arrays.binarySearch(bases, 0, shards.length, index);
+		return shard >= 0 ? shard : -shard - 2;
+	}
+
+	/**
+	 * View of the file keys of every shard in sorted order.
+	 * @return				Read-only set of file keys
+	 */
+	Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < size();
+					}
+
+					@Override
+					public String next() {
+						if (next >= size()) {
+							throw new NoSuchElementException();
+						}
+						int shard = shardOf(next);
+						return shards[shard].getKey(next++ - bases[shard]);
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object key) {
+				return key instanceof String && indexOf((String) key) >= 0;
+			}
+
+			@Override
+			public int size() {
+				return ShardedCatalog.this.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,307 @@
+package org.scec.getfile;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The StateDigest summarises the file entries of client or server metadata as
+ * a hash tree, so the entries that differ between them are found by comparing
+ * hashes from the root down instead of comparing every entry.
+ * <p>
+ * Keys are spread over a fixed number of buckets by the hash of the key, so a
+ * key falls in the same bucket on the client and the server. Each entry hashes
+ * its key, version and path, and every node of the tree holds the sum of the
+ * entry hashes below it. Sums let an entry change in place by updating only the
+ * nodes above it. Subtrees with equal sums are skipped, so comparing two digests
+ * only visits the buckets holding changed entries.
+ * </p>
+ */
+abstract class StateDigest {
+	// Levels of the tree below the root
+	private static final int DEPTH = 14;
+	private static final int BUCKETS = 1 << DEPTH;
+	// FNV-1a parameters for hashing keys and entries
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	// Sum of the entry hashes below each node. Node 1 is the root, the children
+	// of node n are 2n and 2n+1, and bucket b is node BUCKETS + b.
+	private final long[] nodes = new long[2 * BUCKETS];
+
+	/**
+	 * Get the entries of a bucket
+	 * @param bucket		Bucket index
+	 * @return				Mapping of key to entry hash
+	 */
+	abstract Map<String, Long> getEntries(int bucket);
+
+	/**
+	 * Add to the sum of a bucket and of every node above it
+	 * @param bucket		Bucket index
+	 * @param delta			Change in the sum of entry hashes
+	 */
+	private void add(int bucket, long delta) {
+		for (int node = BUCKETS + bucket; node > 0; node >>>= 1) {
+			nodes[node] += delta;
+		}
+	}
+
+	/**
+	 * Check whether another digest summarises the same entries, comparing
+	 * only the roots of the trees.
+	 * @param other			Digest of other metadata
+	 * @return				true if the entries are the same
+	 */
+	boolean hasSameEntries(StateDigest other) {
+		return nodes[1] == other.nodes[1];
+	}
+
+	/**
+	 * Find the keys whose entries differ between two digests, including keys
+	 * found in only one of them.
+	 * @param a				Digest of one metadata
+	 * @param b				Digest of the other metadata
+	 * @return				Differing keys in sorted order
+	 */
+	static Set<String> diff(StateDigest a, StateDigest b) {
+		Set<String> changed = new TreeSet<>();
+		diff(a, b, 1, changed);
+		return changed;
+	}
+
+	/**
+	 * Find the differing keys below a node
+	 * @param a				Digest of one metadata
+	 * @param b				Digest of the other metadata
+	 * @param node			Node to compare
+	 * @param changed		Where differing keys are added
+	 */
+	private static void diff(StateDigest a, StateDigest b, int node, Set<String> changed) {
+		if (a.nodes[node] == b.nodes[node]) {
+			return;
+		}
+		if (node < BUCKETS) {
+			diff(a, b, 2 * node, changed);
+			diff(a, b, 2 * node + 1, changed);
+			return;
+		}
+		Map<String, Long> entriesA = a.getEntries(node - BUCKETS);
+		Map<String, Long> entriesB = b.getEntries(node - BUCKETS);
+		for (Map.Entry<String, Long> entry : entriesA.entrySet()) {
+			if (!entry.getValue().equals(entriesB.get(entry.getKey()))) {
+				changed.add(entry.getKey());
+			}
+		}
+		for (String key : entriesB.keySet()) {
+			if (!entriesA.containsKey(key)) {
+				changed.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Get the bucket a key falls in
+	 * @param key			Key in the metadata file
+	 * @return				Bucket index
+	 */
+	static int bucketOf(String key) {
+		return bucket(hash(FNV_OFFSET, key));
+	}
+
+	/**
+	 * Get the bucket of a key from the hash of the key
+	 * @param keyHash		FNV-1a hash of the key field
+	 * @return				Bucket index
+	 */
+	private static int bucket(long keyHash) {
+		return (int) (mix(keyHash) >>> (Long.SIZE - DEPTH));
+	}
+
+	/**
+	 * Hash the fields of an entry that decide whether a file must be updated
+	 * @param key			Key in the metadata file
+	 * @param version		Version of the file, or null if the entry has none
+	 * @param path			Path of the file, or null if the entry has none
+	 * @return				Entry hash
+	 */
+	static long hashEntry(String key, String version, String path) {
+		long hash = hash(FNV_OFFSET, key);
+		hash = hash(hash, version);
+		return mix(hash(hash, path));
+	}
+
+	/**
+	 * Hash the fields of a server entry read in place from the catalog,
+	 * giving the same hash as hashEntry without decoding the key or path.
+	 * @param catalog		Catalog of the server files
+	 * @param index			Entry index
+	 * @param keyHash		FNV-1a hash of the key field
+	 * @return				Entry hash
+	 */
+	static long hashEntry(ShardedCatalog catalog, int index, long keyHash) {
+		long hash = hash(keyHash, catalog.getVersion(index));
+		hash = catalog.hasPath(index)
+				? endField(catalog.hashPath(index, hash))
+				: nullField(hash);
+		return mix(hash);
+	}
+
+	/**
+	 * Hash the key field of a server entry read in place from the catalog
+	 * @param catalog		Catalog of the server files
+	 * @param index			Entry index
+	 * @return				FNV-1a hash of the key field
+	 */
+	static long hashKey(ShardedCatalog catalog, int index) {
+		return endField(catalog.hashKey(index, FNV_OFFSET));
+	}
+
+	/**
+	 * Continue an FNV-1a hash with a field. Fields are terminated so that moving
+	 * characters between adjacent fields changes the hash.
+	 * @param hash			Hash so far
+	 * @param field			Field to hash, or null
+	 * @return				Hash including the field
+	 */
+	private static long hash(long hash, String field) {
+		if (field == null) {
+			return nullField(hash);
+		}
+		for (int i = 0; i < field.length(); i++) {
+			hash = hashChar(hash, field.charAt(i));
+		}
+		return endField(hash);
+	}
+
+	/**
+	 * Continue an FNV-1a hash with a character of a field
+	 * @param hash			Hash so far
+	 * @param c				Character to hash
+	 * @return				Hash including the character
+	 */
+	static long hashChar(long hash, char c) {
+		return (hash ^ c) * FNV_PRIME;
+	}
+
+	/**
+	 * Terminate a field in an FNV-1a hash
+	 * @param hash			Hash including the characters of the field
+	 * @return				Hash including the field
+	 */
+	private static long endField(long hash) {
+		return (hash ^ 0xfffe) * FNV_PRIME;
+	}
+
+	/**
+	 * Hash a missing field
+	 * @param hash			Hash so far
+	 * @return				Hash including the missing field
+	 */
+	private static long nullField(long hash) {
+		return (hash ^ 0xffff) * FNV_PRIME;
+	}
+
+	/**
+	 * Spread the bits of a hash so that sums of hashes rarely collide
+	 * @param hash			FNV-1a hash
+	 * @return				Mixed hash
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	/**
+	 * Digest of client metadata, updated in place as entries change.
+	 * Not thread safe, so callers synchronize on the client metadata.
+	 */
+	static class Client extends StateDigest {
+		// Key => entry hash, for each bucket holding entries
+		private final Map<Integer, Map<String, Long>> buckets = new HashMap<>();
+
+		/**
+		 * Add or replace the entry for a key
+		 * @param key		Key in the getfile.json file
+		 * @param version	Version of the file, or null if the entry has none
+		 * @param path		Path of the file, or null if the entry has none
+		 */
+		void put(String key, String version, String path) {
+			int bucket = bucketOf(key);
+			long hash = hashEntry(key, version, path);
+			Long previous = buckets.computeIfAbsent(bucket, b -> new HashMap<>()).put(key, hash);
+			super.add(bucket, previous == null ? hash : hash - previous);
+		}
+
+		/**
+		 * Remove the entry for a key if there is one
+		 * @param key		Key in the getfile.json file
+		 */
+		void remove(String key) {
+			int bucket = bucketOf(key);
+			Map<String, Long> entries = buckets.get(bucket);
+			Long previous = entries == null ? null : entries.remove(key);
+			if (previous != null) {
+				super.add(bucket, -previous);
+			}
+		}
+
+		@Override
+		Map<String, Long> getEntries(int bucket) {
+			Map<String, Long> entries = buckets.get(bucket);
+			return entries == null ? new HashMap<String, Long>() : entries;
+		}
+	}
+
+	/**
+	 * Digest of server metadata, built once from its catalog. Entries are kept
+	 * as catalog indexes grouped by bucket, and only the keys of buckets being
+	 * compared are decoded. Hashes are computed from the catalog in place.
+	 */
+	static class Server extends StateDigest {
+		private final ShardedCatalog catalog;
+		// Catalog indexes grouped by bucket
+		private final int[] order;
+		// Position in order where each bucket starts, followed by the entry count
+		private final int[] starts = new int[BUCKETS + 1];
+
+		/**
+		 * Server constructor
+		 * @param catalog	Catalog of the server files
+		 */
+		Server(ShardedCatalog catalog) {
+			this.catalog = catalog;
+			int size = catalog.size();
+			int[] buckets = new int[size];
+			for (int index = 0; index < size; index++) {
+				long keyHash = hashKey(catalog, index);
+				int bucket = bucket(keyHash);
+				buckets[index] = bucket;
+				starts[bucket + 1]++;
+				super.add(bucket, hashEntry(catalog, index, keyHash));
+			}
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				starts[bucket + 1] += starts[bucket];
+			}
+			int[] next = starts.clone();
+			order = new int[size];
+			for (int index = 0; index < size; index++) {
+				order[next[buckets[index]]++] = index;
+			}
+		}
+
+		@Override
+		Map<String, Long> getEntries(int bucket) {
+			Map<String, Long> entries = new HashMap<>();
+			for (int i = starts[bucket]; i < starts[bucket + 1]; i++) {
+				int index = order[i];
+				entries.put(catalog.getKey(index),
+						hashEntry(catalog, index, hashKey(catalog, index)));
+			}
+			return entries;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.scec.getfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable plan of what GetFile.updateAll would do: the files to download,
+ * the files to move to a new path, and the files to delete. A plan is computed
+ * from the client and server metadata in memory without any file I/O, and is
+ * carried out with GetFile.execute so the action matches the decision.
+ * <p>
+ * Sizes come from server metadata. Downloads may transfer fewer bytes than
+ * planned when a file is already in the object store or only changed blocks
+ * are fetched, and the user may decline downloads that prompt.
+ * </p>
+ */
+public final class UpdatePlan {
+	// Metadata the plan was computed from
+	final MetadataHandler meta;
+	final ShardedCatalog catalog;
+	private final List<Download> downloads;
+	private final List<Move> moves;
+	private final List<Deletion> deletions;
+	private final long totalBytes;
+
+	/**
+	 * A file to download because its version differs from the server
+	 */
+	public static final class Download {
+		private final String fileKey;
+		private final String fromVersion;
+		private final String toVersion;
+		private final String path;
+		private final long size;
+
+		private Download(String fileKey, String fromVersion, String toVersion,
+				String path, long size) {
+			this.fileKey = fileKey;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.path = path;
+			this.size = size;
+		}
+
+		/**
+		 * @return Key of the file in server metadata
+		 */
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		/**
+		 * @return Version on the client, or null if the file is new
+		 */
+		public String getFromVersion() {
+			return fromVersion;
+		}
+
+		/**
+		 * @return Version on the server
+		 */
+		public String getToVersion() {
+			return toVersion;
+		}
+
+		/**
+		 * @return Where the file is downloaded, relative to the client metadata file
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return Size in bytes, or -1 if server metadata has none
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return fileKey + " " + fromVersion + " => " + toVersion
+					+ (size < 0 ? "" : " (" + size + " bytes)");
+		}
+	}
+
+	/**
+	 * A file to move because its path differs from the server
+	 */
+	public static final class Move {
+		private final String fileKey;
+		private final String fromPath;
+		private final String toPath;
+
+		private Move(String fileKey, String fromPath, String toPath) {
+			this.fileKey = fileKey;
+			this.fromPath = fromPath;
+			this.toPath = toPath;
+		}
+
+		/**
+		 * @return Key of the file in server metadata
+		 */
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		/**
+		 * @return Current path, relative to the client metadata file
+		 */
+		public String getFromPath() {
+			return fromPath;
+		}
+
+		/**
+		 * @return New path, relative to the client metadata file
+		 */
+		public String getToPath() {
+			return toPath;
+		}
+
+		@Override
+		public String toString() {
+			return fileKey + " " + fromPath + " => " + toPath;
+		}
+	}
+
+	/**
+	 * A file to delete because it was removed from the server
+	 */
+	public static final class Deletion {
+		private final String fileKey;
+		private final String path;
+
+		private Deletion(String fileKey, String path) {
+			this.fileKey = fileKey;
+			this.path = path;
+		}
+
+		/**
+		 * @return Key of the file in client metadata
+		 */
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		/**
+		 * @return Path of the file relative to the client metadata file,
+		 * 			or null if client metadata has none
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return fileKey + (path == null ? "" : " " + path);
+		}
+	}
+
+	/**
+	 * UpdatePlan constructor
+	 * @param meta			Metadata the plan was computed from
+	 * @param catalog		Server metadata the plan was computed from
+	 * @param downloads		Files to download
+	 * @param moves			Files to move
+	 * @param deletions		Files to delete
+	 */
+	private UpdatePlan(MetadataHandler meta, ShardedCatalog catalog,
+			List<Download> downloads, List<Move> moves, List<Deletion> deletions) {
+		this.meta = meta;
+		this.catalog = catalog;
+		this.downloads = Collections.unmodifiableList(downloads);
+		this.moves = Collections.unmodifiableList(moves);
+		this.deletions = Collections.unmodifiableList(deletions);
+		long total = 0;
+		for (Download download : downloads) {
+			if (download.size > 0) {
+				total += download.size;
+			}
+		}
+		this.totalBytes = total;
+	}
+
+	/**
+	 * Plan the update of every changed file. Only metadata in memory is read.
+	 * @param meta			Client and server metadata
+	 * @return				Plan to carry out with GetFile.execute
+	 */
+	static UpdatePlan plan(MetadataHandler meta) {
+		ShardedCatalog catalog = meta.getServerCatalog();
+		List<Download> downloads = new ArrayList<>();
+		List<Move> moves = new ArrayList<>();
+		List<Deletion> deletions = new ArrayList<>();
+		for (String fileKey : meta.getChangedFiles(catalog)) {
+			String clientVersion = meta.getClientVersion(fileKey);
+			String clientPath = meta.getClientFilePath(fileKey);
+			int index = catalog == null ? -1 : catalog.indexOf(fileKey);
+			if (index < 0) {
+				deletions.add(new Deletion(fileKey, clientPath));
+				continue;
+			}
+			String serverVersion = catalog.getVersion(index);
+			if (serverVersion == null || !catalog.hasPath(index)) {
+				// GetFile can't update an entry without a version and path
+				continue;
+			}
+			boolean moved = clientVersion != null && clientPath != null
+					&& !catalog.pathEquals(index, clientPath);
+			boolean changed = !serverVersion.equals(clientVersion);
+			if (!moved && !changed) {
+				continue;
+			}
+			// Only paths the plan holds are rebuilt from the catalog
+			String serverPath = catalog.getPath(index);
+			if (moved) {
+				moves.add(new Move(fileKey, clientPath, serverPath));
+			}
+			if (changed) {
+				downloads.add(new Download(fileKey,
+						clientVersion == null || clientVersion.isEmpty() ? null : clientVersion,
+						serverVersion, serverPath, catalog.getSize(index)));
+			}
+		}
+		return new UpdatePlan(meta, catalog, downloads, moves, deletions);
+	}
+
+	/**
+	 * @return Files to download, in key order
+	 */
+	public List<Download> getDownloads() {
+		return downloads;
+	}
+
+	/**
+	 * @return Files to move to a new path, in key order
+	 */
+	public List<Move> getMoves() {
+		return moves;
+	}
+
+	/**
+	 * @return Files to delete, in key order
+	 */
+	public List<Deletion> getDeletions() {
+		return deletions;
+	}
+
+	/**
+	 * @return Bytes to download. Downloads of unknown size aren't counted.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return Whether every file is already up to date
+	 */
+	public boolean isEmpty() {
+		return downloads.isEmpty() && moves.isEmpty() && deletions.isEmpty();
+	}
+
+	/**
+	 * Check whether the server metadata still has the entries the plan was
+	 * computed from. Loading the same server metadata again keeps a plan current.
+	 * @return true if the plan can still be carried out
+	 */
+	boolean isCurrent() {
+		ShardedCatalog current = meta.getServerCatalog();
+		return current == catalog || (catalog != null && catalog.hasSameEntries(current));
+	}
+
+	/**
+	 * Keys of the files to download or move
+	 * @return Keys in sorted order
+	 */
+	Set<String> getUpdatedFiles() {
+		Set<String> updated = new TreeSet<>();
+		for (Download download : downloads) {
+			updated.add(download.fileKey);
+		}
+		for (Move move : moves) {
+			updated.add(move.fileKey);
+		}
+		return updated;
+	}
+
+	@Override
+	public String toString() {
+		return downloads.size() + " downloads (" + totalBytes + " bytes), "
+				+ moves.size() + " moves, " + deletions.size() + " deletions";
+	}
+}
@@ -117,6 +117,13 @@ public abstract class BaseWireMockTest {
         return serverBaseURI;
     }
 
+    /**
+     * Get the WireMock server, to add stubs or check the requests it received
+     */
+    protected WireMockServer getWireMockServer() {
+        return wireMockServer;
+    }
+
     /**
      * Stop WireMock server after each test
      */
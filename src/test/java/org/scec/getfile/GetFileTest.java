@@ -1,20 +1,50 @@
 package org.scec.getfile;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -88,9 +118,9 @@ public class GetFileTest extends BaseWireMockTest {
 	 */
 	@Test
 	public void latestVersion() {
-		assertEquals("v0.1.1", meta.getServerMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getServerMeta("file2", "version"));
-		assertEquals("v0.1.2", meta.getServerMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getServerVersion("file1"));
+		assertEquals("v1.3.1", meta.getServerVersion("file2"));
+		assertEquals("v0.1.2", meta.getServerVersion("file3"));
 	}
 
 	/**
@@ -98,9 +128,9 @@ public class GetFileTest extends BaseWireMockTest {
 	 */
 	@Test
 	public void currentVersion() {
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file4", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v1.0.0", meta.getClientVersion("file4"));
 	}
 
 	/**
@@ -112,9 +142,9 @@ public class GetFileTest extends BaseWireMockTest {
 	@Test
 	public void updateAll() throws IOException, InterruptedException, ExecutionException {
 		// Ensure initial state of local meta
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file4", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v1.0.0", meta.getClientVersion("file4"));
 		// Initial state of file data
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
@@ -123,9 +153,9 @@ public class GetFileTest extends BaseWireMockTest {
 		backupManager.backup();
 		getfile.updateAll().get();
 		// Local meta should be updated
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file4", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file4"));
 		// Updated file data
 		assertEquals("Hi! I'm file2 at v1.3.1.\n",
                 FileUtils.readFileToString(
@@ -133,15 +163,44 @@ public class GetFileTest extends BaseWireMockTest {
 		// Rollback to previous state
 		backupManager.rollback();
 		// Local meta should be back at initial state
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file4", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v1.0.0", meta.getClientVersion("file4"));
 		// also reverted file data to initial state
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
                         new File(clientRoot+"data/file2.txt"), "utf-8"));
 	}
 
+	/**
+	 * Lazy backups only capture changed files but roll back the same way
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void lazyUpdateAll() throws IOException, InterruptedException, ExecutionException {
+		backupManager.lazyBackup();
+		// Nothing is captured until a file changes
+		assertFalse(new File(clientRoot+"data/file2.txt.bak").exists());
+		getfile.updateAll().get();
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file4"));
+		assertTrue(backupManager.backupExists());
+		backupManager.rollback();
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v1.0.0", meta.getClientVersion("file4"));
+		assertNull(meta.getClientVersion("file3"));
+		assertEquals("Hi! I'm file2 at v1.0.0.\n",
+                FileUtils.readFileToString(
+                        new File(clientRoot+"data/file2.txt"), "utf-8"));
+		assertEquals("Hi! I'm file4 at v1.0.0.\n",
+                FileUtils.readFileToString(
+                        new File(clientRoot+"data/file4.txt"), "utf-8"));
+		assertFalse(new File(clientRoot+"data/file3/file3.txt").exists());
+	}
+
 	/**
 	 * Attempting to update multiple times shouldn't corrupt backups
 	 * @throws IOException
@@ -151,8 +210,8 @@ public class GetFileTest extends BaseWireMockTest {
 	@Test
 	public void multipleUpdateAll() throws IOException, InterruptedException, ExecutionException {
 		// Ensure initial state of local meta
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
 		// Initial state of file data
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
@@ -161,8 +220,8 @@ public class GetFileTest extends BaseWireMockTest {
 		backupManager.backup();
 		getfile.updateAll().get();
 		// Local meta should be updated
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
 		// Updated file data
 		assertEquals("Hi! I'm file2 at v1.3.1.\n",
                 FileUtils.readFileToString(
@@ -172,16 +231,16 @@ public class GetFileTest extends BaseWireMockTest {
 		getfile.updateAll().get();
 		getfile.updateAll().get();
 		// Local meta should be updated
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
 		assertEquals("Hi! I'm file2 at v1.3.1.\n",
                 FileUtils.readFileToString(
                         new File(clientRoot+"data/file2.txt"), "utf-8"));
 		// Rollback to previous state
 		backupManager.rollback();
 		// Local meta should be back at initial state
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
 		// also reverted file data to initial state
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
@@ -189,14 +248,80 @@ public class GetFileTest extends BaseWireMockTest {
 	}
 
 
+	/**
+	 * Updating with a single download at a time or many at once should produce
+	 * the same results.
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void updateAllConcurrency() throws IOException, InterruptedException, ExecutionException {
+		for (int maxConcurrentDownloads : new int[] {1, 8}) {
+			GetFile concurrentGetFile = new GetFile(
+					/*name=*/this.getClass().getName(),
+					meta.getClientMetaFile(),
+					List.of(getServerMetaURI()),
+					/*showProgress=*/false,
+					maxConcurrentDownloads);
+			backupManager.backup();
+			Map<String, File> updated = concurrentGetFile.updateAll().get();
+			assertEquals(Set.of("file1", "file2", "file3"), updated.keySet());
+			assertEquals("v0.1.1", meta.getClientVersion("file1"));
+			assertEquals("v1.3.1", meta.getClientVersion("file2"));
+			assertEquals("v0.1.2", meta.getClientVersion("file3"));
+			assertEquals("Hi! I'm file3 at v0.1.2!\n",
+					FileUtils.readFileToString(updated.get("file3"), "utf-8"));
+			backupManager.rollback();
+			assertEquals("v1.0.0", meta.getClientVersion("file2"));
+			assertNull(meta.getClientVersion("file3"));
+		}
+	}
+
+	/**
+	 * A plan lists what updateAll would change without changing anything,
+	 * and executing it makes those changes.
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void planUpdate() throws IOException, InterruptedException, ExecutionException {
+		UpdatePlan plan = getfile.planUpdate();
+		assertEquals(2, plan.getDownloads().size());
+		assertEquals("file2", plan.getDownloads().get(0).getFileKey());
+		assertEquals("v1.0.0", plan.getDownloads().get(0).getFromVersion());
+		assertEquals("v1.3.1", plan.getDownloads().get(0).getToVersion());
+		assertEquals("file3", plan.getDownloads().get(1).getFileKey());
+		assertNull(plan.getDownloads().get(1).getFromVersion());
+		assertEquals(25, plan.getDownloads().get(1).getSize());
+		assertEquals(25, plan.getTotalBytes());
+		assertEquals(1, plan.getMoves().size());
+		assertEquals("data/file11.txt", plan.getMoves().get(0).getFromPath());
+		assertEquals("data/file1.txt", plan.getMoves().get(0).getToPath());
+		assertEquals(1, plan.getDeletions().size());
+		assertEquals("file4", plan.getDeletions().get(0).getFileKey());
+		// Planning alone changes nothing
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertTrue(new File(clientRoot+"data/file4.txt").exists());
+		backupManager.backup();
+		Map<String, File> updated = getfile.execute(plan).get();
+		assertEquals(Set.of("file1", "file2", "file3"), updated.keySet());
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
+		assertNull(meta.getClientVersion("file4"));
+		assertTrue(getfile.planUpdate().isEmpty());
+		backupManager.rollback();
+	}
+
 	/**
 	 * Behavior of rollback before first update
 	 * @throws IOException
 	 */
 	@Test
 	public void justRollback() throws IOException {
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
                         new File(clientRoot+"data/file2.txt"), "utf-8"));
@@ -204,8 +329,8 @@ public class GetFileTest extends BaseWireMockTest {
 		backupManager.rollback();
 		backupManager.rollback();
 		backupManager.rollback();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
 		assertEquals("Hi! I'm file2 at v1.0.0.\n",
                 FileUtils.readFileToString(
                         new File(clientRoot+"data/file2.txt"), "utf-8"));
@@ -219,13 +344,13 @@ public class GetFileTest extends BaseWireMockTest {
 	 */
 	@Test
 	public void newFile() throws IOException, InterruptedException, ExecutionException {
-		assertEquals("", meta.getClientMeta("file3", "version"));
-		assertEquals("v0.1.2", meta.getServerMeta("file3", "version"));
+		assertNull(meta.getClientVersion("file3"));
+		assertEquals("v0.1.2", meta.getServerVersion("file3"));
 		assertFalse(new File(clientRoot+"data/file3").exists());
 		backupManager.backup();
 		getfile.updateAll().get();
-		assertEquals("v0.1.2", meta.getClientMeta("file3", "version"));
-		assertEquals("v0.1.2", meta.getServerMeta("file3", "version"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
+		assertEquals("v0.1.2", meta.getServerVersion("file3"));
 		assertTrue(new File(clientRoot+"data/file3").exists());
 		assertTrue(new File(clientRoot+"data/file3/file3.txt").exists());
 		assertEquals("Hi! I'm file3 at v0.1.2!\n",
@@ -243,74 +368,74 @@ public class GetFileTest extends BaseWireMockTest {
 	public void updateIndividualFiles()
 			throws InterruptedException, ExecutionException {
 		// Just update file3
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		backupManager.backup();
 		getfile.updateFile("file3").get();
 		// file3 is updated but file2 is still outdated.
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("v0.1.2", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
 		backupManager.rollback();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		// Update file3 again
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		backupManager.backup();
 		getfile.updateFile("file3").get();
 		// file3 is updated but file2 is still outdated.
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("v0.1.2", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
 		backupManager.rollback();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		// Update file2
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		backupManager.backup();
 		getfile.updateFile("file2").get();
 		// file3 not downloaded and file2 is updated
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		backupManager.rollback();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		// Update both file1 and file2
 		backupManager.backup();
 		getfile.updateFile("file1").get();
 		getfile.updateFile("file2").get();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
 		backupManager.rollback();
-		assertEquals("v0.1.1", meta.getClientMeta("file1", "version"));
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
+		assertEquals("v0.1.1", meta.getClientVersion("file1"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
 		// Update both file2 and file3
 		backupManager.backup();
 		getfile.updateFile("file2").get();
 		getfile.updateFile("file3").get();
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
-		assertEquals("v0.1.2", meta.getClientMeta("file3", "version"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
 		backupManager.rollback();
-		assertEquals("v1.0.0", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 		// Update both and rollback to just file2 updated
 		getfile.updateFile("file2").get();
 		backupManager.backup();
 		getfile.updateFile("file3").get();
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
-		assertEquals("v0.1.2", meta.getClientMeta("file3", "version"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
 		backupManager.rollback();
-		assertEquals("v1.3.1", meta.getClientMeta("file2", "version"));
-		assertEquals("", meta.getClientMeta("file3", "version"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		assertNull(meta.getClientVersion("file3"));
 	}
 
 	/**
@@ -318,9 +443,1176 @@ public class GetFileTest extends BaseWireMockTest {
 	 */
 	@Test
 	public void serverFileSizes() {
-		assertEquals(25, getfile.tracker.getFileSize("file1"));
-		assertEquals(25, getfile.tracker.getFileSize("file2"));
-		assertEquals(25, getfile.tracker.getFileSize("file3"));
+		// Only file3 lists its size in the server metadata
+		assertEquals(-1, meta.getServerSize("file1"));
+		assertEquals(-1, meta.getServerSize("file2"));
+		assertEquals(25, meta.getServerSize("file3"));
+	}
+
+	/**
+	 * Checksums and sizes are read from server metadata when provided
+	 */
+	@Test
+	public void inlineServerMetadata() {
+		assertEquals("0c2e4c4c7dd966bc44c46e486f2ffec4",
+				meta.getServerChecksum("file3").getHex());
+		assertEquals(25, meta.getServerSize("file3"));
+		assertNull(meta.getServerChecksum("file1"));
+		assertEquals(-1, meta.getServerSize("file1"));
+	}
+
+	/**
+	 * Version changes survive without writing the client meta file
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void journaledUpdate() throws IOException, InterruptedException, ExecutionException {
+		backupManager.backup();
+		getfile.updateFile("file2").get();
+		assertTrue(new File(meta.getClientMetaFile().getPath() + ".journal").exists());
+		// Reloading the unchanged client meta file replays the journal
+		meta.loadClientMeta();
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		backupManager.rollback();
+		assertFalse(new File(meta.getClientMetaFile().getPath() + ".journal").exists());
+		assertEquals("v1.0.0", meta.getClientVersion("file2"));
+	}
+
+	/**
+	 * Downloaded files are kept in the object store and linked from it
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void objectStore() throws IOException, InterruptedException, ExecutionException {
+		File storeDir = new File(clientRoot + "store");
+		getfile.setObjectStore(storeDir);
+		getWireMockServer().resetRequests();
+		backupManager.backup();
+		File file3 = getfile.updateFile("file3").get();
+		File object = new File(storeDir, "md5/0c/0c2e4c4c7dd966bc44c46e486f2ffec4");
+		assertTrue(object.exists());
+		assertEquals(FileUtils.readFileToString(object, "utf-8"),
+				FileUtils.readFileToString(file3, "utf-8"));
+		backupManager.rollback();
+		// Content already in the store is linked rather than downloaded
+		assertFalse(file3.exists());
+		file3 = getfile.updateFile("file3").get();
+		assertEquals("Hi! I'm file3 at v0.1.2!\n", FileUtils.readFileToString(file3, "utf-8"));
+		getWireMockServer().verify(1, getRequestedFor(urlEqualTo("/data/file3/file3.txt")));
+		backupManager.rollback();
+		FileUtils.deleteDirectory(storeDir);
+	}
+
+	/**
+	 * Server metadata is parsed into an image once, then mapped on later loads
+	 * @throws IOException
+	 */
+	@Test
+	public void serverCatalogImage() throws IOException {
+		File json = new File(clientRoot + "meta.json");
+		File image = new File(clientRoot + ".meta.json.image");
+		// Connecting to the server parsed its metadata and saved the image
+		assertTrue(image.exists());
+		byte[] saved = FileUtils.readFileToByteArray(image);
+		assertTrue(image.setLastModified(1000000000000L));
+		ServerCatalog catalog = ServerCatalog.load(json, image);
+		// The unchanged image was mapped rather than rebuilt
+		assertEquals(1000000000000L, image.lastModified());
+		assertArrayEquals(saved, FileUtils.readFileToByteArray(image));
+		assertEquals(3, catalog.size());
+		for (String key : List.of("file1", "file2", "file3")) {
+			int index = catalog.indexOf(key);
+			assertEquals(key, catalog.getKey(index));
+			assertEquals(meta.getServerVersion(key), catalog.getVersion(index));
+			assertEquals(meta.getServerFilePath(key), catalog.getPath(index));
+			assertEquals(meta.getServerSize(key), catalog.getSize(index));
+		}
+		assertEquals("0c2e4c4c7dd966bc44c46e486f2ffec4",
+				catalog.getChecksum(catalog.indexOf("file3")).getHex());
+		assertNull(catalog.getChecksum(catalog.indexOf("file1")));
+		assertTrue(catalog.indexOf("file4") < 0);
+	}
+
+	/**
+	 * An image built from other JSON is rebuilt rather than used
+	 * @throws IOException
+	 */
+	@Test
+	public void staleServerCatalogImage() throws IOException {
+		File json = new File(clientRoot + "catalog.json");
+		File image = new File(clientRoot + "catalog.json.image");
+		FileUtils.writeStringToFile(json,
+				"{\"a\": {\"version\": \"v1\", \"path\": \"a.txt\"}}", "UTF-8");
+		assertEquals("v1", ServerCatalog.load(json, image).getVersion(0));
+		byte[] stale = FileUtils.readFileToByteArray(image);
+		FileUtils.writeStringToFile(json,
+				"{\"a\": {\"version\": \"v2\", \"path\": \"a.txt\"}}", "UTF-8");
+		ServerCatalog catalog = ServerCatalog.load(json, image);
+		assertEquals("v2", catalog.getVersion(catalog.indexOf("a")));
+		assertFalse(Arrays.equals(stale, FileUtils.readFileToByteArray(image)));
+	}
+
+	/**
+	 * A corrupt or truncated image falls back to parsing the JSON
+	 * @throws IOException
+	 */
+	@Test
+	public void corruptServerCatalogImage() throws IOException {
+		// A copy, since the handler has mapped the image of the cached server metadata
+		File json = new File(clientRoot + "catalog.json");
+		File image = new File(clientRoot + "catalog.json.image");
+		FileUtils.copyFile(new File(clientRoot + "meta.json"), json);
+		ServerCatalog.load(json, image);
+		byte[] saved = FileUtils.readFileToByteArray(image);
+		// Truncated within the header
+		FileUtils.writeByteArrayToFile(image, Arrays.copyOf(saved, 16));
+		ServerCatalog catalog = ServerCatalog.load(json, image);
+		assertEquals("v1.3.1", catalog.getVersion(catalog.indexOf("file2")));
+		assertArrayEquals(saved, FileUtils.readFileToByteArray(image));
+		// Truncated within the sections
+		FileUtils.writeByteArrayToFile(image, Arrays.copyOf(saved, saved.length / 2));
+		catalog = ServerCatalog.load(json, image);
+		assertEquals("data/file3/file3.txt", catalog.getPath(catalog.indexOf("file3")));
+		// Not an image at all
+		byte[] corrupt = saved.clone();
+		Arrays.fill(corrupt, 0, 8, (byte) 0x7f);
+		FileUtils.writeByteArrayToFile(image, corrupt);
+		catalog = ServerCatalog.load(json, image);
+		assertEquals(3, catalog.size());
+		assertEquals("v0.1.1", catalog.getVersion(catalog.indexOf("file1")));
+		assertArrayEquals(saved, FileUtils.readFileToByteArray(image));
+	}
+
+	/**
+	 * Later entries replace earlier entries with the same key
+	 * @throws IOException
+	 */
+	@Test
+	public void duplicateServerCatalogKeys() throws IOException {
+		File json = new File(clientRoot + "catalog.json");
+		FileUtils.writeStringToFile(json, "{" +
+				"\"a\": {\"version\": \"v1\", \"path\": \"old/a.txt\", \"size\": 1, \"blocks\": \"a.blocks\"}," +
+				"\"b\": {\"version\": \"v1\", \"path\": \"b.txt\"}," +
+				"\"a\": {\"version\": \"v2\", \"path\": \"new/a.txt\", \"gzip\": \"a.gz\"}}", "UTF-8");
+		ServerCatalog catalog = ServerCatalog.load(json, new File(clientRoot + "catalog.json.image"));
+		assertEquals(2, catalog.size());
+		int a = catalog.indexOf("a");
+		assertEquals("v2", catalog.getVersion(a));
+		assertEquals("new/a.txt", catalog.getPath(a));
+		assertEquals(-1, catalog.getSize(a));
+		assertEquals("a.gz", catalog.getExtra(a, "gzip"));
+		assertNull(catalog.getExtra(a, "blocks"));
+		assertEquals("b.txt", catalog.getPath(catalog.indexOf("b")));
+	}
+
+	/**
+	 * Keys, versions and paths outside Latin-1 are stored and found intact
+	 * @throws IOException
+	 */
+	@Test
+	public void unicodeServerCatalog() throws IOException {
+		File json = new File(clientRoot + "catalog.json");
+		FileUtils.writeStringToFile(json, "{" +
+				"\"\u0444\u0430\u0439\u043b\": {\"version\": \"v\u00e9\", \"path\": \"donn\u00e9es/\u6587\u4ef6.txt\"}," +
+				"\"\u00e9t\u00e9\": {\"version\": \"v1\", \"path\": \"\u00e9t\u00e9.txt\"}," +
+				"\"b\": {\"version\": \"v1\", \"path\": \"donn\u00e9es/b.txt\"}}", "UTF-8");
+		ServerCatalog catalog = ServerCatalog.load(json, new File(clientRoot + "catalog.json.image"));
+		assertEquals(3, catalog.size());
+		// Keys are ordered by character, so Latin-1 sorts before Cyrillic
+		assertEquals("b", catalog.getKey(0));
+		assertEquals("\u00e9t\u00e9", catalog.getKey(1));
+		assertEquals("\u0444\u0430\u0439\u043b", catalog.getKey(2));
+		int index = catalog.indexOf("\u0444\u0430\u0439\u043b");
+		assertEquals(2, index);
+		assertEquals("v\u00e9", catalog.getVersion(index));
+		assertEquals("donn\u00e9es/\u6587\u4ef6.txt", catalog.getPath(index));
+		assertTrue(catalog.pathEquals(index, "donn\u00e9es/\u6587\u4ef6.txt"));
+		assertFalse(catalog.pathEquals(index, "donnees/\u6587\u4ef6.txt"));
+		assertEquals("\u00e9t\u00e9.txt", catalog.getPath(catalog.indexOf("\u00e9t\u00e9")));
+		assertTrue(catalog.indexOf("\u0444") < 0);
+	}
+
+	/**
+	 * Paths with leading, trailing, doubled or no separators survive the path trie
+	 * @throws IOException
+	 */
+	@Test
+	public void serverCatalogPaths() throws IOException {
+		File json = new File(clientRoot + "catalog.json");
+		FileUtils.writeStringToFile(json, "{" +
+				"\"lead\": {\"path\": \"/lead\"}," +
+				"\"plain\": {\"path\": \"lead\"}," +
+				"\"empty\": {\"path\": \"\"}," +
+				"\"none\": {\"version\": \"v1\"}," +
+				"\"trailing\": {\"path\": \"d/x/\"}," +
+				"\"dir\": {\"path\": \"d/x\"}," +
+				"\"double\": {\"path\": \"d//e\"}," +
+				"\"single\": {\"path\": \"d/e\"}}", "UTF-8");
+		ServerCatalog catalog = ServerCatalog.load(json, new File(clientRoot + "catalog.json.image"));
+		Map<String, String> paths = Map.of("lead", "/lead", "plain", "lead", "empty", "",
+				"trailing", "d/x/", "dir", "d/x", "double", "d//e", "single", "d/e");
+		for (Map.Entry<String, String> entry : paths.entrySet()) {
+			int index = catalog.indexOf(entry.getKey());
+			assertTrue(catalog.hasPath(index));
+			assertEquals(entry.getValue(), catalog.getPath(index));
+			// Each path only equals itself
+			for (String other : paths.values()) {
+				assertEquals(other.equals(entry.getValue()), catalog.pathEquals(index, other));
+			}
+			assertFalse(catalog.pathEquals(index, null));
+		}
+		int none = catalog.indexOf("none");
+		assertFalse(catalog.hasPath(none));
+		assertNull(catalog.getPath(none));
+		assertTrue(catalog.pathEquals(none, null));
+		assertFalse(catalog.pathEquals(none, ""));
+	}
+
+	/**
+	 * Fields without a column of their own are read back by name
+	 * @throws IOException
+	 */
+	@Test
+	public void serverCatalogExtras() throws IOException {
+		File json = new File(clientRoot + "catalog.json");
+		FileUtils.writeStringToFile(json, "{" +
+				"\"a\": {\"version\": \"v1\", \"path\": \"a.txt\"," +
+				" \"blocks\": \"a.txt.blocks\", \"gzip\": \"a.txt.gz\", \"prompt\": true}," +
+				"\"b\": {\"version\": \"v1\", \"path\": \"b.txt\", \"gzip\": \"b.txt.gz\"}}", "UTF-8");
+		ServerCatalog catalog = ServerCatalog.load(json, new File(clientRoot + "catalog.json.image"));
+		int a = catalog.indexOf("a");
+		int b = catalog.indexOf("b");
+		assertEquals("a.txt.blocks", catalog.getExtra(a, "blocks"));
+		assertEquals("a.txt.gz", catalog.getExtra(a, "gzip"));
+		assertEquals("true", catalog.getExtra(a, "prompt"));
+		assertNull(catalog.getExtra(a, "version"));
+		assertNull(catalog.getExtra(b, "blocks"));
+		assertEquals("b.txt.gz", catalog.getExtra(b, "gzip"));
+	}
+
+	/**
+	 * Server entries hashed in place from the catalog match the client hash
+	 * of the same key, version and path
+	 * @throws IOException
+	 */
+	@Test
+	public void stateDigestHashes() throws IOException {
+		List<ServerCatalog> shards = List.of(
+				ServerCatalog.load(new StringReader("{" +
+						"\"a\": {\"version\": \"v1\", \"path\": \"/lead\"}," +
+						"\"b\": {\"version\": \"v1\", \"path\": \"\"}," +
+						"\"c\": {\"path\": \"d//e\"}}")),
+				ServerCatalog.load(new StringReader("{" +
+						"\"d\": {\"version\": \"v2\"}," +
+						"\"e\": {\"version\": \"v2\", \"path\": \"d/x/\"}," +
+						"\"\u0444\u0430\u0439\u043b\": {\"version\": \"v\u00e9\", \"path\": \"\u6587/\u4ef6.txt\"}}")));
+		for (ShardedCatalog catalog : List.of(meta.getServerCatalog(), ShardedCatalog.of(shards))) {
+			StateDigest.Client client = new StateDigest.Client();
+			for (int index = 0; index < catalog.size(); index++) {
+				String key = catalog.getKey(index);
+				String version = catalog.getVersion(index);
+				String path = catalog.getPath(index);
+				assertEquals(StateDigest.hashEntry(key, version, path),
+						StateDigest.hashEntry(catalog, index, StateDigest.hashKey(catalog, index)));
+				client.put(key, version, path);
+			}
+			assertTrue(client.hasSameEntries(catalog.getDigest()));
+			assertTrue(StateDigest.diff(client, catalog.getDigest()).isEmpty());
+		}
+	}
+
+	/**
+	 * Comparing digests finds exactly the keys that were changed, added or removed
+	 */
+	@Test
+	public void stateDigestDiff() {
+		ShardedCatalog catalog = meta.getServerCatalog();
+		StateDigest.Client client = new StateDigest.Client();
+		for (int index = 0; index < catalog.size(); index++) {
+			client.put(catalog.getKey(index), catalog.getVersion(index), catalog.getPath(index));
+		}
+		StateDigest server = catalog.getDigest();
+		assertTrue(StateDigest.diff(client, server).isEmpty());
+		// Changed version, changed path, added and removed keys
+		client.put("file1", "v0.1.0", "data/file1.txt");
+		client.put("file2", "v1.3.1", "data/file22.txt");
+		client.put("file4", "v1.0.0", "data/file4.txt");
+		client.remove("file3");
+		client.remove("file5");
+		assertFalse(client.hasSameEntries(server));
+		assertEquals(Set.of("file1", "file2", "file3", "file4"), StateDigest.diff(client, server));
+		assertEquals(Set.of("file1", "file2", "file3", "file4"), StateDigest.diff(server, client));
+		// Undoing the changes leaves nothing to update
+		client.put("file1", "v0.1.1", "data/file1.txt");
+		client.put("file2", "v1.3.1", "data/file2.txt");
+		client.put("file3", "v0.1.2", "data/file3/file3.txt");
+		client.remove("file4");
+		assertTrue(client.hasSameEntries(server));
+		assertTrue(StateDigest.diff(client, server).isEmpty());
+	}
+
+	/**
+	 * Publishing revisions writes a patch for each change, which brings the
+	 * previous revision up to the canonical digest, and prunes old patches
+	 * @throws IOException
+	 */
+	@Test
+	public void metaFeedPublish() throws IOException {
+		File serverMeta = new File(clientRoot + "server/meta.json");
+		File patchDir = new File(clientRoot + "server/meta.json.patches");
+		FileUtils.copyFile(new File("src/test/resources/__files/meta.json"), serverMeta);
+		MetaFeed first = MetaFeed.publish(serverMeta.toPath(), 2);
+		assertEquals(1, first.revision);
+		assertFalse(first.canPatch(0));
+		JsonObject revision1 = MetaFeed.read(serverMeta.toPath());
+		assertEquals(MetaFeed.canonicalSha256(revision1), first.sha256);
+		// Set one entry and remove another
+		JsonObject edited = revision1.deepCopy();
+		edited.getAsJsonObject("file2").addProperty("version", "v1.4.0");
+		edited.remove("file1");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		MetaFeed second = MetaFeed.publish(serverMeta.toPath(), 2);
+		assertEquals(2, second.revision);
+		assertTrue(second.canPatch(1));
+		JsonObject patch = MetaFeed.read(new File(patchDir, "2.json").toPath());
+		assertEquals(MetaFeed.diff(revision1, edited, 2), patch);
+		assertEquals(Set.of("file2"), patch.getAsJsonObject("set").keySet());
+		assertEquals("file1", patch.getAsJsonArray("remove").get(0).getAsString());
+		JsonObject patched = revision1.deepCopy();
+		MetaFeed.apply(patched, patch);
+		assertEquals(second.sha256, MetaFeed.canonicalSha256(patched));
+		// Reformatting publishes no new revision, only a new raw digest
+		FileUtils.writeStringToFile(serverMeta,
+				new GsonBuilder().setPrettyPrinting().create().toJson(edited), "UTF-8");
+		MetaFeed reformatted = MetaFeed.publish(serverMeta.toPath(), 2);
+		assertEquals(2, reformatted.revision);
+		assertEquals(second.sha256, reformatted.sha256);
+		assertNotEquals(second.raw, reformatted.raw);
+		// Only the last two patches are kept
+		for (String version : List.of("v1.5.0", "v1.6.0")) {
+			edited.getAsJsonObject("file2").addProperty("version", version);
+			FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+			MetaFeed.publish(serverMeta.toPath(), 2);
+		}
+		MetaFeed feed = MetaFeed.parse(FileUtils.readFileToString(
+				new File(clientRoot + "server/meta.json.feed"), "UTF-8"));
+		assertEquals(4, feed.revision);
+		assertEquals(3, feed.oldest);
+		assertFalse(new File(patchDir, "2.json").exists());
+		assertTrue(new File(patchDir, "3.json").exists());
+		assertTrue(new File(patchDir, "4.json").exists());
+		assertFalse(feed.canPatch(1));
+		assertTrue(feed.canPatch(2));
+	}
+
+	/**
+	 * Clients only patch from a revision whose patches are all on the server,
+	 * and not from too far behind
+	 */
+	@Test
+	public void metaFeedCanPatch() {
+		MetaFeed feed = new MetaFeed(10, "", "", 5);
+		assertFalse(feed.canPatch(-1));
+		assertFalse(feed.canPatch(0));
+		assertFalse(feed.canPatch(3));
+		assertTrue(feed.canPatch(4));
+		assertTrue(feed.canPatch(9));
+		assertFalse(feed.canPatch(10));
+		assertFalse(feed.canPatch(11));
+		MetaFeed longFeed = new MetaFeed(MetaFeed.MAX_PATCHES + 50, "", "", 1);
+		assertTrue(longFeed.canPatch(50));
+		assertFalse(longFeed.canPatch(49));
+	}
+
+	/**
+	 * A snapshot left ahead of the feed by an interrupted publish isn't used
+	 * to make a patch, so clients download the next revision whole
+	 * @throws IOException
+	 */
+	@Test
+	public void metaFeedSnapshotAhead() throws IOException {
+		File serverMeta = new File(clientRoot + "server/meta.json");
+		FileUtils.copyFile(new File("src/test/resources/__files/meta.json"), serverMeta);
+		MetaFeed.publish(serverMeta.toPath(), 2);
+		JsonObject edited = MetaFeed.read(serverMeta.toPath());
+		edited.getAsJsonObject("file2").addProperty("version", "v1.4.0");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		// Publish stopped after saving the snapshot but before writing the feed
+		FileUtils.copyFile(serverMeta, new File(clientRoot + "server/meta.json.patches/latest.json"));
+		edited.getAsJsonObject("file1").addProperty("version", "v0.2.0");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		MetaFeed feed = MetaFeed.publish(serverMeta.toPath(), 2);
+		assertEquals(2, feed.revision);
+		assertFalse(new File(clientRoot + "server/meta.json.patches/2.json").exists());
+		assertFalse(feed.canPatch(1));
+		// The next publish patches from the snapshot it saved
+		edited.getAsJsonObject("file3").addProperty("version", "v0.2.0");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		feed = MetaFeed.publish(serverMeta.toPath(), 2);
+		assertEquals(3, feed.revision);
+		assertTrue(feed.canPatch(2));
+		JsonObject patch = MetaFeed.read(
+				new File(clientRoot + "server/meta.json.patches/3.json").toPath());
+		assertEquals(Set.of("file3"), patch.getAsJsonObject("set").keySet());
+	}
+
+	/**
+	 * Clients catch up by applying patches from the feed, and download the
+	 * whole file when the patched metadata doesn't match the feed
+	 * @throws IOException
+	 */
+	@Test
+	public void metaFeedCatchUp() throws IOException {
+		WireMockServer server = getWireMockServer();
+		File serverMeta = new File(clientRoot + "server/meta.json");
+		FileUtils.copyFile(new File("src/test/resources/__files/meta.json"), serverMeta);
+		MetaFeed.publish(serverMeta.toPath(), 10);
+		serveFeed(serverMeta);
+		// A handler of its own, as the test's handler already knows there's no feed
+		FileUtils.forceMkdir(new File(clientRoot + "feed"));
+		MetadataHandler feedMeta = MetadataHandler.MetadataHandlerFactory(
+				new File(clientRoot + "feed/getfile.json"),
+				List.of(getServerBaseURI().resolve("/feed/meta.json")));
+		assertEquals("v1.3.1", feedMeta.getServerVersion("file2"));
+		assertEquals("1", FileUtils.readFileToString(
+				new File(clientRoot + "feed/.meta.json.revision"), "UTF-8"));
+		// Two revisions behind, caught up by their patches
+		JsonObject edited = MetaFeed.read(serverMeta.toPath());
+		edited.getAsJsonObject("file2").addProperty("version", "v1.4.0");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		MetaFeed.publish(serverMeta.toPath(), 10);
+		edited.remove("file1");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		MetaFeed.publish(serverMeta.toPath(), 10);
+		serveFeed(serverMeta);
+		server.resetRequests();
+		assertEquals(0, feedMeta.refreshServerMeta());
+		assertEquals("v1.4.0", feedMeta.getServerVersion("file2"));
+		assertNull(feedMeta.getServerVersion("file1"));
+		server.verify(0, getRequestedFor(urlEqualTo("/feed/meta.json")));
+		server.verify(1, getRequestedFor(urlEqualTo("/feed/meta.json.patches/2.json")));
+		server.verify(1, getRequestedFor(urlEqualTo("/feed/meta.json.patches/3.json")));
+		assertEquals("3", FileUtils.readFileToString(
+				new File(clientRoot + "feed/.meta.json.revision"), "UTF-8"));
+		// A patch that doesn't reach the canonical digest falls back to a full download
+		edited.getAsJsonObject("file3").addProperty("version", "v0.2.0");
+		FileUtils.writeStringToFile(serverMeta, new Gson().toJson(edited), "UTF-8");
+		MetaFeed.publish(serverMeta.toPath(), 10);
+		serveFeed(serverMeta);
+		server.stubFor(get("/feed/meta.json.patches/4.json")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody("{\"revision\": 4, \"set\": {}, \"remove\": [\"file2\"]}")));
+		server.resetRequests();
+		assertEquals(0, feedMeta.refreshServerMeta());
+		assertEquals("v0.2.0", feedMeta.getServerVersion("file3"));
+		assertEquals("v1.4.0", feedMeta.getServerVersion("file2"));
+		server.verify(1, getRequestedFor(urlEqualTo("/feed/meta.json.patches/4.json")));
+		server.verify(1, getRequestedFor(urlEqualTo("/feed/meta.json")));
+		assertEquals("4", FileUtils.readFileToString(
+				new File(clientRoot + "feed/.meta.json.revision"), "UTF-8"));
+	}
+
+	/**
+	 * A server without a delta feed isn't asked for one on every refresh
+	 */
+	@Test
+	public void noMetaFeed() {
+		WireMockServer server = getWireMockServer();
+		server.resetRequests();
+		assertEquals(0, meta.refreshServerMeta());
+		assertEquals(0, meta.refreshServerMeta());
+		server.verify(0, getRequestedFor(urlEqualTo("/meta.json.feed")));
+		server.verify(2, getRequestedFor(urlEqualTo("/meta.json")));
+	}
+
+	/**
+	 * Serve published server metadata under /feed, with its MD5, feed and patches
+	 * @param serverMeta	Published server metadata file
+	 * @throws IOException
+	 */
+	private void serveFeed(File serverMeta) throws IOException {
+		WireMockServer server = getWireMockServer();
+		byte[] body = FileUtils.readFileToByteArray(serverMeta);
+		server.stubFor(get("/feed/meta.json")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(body)));
+		server.stubFor(get("/feed/meta.json.md5")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(DigestUtils.md5Hex(body))));
+		server.stubFor(get("/feed/meta.json.feed")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(FileUtils.readFileToByteArray(
+								new File(serverMeta.getPath() + ".feed")))));
+		File[] patches = new File(serverMeta.getPath() + ".patches").listFiles();
+		for (File patch : patches) {
+			server.stubFor(get("/feed/meta.json.patches/" + patch.getName())
+					.willReturn(aResponse()
+							.withStatus(200)
+							.withBody(FileUtils.readFileToByteArray(patch))));
+		}
+	}
+
+	/**
+	 * Splitting keeps the boundaries of existing shards, so an edit only changes
+	 * the shard holding it, and splits a shard grown past twice the shard size
+	 * @throws IOException
+	 */
+	@Test
+	public void shardToolSplit() throws IOException {
+		File input = new File(clientRoot + "server/full.json");
+		File output = new File(clientRoot + "server/meta.json");
+		JsonObject full = new JsonObject();
+		for (int k = 0; k < 10; k++) {
+			JsonObject entry = new JsonObject();
+			entry.addProperty("version", "v1");
+			entry.addProperty("path", "data/k" + k + ".txt");
+			full.add("k" + k, entry);
+		}
+		FileUtils.writeStringToFile(input, new Gson().toJson(full), "UTF-8");
+		ShardTool tool = new ShardTool(3);
+		List<ShardedCatalog.Shard> shards = tool.split(input.toPath(), output.toPath());
+		assertEquals(List.of("k0", "k3", "k6", "k9"), firstKeys(shards));
+		assertEquals(firstKeys(shards), firstKeys(ShardedCatalog.readIndex(output)));
+		// An entry added before a boundary joins the shard before it
+		full.add("k25", full.get("k2").deepCopy());
+		FileUtils.writeStringToFile(input, new Gson().toJson(full), "UTF-8");
+		List<ShardedCatalog.Shard> edited = tool.split(input.toPath(), output.toPath());
+		assertEquals(List.of("k0", "k3", "k6", "k9"), firstKeys(edited));
+		assertNotEquals(shards.get(0).path, edited.get(0).path);
+		for (int s = 1; s < shards.size(); s++) {
+			assertEquals(shards.get(s).path, edited.get(s).path);
+		}
+		// The last shard grows to 7 entries and is split
+		for (int k = 0; k < 6; k++) {
+			full.add("k9" + k, full.get("k9").deepCopy());
+		}
+		FileUtils.writeStringToFile(input, new Gson().toJson(full), "UTF-8");
+		List<ShardedCatalog.Shard> grown = tool.split(input.toPath(), output.toPath());
+		assertEquals(List.of("k0", "k3", "k6", "k9", "k92", "k95"), firstKeys(grown));
+		for (int s = 0; s < 3; s++) {
+			assertEquals(edited.get(s).path, grown.get(s).path);
+		}
+		// Every entry is in exactly one shard
+		List<ServerCatalog> catalogs = new ArrayList<>();
+		for (ShardedCatalog.Shard shard : grown) {
+			File shardFile = new File(clientRoot + "server/" + shard.path);
+			assertEquals(shard.checksum.getHex().toLowerCase(),
+					DigestUtils.sha256Hex(FileUtils.readFileToByteArray(shardFile)));
+			catalogs.add(ServerCatalog.load(shardFile, null));
+		}
+		ShardedCatalog catalog = ShardedCatalog.of(catalogs);
+		assertEquals(full.keySet(), catalog.keySet());
+	}
+
+	/**
+	 * Entries are found by key and by index on either side of shard edges
+	 * @throws IOException
+	 */
+	@Test
+	public void shardedCatalogIndex() throws IOException {
+		ShardedCatalog catalog = ShardedCatalog.of(List.of(
+				ServerCatalog.load(new StringReader(
+						"{\"b\": {\"version\": \"v1\"}, \"c\": {\"version\": \"v2\"}}")),
+				ServerCatalog.load(new StringReader("{}")),
+				ServerCatalog.load(new StringReader("{\"e\": {\"version\": \"v3\"}}")),
+				ServerCatalog.load(new StringReader(
+						"{\"g\": {\"version\": \"v4\"}, \"h\": {\"version\": \"v5\"}}"))));
+		assertEquals(5, catalog.size());
+		List<String> keys = List.of("b", "c", "e", "g", "h");
+		for (int index = 0; index < keys.size(); index++) {
+			assertEquals(index, catalog.indexOf(keys.get(index)));
+			assertEquals(keys.get(index), catalog.getKey(index));
+			assertEquals("v" + (index + 1), catalog.getVersion(index));
+		}
+		assertEquals(keys, new ArrayList<>(catalog.keySet()));
+		// Keys before, between and after the shards
+		for (String missing : List.of("a", "bb", "d", "f", "i")) {
+			assertTrue(catalog.indexOf(missing) < 0);
+			assertFalse(catalog.keySet().contains(missing));
+		}
+	}
+
+	/**
+	 * Shards that overlap or are out of order aren't combined
+	 * @throws IOException
+	 */
+	@Test
+	public void overlappingShards() throws IOException {
+		ServerCatalog ac = ServerCatalog.load(new StringReader("{\"a\": {}, \"c\": {}}"));
+		ServerCatalog bd = ServerCatalog.load(new StringReader("{\"b\": {}, \"d\": {}}"));
+		ServerCatalog cd = ServerCatalog.load(new StringReader("{\"c\": {}, \"d\": {}}"));
+		ServerCatalog de = ServerCatalog.load(new StringReader("{\"d\": {}, \"e\": {}}"));
+		assertNull(ShardedCatalog.of(List.of(ac, bd)));
+		assertNull(ShardedCatalog.of(List.of(ac, cd)));
+		assertNull(ShardedCatalog.of(List.of(de, ac)));
+		assertEquals(4, ShardedCatalog.of(List.of(ac, de)).size());
+	}
+
+	/**
+	 * Clients only download shards they haven't already cached
+	 * @throws IOException
+	 */
+	@Test
+	public void shardedServerMeta() throws IOException {
+		WireMockServer server = getWireMockServer();
+		File input = new File(clientRoot + "server/full.json");
+		File output = new File(clientRoot + "server/meta.json");
+		FileUtils.copyFile(new File("src/test/resources/__files/meta.json"), input);
+		ShardTool tool = new ShardTool(1);
+		List<ShardedCatalog.Shard> shards = tool.split(input.toPath(), output.toPath());
+		assertEquals(3, shards.size());
+		serveShards(output, shards);
+		FileUtils.forceMkdir(new File(clientRoot + "sharded"));
+		MetadataHandler shardedMeta = MetadataHandler.MetadataHandlerFactory(
+				new File(clientRoot + "sharded/getfile.json"),
+				List.of(getServerBaseURI().resolve("/sharded/meta.json")));
+		assertEquals("v1.3.1", shardedMeta.getServerVersion("file2"));
+		assertEquals("data/file3/file3.txt", shardedMeta.getServerFilePath("file3"));
+		for (ShardedCatalog.Shard shard : shards) {
+			server.verify(1, getRequestedFor(urlEqualTo("/sharded/" + shard.path)));
+		}
+		// Only the shard holding the edited entry changes
+		JsonObject edited = MetaFeed.read(input.toPath());
+		edited.getAsJsonObject("file2").addProperty("version", "v1.4.0");
+		FileUtils.writeStringToFile(input, new Gson().toJson(edited), "UTF-8");
+		List<ShardedCatalog.Shard> changed = tool.split(input.toPath(), output.toPath());
+		assertEquals(shards.get(0).path, changed.get(0).path);
+		assertNotEquals(shards.get(1).path, changed.get(1).path);
+		assertEquals(shards.get(2).path, changed.get(2).path);
+		serveShards(output, changed);
+		server.resetRequests();
+		assertEquals(0, shardedMeta.refreshServerMeta());
+		assertEquals("v1.4.0", shardedMeta.getServerVersion("file2"));
+		assertEquals("v0.1.1", shardedMeta.getServerVersion("file1"));
+		server.verify(0, getRequestedFor(urlEqualTo("/sharded/" + changed.get(0).path)));
+		server.verify(1, getRequestedFor(urlEqualTo("/sharded/" + changed.get(1).path)));
+		server.verify(0, getRequestedFor(urlEqualTo("/sharded/" + changed.get(2).path)));
+		// The replaced shard is no longer cached
+		assertFalse(new File(clientRoot + "sharded/.meta.json.shards/"
+				+ shards.get(1).checksum.getHex().toLowerCase() + ".json").exists());
+	}
+
+	/**
+	 * Get the first key of each shard
+	 * @param shards		Shards listed in a root index
+	 * @return				First keys in order
+	 */
+	private static List<String> firstKeys(List<ShardedCatalog.Shard> shards) {
+		List<String> first = new ArrayList<>();
+		for (ShardedCatalog.Shard shard : shards) {
+			first.add(shard.first);
+		}
+		return first;
+	}
+
+	/**
+	 * Serve a root index under /sharded, with its MD5 and shards
+	 * @param index			Root index written by ShardTool
+	 * @param shards		Shards listed in it
+	 * @throws IOException
+	 */
+	private void serveShards(File index, List<ShardedCatalog.Shard> shards) throws IOException {
+		WireMockServer server = getWireMockServer();
+		byte[] body = FileUtils.readFileToByteArray(index);
+		server.stubFor(get("/sharded/meta.json")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(body)));
+		server.stubFor(get("/sharded/meta.json.md5")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(DigestUtils.md5Hex(body))));
+		for (ShardedCatalog.Shard shard : shards) {
+			server.stubFor(get("/sharded/" + shard.path)
+					.willReturn(aResponse()
+							.withStatus(200)
+							.withBody(FileUtils.readFileToByteArray(
+									new File(index.getParent(), shard.path)))));
+		}
+	}
+
+	/**
+	 * Unchanged blocks are found in a local copy even after bytes are inserted
+	 * before them, while changed blocks and the final partial block are not
+	 * @throws IOException
+	 */
+	@Test
+	public void blockIndexFindBlocks() throws IOException {
+		byte[][] local = deltaVersions();
+		File newFile = new File(clientRoot + "delta/new.bin");
+		File oldFile = new File(clientRoot + "delta/old.bin");
+		FileUtils.writeByteArrayToFile(newFile, local[0]);
+		FileUtils.writeByteArrayToFile(oldFile, local[1]);
+		BlockIndex computed = BlockIndex.compute(newFile.toPath(), 16);
+		assertEquals(9, computed.blockCount());
+		assertEquals(133, computed.length);
+		// The index survives its binary format
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		computed.write(written);
+		BlockIndex blocks = BlockIndex.read(new ByteArrayInputStream(written.toByteArray()));
+		assertEquals(16, blocks.blockSize);
+		assertEquals(133, blocks.length);
+		assertArrayEquals(new long[] {0, 16, -1, 48, 64, 83, 99, -1, -1},
+				blocks.findBlocks(oldFile.toPath()));
+		// Every full block of the file itself is found in place
+		assertArrayEquals(new long[] {0, 16, 32, 48, 64, 80, 96, 112, -1},
+				blocks.findBlocks(newFile.toPath()));
+	}
+
+	/**
+	 * A delta download only requests the ranges of blocks missing locally
+	 * @throws IOException
+	 */
+	@Test
+	public void deltaDownload() throws IOException {
+		WireMockServer server = getWireMockServer();
+		byte[][] versions = deltaVersions();
+		serveDelta(versions[0]);
+		File local = new File(clientRoot + "delta/file.bin");
+		FileUtils.writeByteArrayToFile(local, versions[1]);
+		// Block 2, then block 7 with the final partial block
+		server.stubFor(get(urlEqualTo("/delta/file.bin"))
+				.withHeader("Range", equalTo("bytes=32-47"))
+				.willReturn(aResponse()
+						.withStatus(206)
+						.withHeader("Content-Range", "bytes 32-47/133")
+						.withBody(Arrays.copyOfRange(versions[0], 32, 48))));
+		server.stubFor(get(urlEqualTo("/delta/file.bin"))
+				.withHeader("Range", equalTo("bytes=112-132"))
+				.willReturn(aResponse()
+						.withStatus(206)
+						.withHeader("Content-Range", "bytes 112-132/133")
+						.withBody(Arrays.copyOfRange(versions[0], 112, 133))));
+		ContentIndex index = new ContentIndex(new File(clientRoot + "delta/getfile.json"));
+		long[] progress = new long[1];
+		assertEquals(0, Downloader.downloadDelta(
+				getServerBaseURI().resolve("/delta/file.bin"),
+				getServerBaseURI().resolve("/delta/file.bin.blocks"),
+				local.toPath(), Checksum.md5(DigestUtils.md5Hex(versions[0])), index,
+				n -> progress[0] += n));
+		assertArrayEquals(versions[0], FileUtils.readFileToByteArray(local));
+		assertEquals(133, progress[0]);
+		assertEquals(DigestUtils.md5Hex(versions[0]),
+				index.lookup(local.toPath()).getHex());
+		List<String> ranges = new ArrayList<>();
+		for (LoggedRequest request : server.findAll(getRequestedFor(urlEqualTo("/delta/file.bin")))) {
+			ranges.add(request.getHeader("Range"));
+		}
+		ranges.sort(null);
+		assertEquals(List.of("bytes=112-132", "bytes=32-47"), ranges);
+	}
+
+	/**
+	 * A delta download with no blocks to reuse gives up before requesting the
+	 * file, so the caller falls back to a full download
+	 * @throws IOException
+	 */
+	@Test
+	public void deltaDownloadNothingReused() throws IOException {
+		WireMockServer server = getWireMockServer();
+		byte[][] versions = deltaVersions();
+		serveDelta(versions[0]);
+		File local = new File(clientRoot + "delta/file.bin");
+		byte[] unrelated = new byte[133];
+		new Random(7).nextBytes(unrelated);
+		FileUtils.writeByteArrayToFile(local, unrelated);
+		assertEquals(1, Downloader.downloadDelta(
+				getServerBaseURI().resolve("/delta/file.bin"),
+				getServerBaseURI().resolve("/delta/file.bin.blocks"),
+				local.toPath(), Checksum.md5(DigestUtils.md5Hex(versions[0])), null, null));
+		server.verify(1, getRequestedFor(urlEqualTo("/delta/file.bin.blocks")));
+		server.verify(0, getRequestedFor(urlEqualTo("/delta/file.bin")));
+		assertArrayEquals(unrelated, FileUtils.readFileToByteArray(local));
+		assertFalse(new File(local.getPath() + ".part").exists());
+		// A local copy shorter than a block has nothing to reuse either
+		FileUtils.writeByteArrayToFile(local, Arrays.copyOf(versions[0], 10));
+		assertEquals(1, Downloader.downloadDelta(
+				getServerBaseURI().resolve("/delta/file.bin"),
+				getServerBaseURI().resolve("/delta/file.bin.blocks"),
+				local.toPath(), Checksum.md5(DigestUtils.md5Hex(versions[0])), null, null));
+		server.verify(0, getRequestedFor(urlEqualTo("/delta/file.bin")));
+	}
+
+	/**
+	 * Make a new version of a file and an older local copy of it. The new
+	 * version has 8 blocks of 16 bytes and a final partial block of 5 bytes.
+	 * The old copy has a different block 2, 3 bytes inserted before block 5,
+	 * and a different block 7 without the partial block.
+	 * @return				New version, then the old copy
+	 */
+	private static byte[][] deltaVersions() {
+		Random random = new Random(42);
+		byte[] newVersion = new byte[8 * 16 + 5];
+		random.nextBytes(newVersion);
+		ByteArrayOutputStream old = new ByteArrayOutputStream();
+		old.write(newVersion, 0, 32);
+		byte[] changed = new byte[16];
+		random.nextBytes(changed);
+		old.write(changed, 0, 16);
+		old.write(newVersion, 48, 32);
+		old.write(new byte[] {1, 2, 3}, 0, 3);
+		old.write(newVersion, 80, 32);
+		random.nextBytes(changed);
+		old.write(changed, 0, 16);
+		return new byte[][] {newVersion, old.toByteArray()};
+	}
+
+	/**
+	 * Serve the block index of a file under /delta
+	 * @param file			Contents of the file on the server
+	 * @throws IOException
+	 */
+	private void serveDelta(byte[] file) throws IOException {
+		File served = new File(clientRoot + "delta/served.bin");
+		FileUtils.writeByteArrayToFile(served, file);
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		BlockIndex.compute(served.toPath(), 16).write(blocks);
+		getWireMockServer().stubFor(get("/delta/file.bin.blocks")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(blocks.toByteArray())));
+	}
+
+	/**
+	 * Events reach listeners in the order they were fired, on another thread,
+	 * even when a listener fails
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void eventOrder() throws InterruptedException {
+		EventDispatcher events = new EventDispatcher("eventOrder");
+		List<String> received = new CopyOnWriteArrayList<>();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		events.addListener(new GetFileListener() {
+			@Override
+			public void downloadStarted(String fileKey, long size) {
+				threads.add(Thread.currentThread());
+				throw new IllegalStateException("Listener failure");
+			}
+		});
+		events.addListener(new GetFileListener() {
+			@Override
+			public void downloadStarted(String fileKey, long size) {
+				received.add("started " + fileKey);
+			}
+
+			@Override
+			public void fileCommitted(String fileKey, String version, File file) {
+				received.add("committed " + fileKey);
+			}
+		});
+		List<String> expected = new ArrayList<>();
+		for (int f = 0; f < 50; f++) {
+			String fileKey = "file" + f;
+			events.fire(listener -> listener.downloadStarted(fileKey, 1));
+			events.fire(listener -> listener.fileCommitted(fileKey, "v1", null));
+			expected.add("started " + fileKey);
+			expected.add("committed " + fileKey);
+		}
+		awaitEvents(events);
+		assertEquals(expected, received);
+		assertEquals(1, threads.size());
+		assertNotEquals(Thread.currentThread(), threads.iterator().next());
+	}
+
+	/**
+	 * Bytes counted while a progress event waits in the queue are coalesced
+	 * into that event
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void coalescedProgress() throws InterruptedException {
+		EventDispatcher events = new EventDispatcher("coalescedProgress");
+		List<Long> progress = new CopyOnWriteArrayList<>();
+		events.addListener(new GetFileListener() {
+			@Override
+			public void bytesProgressed(String fileKey, long bytes, long size) {
+				assertEquals("file3", fileKey);
+				assertEquals(25, size);
+				progress.add(bytes);
+			}
+		});
+		// Hold up delivery while bytes are counted
+		CountDownLatch release = new CountDownLatch(1);
+		events.fire(listener -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		LongConsumer counter = events.progress("file3", 25);
+		for (int b = 0; b < 20; b++) {
+			counter.accept(1);
+		}
+		release.countDown();
+		awaitEvents(events);
+		assertEquals(List.of(20L), progress);
+		counter.accept(5);
+		awaitEvents(events);
+		assertEquals(List.of(20L, 25L), progress);
+		// Without listeners nothing is counted
+		assertNull(new EventDispatcher("noListeners").progress("file3", 25));
+	}
+
+	/**
+	 * An attempt that fails validation takes back the bytes it reported
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void undoFailedProgress() throws InterruptedException {
+		EventDispatcher events = new EventDispatcher("undoFailedProgress");
+		List<Long> progress = new CopyOnWriteArrayList<>();
+		events.addListener(new GetFileListener() {
+			@Override
+			public void bytesProgressed(String fileKey, long bytes, long size) {
+				progress.add(bytes);
+			}
+		});
+		List<Long> deltas = new CopyOnWriteArrayList<>();
+		LongConsumer counter = events.progress("file3", 25);
+		File file3 = new File(clientRoot + "data/file3/file3.txt");
+		assertEquals(1, Downloader.downloadFile(
+				getServerBaseURI().resolve("/data/file3/file3.txt"), file3.toPath(), 2,
+				Checksum.md5("00000000000000000000000000000000"), null,
+				delta -> {
+					deltas.add(delta);
+					counter.accept(delta);
+				}));
+		assertFalse(file3.exists());
+		// Each of the two attempts reported the file and then took it back
+		assertEquals(List.of(25L, -25L, 25L, -25L), coalesce(deltas));
+		awaitEvents(events);
+		assertEquals(0L, (long) progress.get(progress.size() - 1));
+	}
+
+	/**
+	 * Wait for every event fired so far to be delivered
+	 * @param events		Dispatcher with at least one listener
+	 * @throws InterruptedException
+	 */
+	private static void awaitEvents(EventDispatcher events) throws InterruptedException {
+		CountDownLatch delivered = new CountDownLatch(1);
+		events.fire(listener -> delivered.countDown());
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Add up consecutive byte counts with the same sign
+	 * @param deltas		Counts reported to a progress consumer
+	 * @return				Total of each run of gains or losses
+	 */
+	private static List<Long> coalesce(List<Long> deltas) {
+		List<Long> runs = new ArrayList<>();
+		for (long delta : deltas) {
+			int last = runs.size() - 1;
+			if (last >= 0 && (runs.get(last) > 0) == (delta > 0)) {
+				runs.set(last, runs.get(last) + delta);
+			} else {
+				runs.add(delta);
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Files with a compressed copy on the server are downloaded from it, and
+	 * validated and indexed by the digest of the decompressed file
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void compressedDownload() throws IOException, InterruptedException, ExecutionException {
+		WireMockServer server = getWireMockServer();
+		assertEquals("data/file2.txt.gz", meta.getServerGzip("file2"));
+		assertNull(meta.getServerGzip("file3"));
+		server.resetRequests();
+		backupManager.backup();
+		File file2 = getfile.updateFile("file2").get();
+		assertEquals("Hi! I'm file2 at v1.3.1.\n", FileUtils.readFileToString(file2, "utf-8"));
+		server.verify(1, getRequestedFor(urlEqualTo("/data/file2.txt.gz")));
+		server.verify(0, getRequestedFor(urlEqualTo("/data/file2.txt")));
+		backupManager.rollback();
+		// The digest is of the decompressed bytes, as listed beside the original
+		File saved = new File(clientRoot + "gzip/file2.txt");
+		ContentIndex index = new ContentIndex(new File(clientRoot + "gzip/getfile.json"));
+		long[] progress = new long[1];
+		assertEquals(0, Downloader.downloadCompressed(
+				getServerBaseURI().resolve("/data/file2.txt.gz"),
+				getServerBaseURI().resolve("/data/file2.txt"),
+				saved.toPath(), null, index, n -> progress[0] += n));
+		byte[] original = FileUtils.readFileToByteArray(
+				new File("src/test/resources/__files/data/file2.txt"));
+		assertArrayEquals(original, FileUtils.readFileToByteArray(saved));
+		assertEquals(original.length, progress[0]);
+		assertEquals("dbc678c536cc2c2ded8dddf33a2091b3", index.lookup(saved.toPath()).getHex());
+		assertNotEquals(DigestUtils.md5Hex(FileUtils.readFileToByteArray(
+				new File("src/test/resources/__files/data/file2.txt.gz"))),
+				index.lookup(saved.toPath()).getHex());
+	}
+
+	/**
+	 * A compressed copy that can't be decompressed falls back to the original
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void corruptCompressedDownload()
+			throws IOException, InterruptedException, ExecutionException {
+		WireMockServer server = getWireMockServer();
+		server.stubFor(get("/data/file2.txt.gz")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody("Hi! I'm not gzip.\n")));
+		server.resetRequests();
+		backupManager.backup();
+		File file2 = getfile.updateFile("file2").get();
+		assertEquals("Hi! I'm file2 at v1.3.1.\n", FileUtils.readFileToString(file2, "utf-8"));
+		assertEquals("v1.3.1", meta.getClientVersion("file2"));
+		server.verify(1, getRequestedFor(urlEqualTo("/data/file2.txt.gz")));
+		server.verify(1, getRequestedFor(urlEqualTo("/data/file2.txt")));
+		assertFalse(new File(file2.getPath() + ".part").exists());
+		backupManager.rollback();
+	}
+
+	/**
+	 * Responses the server compressed in transit are decompressed as they're
+	 * saved, and validated by the digest of the decompressed bytes
+	 * @throws IOException
+	 */
+	@Test
+	public void gzipContentEncoding() throws IOException {
+		WireMockServer server = getWireMockServer();
+		byte[] original = "Hi! I'm compressed in transit.\n".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(original);
+		}
+		server.stubFor(get("/encoded/file.txt")
+				.withHeader("Accept-Encoding", equalTo("gzip"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withHeader("Content-Encoding", "gzip")
+						.withBody(compressed.toByteArray())));
+		server.stubFor(get("/encoded/file.txt.md5")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(DigestUtils.md5Hex(original))));
+		URI uri = getServerBaseURI().resolve("/encoded/file.txt");
+		// Downloads of files
+		File saved = new File(clientRoot + "encoded/file.txt");
+		ContentIndex index = new ContentIndex(new File(clientRoot + "encoded/getfile.json"));
+		long[] progress = new long[1];
+		assertEquals(0, Downloader.downloadFile(uri, saved.toPath(), null, index,
+				n -> progress[0] += n));
+		assertArrayEquals(original, FileUtils.readFileToByteArray(saved));
+		assertEquals(original.length, progress[0]);
+		assertEquals(DigestUtils.md5Hex(original), index.lookup(saved.toPath()).getHex());
+		// Downloads of metadata
+		File metadata = new File(clientRoot + "encoded/meta.txt");
+		assertEquals(0, Downloader.downloadFileIfModified(uri, metadata.toPath(),
+				new HashMap<String, String>()));
+		assertArrayEquals(original, FileUtils.readFileToByteArray(metadata));
+		server.verify(2, getRequestedFor(urlEqualTo("/encoded/file.txt"))
+				.withHeader("Accept-Encoding", equalTo("gzip")));
+		// A compressed response that doesn't match the digest isn't kept
+		server.stubFor(get("/encoded/file.txt.md5")
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(DigestUtils.md5Hex(compressed.toByteArray()))));
+		FileUtils.deleteQuietly(metadata);
+		assertEquals(1, Downloader.downloadFileIfModified(uri, metadata.toPath(),
+				new HashMap<String, String>()));
+		assertFalse(metadata.exists());
+	}
+
+	/**
+	 * A local file whose indexed digest matches the server isn't downloaded,
+	 * while a changed size or modification time forces a new download
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void contentIndex() throws IOException, InterruptedException, ExecutionException {
+		WireMockServer server = getWireMockServer();
+		File file3 = new File(clientRoot + "data/file3/file3.txt");
+		Checksum latest = Checksum.md5("0c2e4c4c7dd966bc44c46e486f2ffec4");
+		// Indexed with the latest content
+		FileUtils.writeStringToFile(file3, "Hi! I'm file3 at v0.1.2!\n", "UTF-8");
+		meta.getContentIndex().record(file3.toPath(), latest);
+		server.resetRequests();
+		backupManager.backup();
+		getfile.updateFile("file3").get();
+		assertEquals("v0.1.2", meta.getClientVersion("file3"));
+		server.verify(0, getRequestedFor(urlEqualTo("/data/file3/file3.txt")));
+		backupManager.rollback();
+		// Content of another size since it was indexed
+		FileUtils.writeStringToFile(file3, "Hi! I'm file3 at v0.1.2!\n", "UTF-8");
+		meta.getContentIndex().record(file3.toPath(), latest);
+		long indexed = file3.lastModified();
+		FileUtils.writeStringToFile(file3, "Hi! I'm file3 at v0.1.0, longer!\n", "UTF-8");
+		assertTrue(file3.setLastModified(indexed));
+		server.resetRequests();
+		backupManager.backup();
+		getfile.updateFile("file3").get();
+		assertEquals("Hi! I'm file3 at v0.1.2!\n", FileUtils.readFileToString(file3, "utf-8"));
+		server.verify(1, getRequestedFor(urlEqualTo("/data/file3/file3.txt")));
+		backupManager.rollback();
+		// Content of the same size but modified since it was indexed
+		FileUtils.writeStringToFile(file3, "Hi! I'm file3 at v0.1.2!\n", "UTF-8");
+		meta.getContentIndex().record(file3.toPath(), latest);
+		FileUtils.writeStringToFile(file3, "Hi! I'm file3 at v0.1.0!\n", "UTF-8");
+		assertTrue(file3.setLastModified(file3.lastModified() + 2000));
+		server.resetRequests();
+		backupManager.backup();
+		getfile.updateFile("file3").get();
+		assertEquals("Hi! I'm file3 at v0.1.2!\n", FileUtils.readFileToString(file3, "utf-8"));
+		server.verify(1, getRequestedFor(urlEqualTo("/data/file3/file3.txt")));
+		backupManager.rollback();
+	}
+
+	/**
+	 * Indexed digests are saved beside the client metadata and forgotten once
+	 * the file changes
+	 * @throws IOException
+	 */
+	@Test
+	public void contentIndexPersistence() throws IOException {
+		File clientMetaFile = new File(clientRoot + "index/getfile.json");
+		File file = new File(clientRoot + "index/data/file.txt");
+		FileUtils.writeStringToFile(file, "Hi! I'm indexed.\n", "UTF-8");
+		Checksum checksum = Checksum.md5(DigestUtils.md5Hex("Hi! I'm indexed.\n"));
+		ContentIndex index = new ContentIndex(clientMetaFile);
+		index.record(file.toPath(), checksum);
+		index.write();
+		assertTrue(new File(clientRoot + "index/getfile.json.index").exists());
+		// Reloaded from disk
+		index = new ContentIndex(clientMetaFile);
+		assertEquals(checksum.getHex(), index.lookup(file.toPath()).getHex());
+		// Renames keep the digest
+		File moved = new File(clientRoot + "index/data/moved.txt");
+		FileUtils.moveFile(file, moved);
+		index.move(file.toPath(), moved.toPath());
+		assertNull(index.lookup(file.toPath()));
+		assertEquals(checksum.getHex(), index.lookup(moved.toPath()).getHex());
+		// A changed file is forgotten, even if its attributes are restored
+		long indexed = moved.lastModified();
+		FileUtils.writeStringToFile(moved, "Hi! I'm changed.\n", "UTF-8");
+		assertNull(index.lookup(moved.toPath()));
+		FileUtils.writeStringToFile(moved, "Hi! I'm indexed.\n", "UTF-8");
+		assertTrue(moved.setLastModified(indexed));
+		assertNull(index.lookup(moved.toPath()));
 	}
 
     @AfterEach